@@ -0,0 +1,589 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary mask packed 64 pixels per long. Each row starts on a new long; within a long, bit i holds the pixel
+ * at x = 64*word + i. Dilation is done by shifting whole words and OR-ing them, and masks are combined word by word,
+ * so that operations on the mask process 64 pixels at a time with an eighth of the memory of a ByteProcessor.
+ * The words are held in a long array on the Java heap, or, for masks created by {@link #offHeap(int, int)}, in chunks
+ * of direct memory, so that very large masks do not burden the garbage collector
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class BitMask {
+
+	/** Width of the mask */
+	public int width;
+
+	/** Height of the mask */
+	public int height;
+
+	/** Number of longs per row */
+	public int wordsPerRow;
+
+	/**
+	 * The packed pixels; may be longer than needed when the mask is reused with {@link #reset(int, int)}.
+	 * null for a mask held off the heap, whose words are accessed through {@link #word(int)}
+	 */
+	public long[] bits;
+
+	/** Base 2 logarithm of the number of words in a chunk of direct memory, chunks of 1 GB */
+	protected static final int CHUNK_SHIFT=27;
+
+	/** The chunks of direct memory holding the packed pixels, null for a mask on the heap */
+	protected LongBuffer[] chunks=null;
+
+	/** Scratch row for the horizontal dilation of the current row in {@link #dilate(BitMask, boolean)} */
+	protected long[] horizontal=null;
+
+	/** Scratch row for the horizontal dilation of the previous row in {@link #dilate(BitMask, boolean)} */
+	protected long[] previousHorizontal=null;
+
+	/**
+	 * Create an empty mask (all pixels 0)
+	 * @param width Width of the mask
+	 * @param height Height of the mask
+	 */
+	public BitMask(int width, int height)
+	{
+		this(width, height, false);
+	}
+
+	/**
+	 * Create an empty mask (all pixels 0)
+	 * @param width Width of the mask
+	 * @param height Height of the mask
+	 * @param offHeap true to hold the words in direct memory, false for a long array on the heap
+	 */
+	protected BitMask(int width, int height, boolean offHeap)
+	{
+		this.width=width;
+		this.height=height;
+		wordsPerRow=(width+63)>>>6;
+		if(offHeap)
+		{
+			allocateChunks(nWords());
+		}
+		else
+		{
+			bits = new long[wordsPerRow*height];
+		}
+	}
+
+	/**
+	 * Create an empty mask (all pixels 0) held in direct memory, outside the Java heap. The size of the direct
+	 * memory is limited by the option -XX:MaxDirectMemorySize of the Java virtual machine
+	 * @param width Width of the mask
+	 * @param height Height of the mask
+	 * @return The mask
+	 */
+	public static BitMask offHeap(int width, int height)
+	{
+		return new BitMask(width, height, true);
+	}
+
+	/**
+	 * Allocate the chunks of direct memory, all words 0
+	 * @param nWords Number of words to hold
+	 */
+	protected void allocateChunks(int nWords)
+	{
+		chunks = new LongBuffer[(int)Math.max(1, ((long)nWords+(1<<CHUNK_SHIFT)-1)>>>CHUNK_SHIFT)];
+		for(int c=0; c<chunks.length; c++)
+		{
+			int size=(int)Math.min(1<<CHUNK_SHIFT, (long)nWords-((long)c<<CHUNK_SHIFT));
+			chunks[c]=ByteBuffer.allocateDirect(8*size).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+	}
+
+	/**
+	 * Is the mask held off the heap?
+	 * @return true if the words are held in direct memory
+	 */
+	public boolean isOffHeap()
+	{
+		return chunks!=null;
+	}
+
+	/**
+	 * Create an empty mask of the same kind, on the heap or off the heap
+	 * @param width Width of the mask
+	 * @param height Height of the mask
+	 * @return The mask
+	 */
+	protected BitMask createLike(int width, int height)
+	{
+		return isOffHeap() ? offHeap(width, height) : new BitMask(width, height);
+	}
+
+	/**
+	 * Get a word of packed pixels
+	 * @param k Index of the word, y*wordsPerRow+x/64
+	 * @return The word
+	 */
+	public long word(int k)
+	{
+		if(bits!=null)
+		{
+			return bits[k];
+		}
+		return chunks[k>>>CHUNK_SHIFT].get(k&((1<<CHUNK_SHIFT)-1));
+	}
+
+	/**
+	 * Set a word of packed pixels
+	 * @param k Index of the word, y*wordsPerRow+x/64
+	 * @param value The word
+	 */
+	public void setWord(int k, long value)
+	{
+		if(bits!=null)
+		{
+			bits[k]=value;
+			return;
+		}
+		chunks[k>>>CHUNK_SHIFT].put(k&((1<<CHUNK_SHIFT)-1), value);
+	}
+
+	/**
+	 * Set a range of words to the same value
+	 * @param kStart Index of the first word
+	 * @param kEnd Index after the last word
+	 * @param value The value
+	 */
+	protected void fillWords(int kStart, int kEnd, long value)
+	{
+		if(bits!=null)
+		{
+			Arrays.fill(bits, kStart, kEnd, value);
+			return;
+		}
+		for(int k=kStart; k<kEnd; k++)
+		{
+			setWord(k, value);
+		}
+	}
+
+	/**
+	 * Resize the mask and clear it, reusing the storage when it is large enough
+	 * @param width New width of the mask
+	 * @param height New height of the mask
+	 */
+	public void reset(int width, int height)
+	{
+		this.width=width;
+		this.height=height;
+		wordsPerRow=(width+63)>>>6;
+		if(isOffHeap())
+		{
+			long capacity=((long)(chunks.length-1)<<CHUNK_SHIFT)+chunks[chunks.length-1].capacity();
+			if(capacity<nWords())
+			{
+				allocateChunks(nWords());
+			}
+			else
+			{
+				fillWords(0, nWords(), 0L);
+			}
+		}
+		else if(bits.length<wordsPerRow*height)
+		{
+			bits = new long[wordsPerRow*height];
+		}
+		else
+		{
+			Arrays.fill(bits, 0, wordsPerRow*height, 0L);
+		}
+	}
+
+	/**
+	 * Number of longs in use, wordsPerRow*height
+	 * @return The number of longs
+	 */
+	protected int nWords()
+	{
+		return wordsPerRow*height;
+	}
+
+	/**
+	 * Create a mask from an image processor
+	 * @param ip The image processor, non-zero pixels are set in the mask
+	 * @return The mask
+	 */
+	public static BitMask fromProcessor(ImageProcessor ip)
+	{
+		return fromProcessor(ip, 0, 0, ip.getWidth(), ip.getHeight());
+	}
+
+	/**
+	 * Create a mask from a rectangular part of an image processor
+	 * @param ip The image processor, non-zero pixels are set in the mask
+	 * @param xOffset x position in the processor of the left edge of the mask
+	 * @param yOffset y position in the processor of the top edge of the mask
+	 * @param width Width of the mask
+	 * @param height Height of the mask
+	 * @return The mask; pixels outside the processor are 0
+	 */
+	public static BitMask fromProcessor(ImageProcessor ip, int xOffset, int yOffset, int width, int height)
+	{
+		BitMask mask = new BitMask(width, height);
+		mask.read(ip, xOffset, yOffset);
+		return mask;
+	}
+
+	/**
+	 * Overwrite the mask with a rectangular part of an image processor, of the size of the mask
+	 * @param ip The image processor, non-zero pixels are set in the mask
+	 * @param xOffset x position in the processor of the left edge of the mask
+	 * @param yOffset y position in the processor of the top edge of the mask
+	 */
+	public void read(ImageProcessor ip, int xOffset, int yOffset)
+	{
+		fillWords(0, nWords(), 0L);
+		int ipWidth=ip.getWidth();
+		Object pixels=ip.getPixels();
+		for(int y=Math.max(0, -yOffset); y<Math.min(height, ip.getHeight()-yOffset); y++)
+		{
+			int row=(y+yOffset)*ipWidth;
+			for(int x=Math.max(0, -xOffset); x<Math.min(width, ipWidth-xOffset); x++)
+			{
+				boolean set;
+				if(pixels instanceof byte[])
+				{
+					set=((byte[])pixels)[row+x+xOffset]!=0;
+				}
+				else
+				{
+					set=ip.getf(x+xOffset, y+yOffset)!=0;
+				}
+				if(set)
+				{
+					set(x, y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Overwrite the mask with a rectangular part of another mask, of the size of this mask, copying 64 pixels at a time
+	 * @param source The other mask
+	 * @param xOffset x position in the other mask of the left edge of this mask
+	 * @param yOffset y position in the other mask of the top edge of this mask
+	 */
+	public void read(BitMask source, int xOffset, int yOffset)
+	{
+		int shift=xOffset&63;
+		int wordOffset=xOffset>>6;
+		for(int y=0; y<height; y++)
+		{
+			int row=y*wordsPerRow;
+			int ys=y+yOffset;
+			if(ys<0 || ys>=source.height)
+			{
+				fillWords(row, row+wordsPerRow, 0L);
+				continue;
+			}
+			int sourceRow=ys*source.wordsPerRow;
+			for(int w=0; w<wordsPerRow; w++)
+			{
+				// Pixel x of this mask is pixel x+xOffset of the source, taken from two neighboring source words
+				int ws=w+wordOffset;
+				long low=(ws>=0 && ws<source.wordsPerRow) ? source.word(sourceRow+ws) : 0;
+				long word=low>>>shift;
+				if(shift!=0)
+				{
+					long high=(ws+1>=0 && ws+1<source.wordsPerRow) ? source.word(sourceRow+ws+1) : 0;
+					word|=high<<(64-shift);
+				}
+				setWord(row+w, word);
+			}
+			setWord(row+wordsPerRow-1, word(row+wordsPerRow-1)&lastWordMask());
+		}
+	}
+
+	/**
+	 * Overwrite rows of the mask with a band of rows of the same width, such as a band read from a file
+	 * @param band The band, of the width of this mask
+	 * @param y Row of this mask receiving the first row of the band
+	 */
+	public void setRows(BitMask band, int y)
+	{
+		int offset=y*wordsPerRow;
+		for(int k=0; k<band.nWords(); k++)
+		{
+			setWord(offset+k, band.word(k));
+		}
+	}
+
+	/**
+	 * Convert the mask to a ByteProcessor
+	 * @return ByteProcessor with set pixels 255, the others 0
+	 */
+	public ByteProcessor toByteProcessor()
+	{
+		ByteProcessor bp = new ByteProcessor(width, height);
+		byte[] pixels = (byte[])bp.getPixels();
+		for(int y=0; y<height; y++)
+		{
+			for(int w=0; w<wordsPerRow; w++)
+			{
+				long word=word(y*wordsPerRow+w);
+				while(word!=0)
+				{
+					int x=(w<<6)+Long.numberOfTrailingZeros(word);
+					pixels[y*width+x]=(byte)255;
+					word&=word-1;
+				}
+			}
+		}
+		return bp;
+	}
+
+	/**
+	 * Write the mask into a byte array with a given row length, leaving the other pixels of the array unchanged
+	 * @param pixels The array, set pixels become 255 (-1 as byte), the others 0
+	 * @param stride Row length of the array, at least the width of the mask
+	 */
+	public void toBytes(byte[] pixels, int stride)
+	{
+		for(int y=0; y<height; y++)
+		{
+			int row=y*stride;
+			Arrays.fill(pixels, row, row+width, (byte)0);
+			for(int w=0; w<wordsPerRow; w++)
+			{
+				long word=word(y*wordsPerRow+w);
+				while(word!=0)
+				{
+					pixels[row+(w<<6)+Long.numberOfTrailingZeros(word)]=(byte)255;
+					word&=word-1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get a pixel
+	 * @param x x position
+	 * @param y y position
+	 * @return Whether the pixel is set; false outside the mask
+	 */
+	public boolean get(int x, int y)
+	{
+		if(x<0 || y<0 || x>=width || y>=height)
+		{
+			return false;
+		}
+		return ((word(y*wordsPerRow+(x>>>6))>>>x)&1L)!=0;
+	}
+
+	/**
+	 * Set a pixel
+	 * @param x x position
+	 * @param y y position
+	 */
+	public void set(int x, int y)
+	{
+		int k=y*wordsPerRow+(x>>>6);
+		setWord(k, word(k) | 1L<<x);
+	}
+
+	/**
+	 * Set a horizontal run of pixels
+	 * @param y y position of the run
+	 * @param xStart x position of the first pixel
+	 * @param xEnd x position after the last pixel
+	 */
+	public void setSpan(int y, int xStart, int xEnd)
+	{
+		if(xStart>=xEnd)
+		{
+			return;
+		}
+		int row=y*wordsPerRow;
+		int wStart=xStart>>>6;
+		int wEnd=(xEnd-1)>>>6;
+		long first=-1L<<xStart;
+		long last=-1L>>>(63-((xEnd-1)&63));
+		if(wStart==wEnd)
+		{
+			setWord(row+wStart, word(row+wStart) | first&last);
+			return;
+		}
+		setWord(row+wStart, word(row+wStart) | first);
+		fillWords(row+wStart+1, row+wEnd, -1L);
+		setWord(row+wEnd, word(row+wEnd) | last);
+	}
+
+	/**
+	 * Clear a pixel
+	 * @param x x position
+	 * @param y y position
+	 */
+	public void clear(int x, int y)
+	{
+		int k=y*wordsPerRow+(x>>>6);
+		setWord(k, word(k) & ~(1L<<x));
+	}
+
+	/**
+	 * Make a copy of the mask
+	 * @return The copy
+	 */
+	public BitMask duplicate()
+	{
+		BitMask copy=createLike(width, height);
+		if(bits!=null)
+		{
+			System.arraycopy(bits, 0, copy.bits, 0, nWords());
+			return copy;
+		}
+		for(int k=0; k<nWords(); k++)
+		{
+			copy.setWord(k, word(k));
+		}
+		return copy;
+	}
+
+	/**
+	 * Bits of the last word of a row that correspond to pixels within the width
+	 * @return The mask of valid bits
+	 */
+	protected long lastWordMask()
+	{
+		int rest=width&63;
+		return (rest==0) ? -1L : (1L<<rest)-1;
+	}
+
+	/**
+	 * Dilate the mask by one pixel, 8-connected (3x3 square)
+	 * @param target Mask of the same size receiving the result, or null to create a new one
+	 * @return The dilated mask
+	 */
+	public BitMask dilate(BitMask target)
+	{
+		return dilate(target, true);
+	}
+
+	/**
+	 * Dilate the mask by one pixel
+	 * @param target Mask receiving the result, resized to the size of this mask, or null to create a new one of the
+	 * same kind, on the heap or off the heap; must not be this mask
+	 * @param eightConnected true for the 3x3 square, false for the 4-connected cross
+	 * @return The dilated mask
+	 */
+	public BitMask dilate(BitMask target, boolean eightConnected)
+	{
+		if(target==null)
+		{
+			target=createLike(width, height);
+		}
+		else if(target.width!=width || target.height!=height)
+		{
+			target.reset(width, height);
+		}
+		if(horizontal==null || horizontal.length<wordsPerRow)
+		{
+			horizontal = new long[wordsPerRow];
+			previousHorizontal = new long[wordsPerRow];
+		}
+		long[] horizontal=this.horizontal;
+		long[] previousHorizontal=this.previousHorizontal;
+		long[] swap;
+		long lastMask=lastWordMask();
+		for(int y=0; y<height; y++)
+		{
+			int row=y*wordsPerRow;
+			// Horizontal dilation of row y, carrying bits across word boundaries
+			for(int w=0; w<wordsPerRow; w++)
+			{
+				long word=word(row+w);
+				long left=(w>0) ? word(row+w-1)>>>63 : 0;
+				long right=(w<wordsPerRow-1) ? word(row+w+1)<<63 : 0;
+				horizontal[w]=word | (word<<1) | left | (word>>>1) | right;
+			}
+			horizontal[wordsPerRow-1]&=lastMask;
+			for(int w=0; w<wordsPerRow; w++)
+			{
+				long above=(y>0) ? (eightConnected ? previousHorizontal[w] : word(row-wordsPerRow+w)) : 0;
+				long below=0;
+				if(y<height-1)
+				{
+					long word=word(row+wordsPerRow+w);
+					if(eightConnected)
+					{
+						long left=(w>0) ? word(row+wordsPerRow+w-1)>>>63 : 0;
+						long right=(w<wordsPerRow-1) ? word(row+wordsPerRow+w+1)<<63 : 0;
+						below=word | (word<<1) | left | (word>>>1) | right;
+					}
+					else
+					{
+						below=word;
+					}
+				}
+				target.setWord(row+w, horizontal[w] | above | below);
+			}
+			target.setWord(row+wordsPerRow-1, target.word(row+wordsPerRow-1)&lastMask);
+			swap=previousHorizontal;
+			previousHorizontal=horizontal;
+			horizontal=swap;
+		}
+		return target;
+	}
+
+	/**
+	 * Keep only the pixels also set in another mask of the same size
+	 * @param other The other mask
+	 */
+	public void and(BitMask other)
+	{
+		for(int k=0; k<nWords(); k++)
+		{
+			setWord(k, word(k)&other.word(k));
+		}
+	}
+
+	/**
+	 * Add the pixels set in another mask of the same size
+	 * @param other The other mask
+	 */
+	public void or(BitMask other)
+	{
+		for(int k=0; k<nWords(); k++)
+		{
+			setWord(k, word(k)|other.word(k));
+		}
+	}
+
+	/**
+	 * Remove the pixels set in another mask of the same size
+	 * @param other The other mask
+	 */
+	public void andNot(BitMask other)
+	{
+		for(int k=0; k<nWords(); k++)
+		{
+			setWord(k, word(k)&~other.word(k));
+		}
+	}
+
+	/**
+	 * Count the set pixels
+	 * @return The number of set pixels
+	 */
+	public int count()
+	{
+		int n=0;
+		for(int k=0; k<nWords(); k++)
+		{
+			n+=Long.bitCount(word(k));
+		}
+		return n;
+	}
+
+}
@@ -0,0 +1,177 @@
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+
+/**
+ * Labelling of the connected components of a binary or label image, in two raster scans with a union-find
+ * forest. In the first scan, each foreground pixel takes the provisional label of its neighbors already scanned
+ * that have the same value, provisional labels meeting at the pixel being merged; in the second scan, each pixel
+ * gets the final label of its tree. The components are numbered from 1 in the order of their first pixel, row by
+ * row. Pixels are connected if they have the same non-zero value, so that a binary image gives its particles and a
+ * label image the connected parts of its labels
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class ConnectedComponents {
+
+	/** Width of the image */
+	public final int width;
+
+	/** Height of the image */
+	public final int height;
+
+	/** The component of each pixel, y*width+x; 0 is background */
+	public final int[] labels;
+
+	/** Number of components, labels run from 1 to nComponents */
+	public final int nComponents;
+
+	/** Parent of each provisional label in the union-find forest, a root being its own parent */
+	protected IntList parent = new IntList();
+
+	/**
+	 * Label the connected components of an image
+	 * @param image Binary or label image, 0 is background
+	 * @param connectivity 8 to connect all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 */
+	public ConnectedComponents(ImageProcessor image, int connectivity)
+	{
+		width=image.getWidth();
+		height=image.getHeight();
+		labels = new int[width*height];
+		float[] row = new float[width];
+		float[] previousRow = new float[width];
+
+		// Provisional label 0 is the background
+		parent.add(0);
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				row[x]=image.getf(x, y);
+			}
+			for(int x=0; x<width; x++)
+			{
+				float v=row[x];
+				if(v==0)
+				{
+					continue;
+				}
+				int index=y*width+x;
+				int label=0;
+				if(x>0 && row[x-1]==v)
+				{
+					label=join(label, labels[index-1]);
+				}
+				if(y>0)
+				{
+					if(previousRow[x]==v)
+					{
+						label=join(label, labels[index-width]);
+					}
+					if(connectivity!=4 && x>0 && previousRow[x-1]==v)
+					{
+						label=join(label, labels[index-width-1]);
+					}
+					if(connectivity!=4 && x<width-1 && previousRow[x+1]==v)
+					{
+						label=join(label, labels[index-width+1]);
+					}
+				}
+				if(label==0)
+				{
+					label=parent.size;
+					parent.add(label);
+				}
+				labels[index]=label;
+			}
+			float[] swap=previousRow;
+			previousRow=row;
+			row=swap;
+		}
+
+		// Final labels by order of the first pixel, which is also the order of the roots
+		int[] finalLabel = new int[parent.size];
+		int n=0;
+		for(int l=1; l<parent.size; l++)
+		{
+			int root=find(l);
+			if(root==l)
+			{
+				finalLabel[l]=++n;
+			}
+		}
+		nComponents=n;
+		for(int index=0; index<labels.length; index++)
+		{
+			if(labels[index]!=0)
+			{
+				labels[index]=finalLabel[find(labels[index])];
+			}
+		}
+		parent=null;
+	}
+
+	/**
+	 * Find the root of a provisional label, halving the path on the way
+	 * @param l The provisional label
+	 * @return The root, the smallest provisional label of the tree
+	 */
+	protected int find(int l)
+	{
+		int[] p=parent.data;
+		while(p[l]!=l)
+		{
+			p[l]=p[p[l]];
+			l=p[l];
+		}
+		return l;
+	}
+
+	/**
+	 * Merge the tree of a neighbor into that of the pixel
+	 * @param label Provisional label of the pixel so far, 0 if none
+	 * @param neighbor Provisional label of the neighbor
+	 * @return The root of the merged tree, the smaller of the two roots
+	 */
+	protected int join(int label, int neighbor)
+	{
+		int root=find(neighbor);
+		if(label==0 || label==root)
+		{
+			return root;
+		}
+		label=find(label);
+		if(root<label)
+		{
+			parent.data[label]=root;
+			return root;
+		}
+		parent.data[root]=label;
+		return label;
+	}
+
+	/**
+	 * Get the outer contour of each component, as seeds for polygon by polygon growth; holes are filled, and a
+	 * component lying in the hole of another one is covered by the contour of the latter
+	 * @return The polygons, component i+1 giving polygon i
+	 */
+	public Polygon[] getSeeds()
+	{
+		return new ContourTracer(labels, width, height, nComponents).getOuterPolygons();
+	}
+
+	/**
+	 * Get the components as seeds for growth on a label map, with their holes and with the components lying in
+	 * the holes of others
+	 * @return A new label map, component i having label i
+	 */
+	public LabelMap toLabelMap()
+	{
+		LabelMap map = new LabelMap(width, height);
+		System.arraycopy(labels, 0, map.labels, 0, labels.length);
+		map.nLabels=nComponents;
+		return map;
+	}
+
+}
@@ -0,0 +1,276 @@
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.ShapeRoi;
+
+import java.awt.Polygon;
+import java.awt.geom.GeneralPath;
+import java.util.ArrayList;
+
+/**
+ * Extraction of the contours of all labels of a label image in a single pass. The image is scanned row by row;
+ * each time the top edge of a labelled pixel is found that does not belong to a contour traced before, the
+ * contour is followed along the pixel edges, with the label on the right-hand side. Outer contours then run
+ * clockwise on screen and hole contours counter-clockwise. Labels are 8-connected, so that parts touching
+ * at a corner belong to the same contour. Only the corners where the contour turns become vertices
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class ContourTracer {
+
+	/** Directions of movement along the pixel edges: east, south, west, north */
+	protected static final int[] DX = {1, 0, -1, 0};
+
+	/** Directions of movement along the pixel edges: east, south, west, north */
+	protected static final int[] DY = {0, 1, 0, -1};
+
+	/** The labels, y*width+x */
+	protected int[] labels;
+
+	/** Width of the label image */
+	protected int width;
+
+	/** Height of the label image */
+	protected int height;
+
+	/** Number of labels, labels run from 1 to nLabels */
+	protected int nLabels;
+
+	/** All contours, in the order they were found */
+	protected ArrayList<Polygon> contours = new ArrayList<Polygon>();
+
+	/** The label of each contour */
+	protected IntList contourLabels = new IntList();
+
+	/** Whether each contour is an outer contour, rather than the contour of a hole */
+	protected ArrayList<Boolean> outer = new ArrayList<Boolean>();
+
+	/** Top edges of labelled pixels already traced */
+	protected BitMask visited;
+
+	/** Number of contours of each label */
+	protected int[] contourCount;
+
+	/** Index of the first outer contour of each label, -1 for missing labels */
+	protected int[] firstOuter;
+
+	/**
+	 * Trace all contours of a label image
+	 * @param labels The labels, y*width+x; 0 is background, values above nLabels are ignored
+	 * @param width Width of the label image
+	 * @param height Height of the label image
+	 * @param nLabels Number of labels
+	 */
+	public ContourTracer(int[] labels, int width, int height, int nLabels)
+	{
+		this.labels=labels;
+		this.width=width;
+		this.height=height;
+		this.nLabels=nLabels;
+		contourCount = new int[nLabels+1];
+		firstOuter = new int[nLabels+1];
+		for(int l=0; l<=nLabels; l++)
+		{
+			firstOuter[l]=-1;
+		}
+		visited = new BitMask(width, height);
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				int l=labels[y*width+x];
+				if(l<=0 || l>nLabels || getLabel(x, y-1)==l || visited.get(x, y))
+				{
+					continue;
+				}
+				traceContour(x, y, l);
+			}
+		}
+	}
+
+	/**
+	 * Get a label
+	 * @param x x position
+	 * @param y y position
+	 * @return The label, 0 outside the image
+	 */
+	protected int getLabel(int x, int y)
+	{
+		if(x<0 || y<0 || x>=width || y>=height)
+		{
+			return 0;
+		}
+		return labels[y*width+x];
+	}
+
+	/**
+	 * Follow a contour, starting eastwards along the top edge of a pixel
+	 * @param xStart x position of the pixel
+	 * @param yStart y position of the pixel
+	 * @param l The label of the pixel
+	 */
+	protected void traceContour(int xStart, int yStart, int l)
+	{
+		IntList xs = new IntList();
+		IntList ys = new IntList();
+		int x=xStart;
+		int y=yStart;
+		int direction=0;
+		long area=0;
+		do
+		{
+			if(direction==0)
+			{
+				// Moving east with the label below: the top edge of pixel (x, y)
+				visited.set(x, y);
+			}
+			int xNext=x+DX[direction];
+			int yNext=y+DY[direction];
+			area+=(long)x*yNext-(long)xNext*y;
+			x=xNext;
+			y=yNext;
+			// The two pixels ahead of the corner, to the left and the right of the direction of movement
+			boolean leftAhead=getLabel(x+aheadX(direction, false), y+aheadY(direction, false))==l;
+			boolean rightAhead=getLabel(x+aheadX(direction, true), y+aheadY(direction, true))==l;
+			int newDirection;
+			if(leftAhead)
+			{
+				// Turn left; for a pixel touching only at the corner, this keeps the label 8-connected
+				newDirection=(direction+3)&3;
+			}
+			else if(rightAhead)
+			{
+				newDirection=direction;
+			}
+			else
+			{
+				newDirection=(direction+1)&3;
+			}
+			if(newDirection!=direction)
+			{
+				xs.add(x);
+				ys.add(y);
+			}
+			direction=newDirection;
+		}
+		while(x!=xStart || y!=yStart || direction!=0);
+
+		Polygon pol = new Polygon();
+		pol.xpoints = new int[xs.size];
+		pol.ypoints = new int[xs.size];
+		// Start with the top left corner, where the trace started
+		int n=xs.size;
+		for(int k=0; k<n; k++)
+		{
+			pol.xpoints[k]=xs.data[(k+n-1)%n];
+			pol.ypoints[k]=ys.data[(k+n-1)%n];
+		}
+		pol.npoints=n;
+
+		boolean isOuter=area>0;
+		if(isOuter && firstOuter[l]<0)
+		{
+			firstOuter[l]=contours.size();
+		}
+		contours.add(pol);
+		contourLabels.add(l);
+		outer.add(isOuter);
+		contourCount[l]++;
+	}
+
+	/**
+	 * x offset from a corner to a pixel ahead
+	 * @param direction Direction of movement
+	 * @param right true for the pixel to the right of the direction, false for the left one
+	 * @return The offset
+	 */
+	protected static int aheadX(int direction, boolean right)
+	{
+		// Pixel (x, y) has its top left corner at (x, y)
+		switch(direction)
+		{
+		case 0: return 0;
+		case 1: return right ? -1 : 0;
+		case 2: return -1;
+		default: return right ? 0 : -1;
+		}
+	}
+
+	/**
+	 * y offset from a corner to a pixel ahead
+	 * @param direction Direction of movement
+	 * @param right true for the pixel to the right of the direction, false for the left one
+	 * @return The offset
+	 */
+	protected static int aheadY(int direction, boolean right)
+	{
+		switch(direction)
+		{
+		case 0: return right ? 0 : -1;
+		case 1: return 0;
+		case 2: return right ? -1 : 0;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Get the outer contour of each label. For a label in several parts, this is the part containing the
+	 * topmost, then leftmost pixel; holes are not represented
+	 * @return The outer contours, element l-1 for label l; null for labels without pixels
+	 */
+	public Polygon[] getOuterPolygons()
+	{
+		Polygon[] pols = new Polygon[nLabels];
+		for(int l=1; l<=nLabels; l++)
+		{
+			if(firstOuter[l]>=0)
+			{
+				pols[l-1]=contours.get(firstOuter[l]);
+			}
+		}
+		return pols;
+	}
+
+	/**
+	 * Get a ROI for each label: a polygon ROI for a label with a single contour, a composite shape ROI with all
+	 * the parts and holes otherwise
+	 * @return The ROIs, element l-1 for label l; null for labels without pixels
+	 */
+	public Roi[] getRois()
+	{
+		Roi[] rois = new Roi[nLabels];
+		GeneralPath[] paths = new GeneralPath[nLabels+1];
+		for(int k=0; k<contours.size(); k++)
+		{
+			int l=contourLabels.get(k);
+			if(contourCount[l]==1)
+			{
+				rois[l-1] = new PolygonRoi(contours.get(k), Roi.POLYGON);
+				continue;
+			}
+			if(paths[l]==null)
+			{
+				// The contours of a label do not cross, so even-odd filling gives the parts with their holes
+				paths[l] = new GeneralPath(GeneralPath.WIND_EVEN_ODD);
+			}
+			paths[l].append(contours.get(k), false);
+		}
+		for(int l=1; l<=nLabels; l++)
+		{
+			if(paths[l]!=null)
+			{
+				rois[l-1] = new ShapeRoi(paths[l]);
+			}
+		}
+		return rois;
+	}
+
+	/**
+	 * Get the number of contours found, outer contours and holes
+	 * @return The number of contours
+	 */
+	public int getContourCount()
+	{
+		return contours.size();
+	}
+
+}
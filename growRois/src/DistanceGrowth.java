@@ -0,0 +1,403 @@
+import ij.gui.ProgressBar;
+
+/**
+ * One-shot growth of the ROIs of a {@link LabelMap} by distance transforms. Instead of
+ * repeating one-pixel dilations, each unlabelled pixel is assigned in a single pass to the nearest ROI
+ * if it is within the growth distance, which also splits the space between neighbors along the
+ * Voronoi boundaries. The cost does not depend on the growth distance
+ * <p>
+ * Two kinds of distance are available: the direct distance in the plane ({@link #DIRECT}) and the
+ * geodesic distance along paths through the allowed pixels ({@link #GEODESIC}), which keeps the growth within the mask
+ * as the one-pixel steps of {@link RoiLogics#growPolygon} do. The metric follows the shape of the
+ * {@link StructuringElement}: Euclidean for a disk, chessboard for a square and city block for a diamond
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class DistanceGrowth {
+
+	/** Marker for "no seed found" in the distance transform */
+	protected static final int NONE=-1;
+
+	/** Direct distance in the plane; pixels outside the mask are not assigned, but do not block the distance */
+	public static final int DIRECT=0;
+
+	/** Geodesic distance along paths through the allowed pixels */
+	public static final int GEODESIC=1;
+
+	/**
+	 * Grow all labels up to a given distance, with a disk as structuring element
+	 * @param map The label map, grown in place
+	 * @param distance The distance to use, {@link #DIRECT} or {@link #GEODESIC}
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int grow(LabelMap map, int distance, double radius, ProgressBar bp)
+	{
+		return grow(map, distance, StructuringElement.DISK, radius, bp);
+	}
+
+	/**
+	 * Grow all labels up to a given distance
+	 * @param map The label map, grown in place
+	 * @param distance The distance to use, {@link #DIRECT} or {@link #GEODESIC}
+	 * @param shape The shape of the structuring element, see {@link StructuringElement}
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int grow(LabelMap map, int distance, int shape, double radius, ProgressBar bp)
+	{
+		if(distance==GEODESIC)
+		{
+			return growGeodesic(map, shape, radius, bp);
+		}
+		if(shape==StructuringElement.DISK)
+		{
+			return growEuclidean(map, radius, bp);
+		}
+		return growChamfer(map, shape, radius, bp);
+	}
+
+	/**
+	 * Grow all labels up to a Euclidean distance. Uses the separable exact distance transform of
+	 * Felzenszwalb and Huttenlocher, keeping track of the nearest labelled pixel. Ties between
+	 * equidistant ROIs are broken deterministically by scan order. Pixels outside the allowed mask of the map are not assigned
+	 * @param map The label map, grown in place
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int growEuclidean(LabelMap map, double radius, ProgressBar bp)
+	{
+		int width=map.width;
+		int height=map.height;
+		int[] labels=map.labels;
+
+		// Column pass: vertical distance to and row of the nearest labelled pixel in the same column
+		int[] dy = new int[width*height];
+		int[] nearestY = new int[width*height];
+		for(int x=0; x<width; x++)
+		{
+			int last=NONE;
+			for(int y=0; y<height; y++)
+			{
+				int index=y*width+x;
+				if(labels[index]!=0)
+				{
+					last=y;
+				}
+				nearestY[index]=last;
+				dy[index]=(last==NONE) ? Integer.MAX_VALUE : y-last;
+			}
+			last=NONE;
+			for(int y=height-1; y>=0; y--)
+			{
+				int index=y*width+x;
+				if(labels[index]!=0)
+				{
+					last=y;
+				}
+				if(last!=NONE && last-y<dy[index])
+				{
+					dy[index]=last-y;
+					nearestY[index]=last;
+				}
+			}
+		}
+
+		if(bp!=null)
+		{
+			bp.show(1, 2);
+		}
+
+		// Row pass: lower envelope of the parabolas (x-q)^2+dy(q)^2
+		double radiusSquared=radius*radius;
+		int[] v = new int[width];
+		double[] z = new double[width+1];
+		int added=0;
+		for(int y=0; y<height; y++)
+		{
+			int row=y*width;
+			int k=-1;
+			for(int q=0; q<width; q++)
+			{
+				if(nearestY[row+q]==NONE)
+				{
+					continue;
+				}
+				double fq=(double)dy[row+q]*dy[row+q];
+				double s=0;
+				while(k>=0)
+				{
+					int p=v[k];
+					double fp=(double)dy[row+p]*dy[row+p];
+					s=((fq+(double)q*q)-(fp+(double)p*p))/(2.0*(q-p));
+					if(s<=z[k])
+					{
+						k--;
+					}
+					else
+					{
+						break;
+					}
+				}
+				k++;
+				v[k]=q;
+				z[k]=(k==0) ? Double.NEGATIVE_INFINITY : s;
+				z[k+1]=Double.POSITIVE_INFINITY;
+			}
+			if(k<0)
+			{
+				continue;
+			}
+			int j=0;
+			for(int x=0; x<width; x++)
+			{
+				while(z[j+1]<x)
+				{
+					j++;
+				}
+				int q=v[j];
+				int index=row+x;
+				if(labels[index]!=0 || !map.isAllowed(index))
+				{
+					continue;
+				}
+				double d2=(double)(x-q)*(x-q)+(double)dy[row+q]*dy[row+q];
+				if(d2<=radiusSquared)
+				{
+					// The nearest labelled pixel was labelled before the growth, so its label is unchanged
+					labels[index]=labels[nearestY[row+q]*width+q];
+					added++;
+				}
+			}
+		}
+
+		if(bp!=null)
+		{
+			bp.show(2, 2);
+		}
+		return added;
+	}
+
+	/**
+	 * Grow all labels up to a chessboard (square element) or city block (diamond element) distance.
+	 * A forward and a backward raster pass of the chamfer distance transform give the exact distance for these metrics,
+	 * carrying along the label of the nearest ROI; at equal distance, the lowest label wins.
+	 * Pixels outside the allowed mask of the map are not assigned
+	 * @param map The label map, grown in place
+	 * @param shape {@link StructuringElement#SQUARE} or {@link StructuringElement#DIAMOND}
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int growChamfer(LabelMap map, int shape, double radius, ProgressBar bp)
+	{
+		int width=map.width;
+		int height=map.height;
+		int[] labels=map.labels;
+		int straight=StructuringElement.straightWeight(shape);
+		int diagonal=StructuringElement.diagonalWeight(shape);
+
+		int[] dist = new int[width*height];
+		int[] nearest = new int[width*height];
+		for(int index=0; index<width*height; index++)
+		{
+			dist[index]=(labels[index]!=0) ? 0 : Integer.MAX_VALUE;
+			nearest[index]=labels[index];
+		}
+		// Neighbors already visited in the forward pass: left, upper left, up, upper right
+		int[] dxForward = {-1, -1, 0, 1};
+		int[] dyForward = {0, -1, -1, -1};
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				relaxChamfer(x, y, dxForward, dyForward, straight, diagonal, width, height, dist, nearest);
+			}
+		}
+		if(bp!=null)
+		{
+			bp.show(1, 2);
+		}
+		int[] dxBackward = {1, 1, 0, -1};
+		int[] dyBackward = {0, 1, 1, 1};
+		double maxDistance=radius*straight;
+		int added=0;
+		for(int y=height-1; y>=0; y--)
+		{
+			for(int x=width-1; x>=0; x--)
+			{
+				relaxChamfer(x, y, dxBackward, dyBackward, straight, diagonal, width, height, dist, nearest);
+			}
+		}
+		for(int index=0; index<width*height; index++)
+		{
+			if(labels[index]==0 && nearest[index]!=0 && dist[index]<=maxDistance && map.isAllowed(index))
+			{
+				labels[index]=nearest[index];
+				added++;
+			}
+		}
+		if(bp!=null)
+		{
+			bp.show(2, 2);
+		}
+		return added;
+	}
+
+	/**
+	 * Update the distance and nearest label of a pixel from already visited neighbors, for a chamfer pass
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @param dx x offsets of the visited neighbors
+	 * @param dy y offsets of the visited neighbors
+	 * @param straight Weight of horizontal and vertical steps
+	 * @param diagonal Weight of diagonal steps, 0 if not allowed
+	 * @param width Width of the map
+	 * @param height Height of the map
+	 * @param dist Distance of each pixel
+	 * @param nearest Label of the nearest ROI of each pixel
+	 */
+	protected static void relaxChamfer(int x, int y, int[] dx, int[] dy, int straight, int diagonal, int width, int height, int[] dist, int[] nearest)
+	{
+		int index=y*width+x;
+		for(int k=0; k<dx.length; k++)
+		{
+			int xn=x+dx[k];
+			int yn=y+dy[k];
+			if(xn<0 || yn<0 || xn>=width || yn>=height)
+			{
+				continue;
+			}
+			int weight=(dx[k]!=0 && dy[k]!=0) ? diagonal : straight;
+			int n=yn*width+xn;
+			if(weight==0 || dist[n]==Integer.MAX_VALUE)
+			{
+				continue;
+			}
+			int d=dist[n]+weight;
+			if(d<dist[index] || (d==dist[index] && nearest[n]<nearest[index]))
+			{
+				dist[index]=d;
+				nearest[index]=nearest[n];
+			}
+		}
+	}
+
+	/**
+	 * Grow all labels up to a geodesic distance within the allowed pixels, with a disk as structuring element
+	 * @param map The label map, grown in place
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int growGeodesic(LabelMap map, double radius, ProgressBar bp)
+	{
+		return growGeodesic(map, StructuringElement.DISK, radius, bp);
+	}
+
+	/**
+	 * Grow all labels up to a geodesic distance within the allowed pixels. The distance is propagated from all
+	 * labels at once with a chamfer metric (5-7 for a disk, 1-1 for a square, 1 with straight steps only for a diamond),
+	 * by Dijkstra with a bucket queue, so that each pixel goes to the nearest ROI along paths through the mask;
+	 * at equal distance, the lowest label wins
+	 * @param map The label map, grown in place
+	 * @param shape The shape of the structuring element, see {@link StructuringElement}
+	 * @param radius The growth distance in pixels
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public static int growGeodesic(LabelMap map, int shape, double radius, ProgressBar bp)
+	{
+		int width=map.width;
+		int height=map.height;
+		int[] labels=map.labels;
+		int straight=StructuringElement.straightWeight(shape);
+		int diagonal=StructuringElement.diagonalWeight(shape);
+		int maxDistance=(int)Math.floor(radius*straight);
+
+		int[] dist = new int[width*height];
+		// Circular bucket queue: a step never adds more than the largest weight
+		IntList[] buckets = new IntList[Math.max(straight, diagonal)+1];
+		for(int b=0; b<buckets.length; b++)
+		{
+			buckets[b] = new IntList();
+		}
+		int pending=0;
+		for(int index=0; index<width*height; index++)
+		{
+			if(labels[index]!=0)
+			{
+				dist[index]=0;
+				buckets[0].add(index);
+				pending++;
+			}
+			else
+			{
+				dist[index]=Integer.MAX_VALUE;
+			}
+		}
+
+		int added=0;
+		for(int d=0; d<=maxDistance && pending>0; d++)
+		{
+			IntList bucket=buckets[d%buckets.length];
+			// All weights are positive, so the bucket does not grow while it is processed
+			int n=bucket.size;
+			pending-=n;
+			for(int k=0; k<n; k++)
+			{
+				int index=bucket.data[k];
+				if(dist[index]!=d)
+				{
+					// Stale entry, the pixel was reached by a shorter path
+					continue;
+				}
+				if(d>0)
+				{
+					added++;
+				}
+				int x=index%width;
+				int y=index/width;
+				int label=labels[index];
+				for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+				{
+					for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+					{
+						int neighbor=yn*width+xn;
+						int weight=(xn==x || yn==y) ? straight : diagonal;
+						if(weight==0 || !map.isAllowed(neighbor))
+						{
+							continue;
+						}
+						int nd=d+weight;
+						if(nd>maxDistance)
+						{
+							continue;
+						}
+						if(nd<dist[neighbor])
+						{
+							dist[neighbor]=nd;
+							labels[neighbor]=label;
+							buckets[nd%buckets.length].add(neighbor);
+							pending++;
+						}
+						else if(nd==dist[neighbor] && label<labels[neighbor])
+						{
+							labels[neighbor]=label;
+						}
+					}
+				}
+			}
+			bucket.clear();
+			if(bp!=null && (d % 100)==0)
+			{
+				bp.show(d, maxDistance);
+			}
+		}
+		return added;
+	}
+
+}
@@ -0,0 +1,390 @@
+import ij.gui.ProgressBar;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Incremental growth of the ROIs of a {@link LabelMap} from an explicit frontier per ROI. The frontier of a ROI holds
+ * the pixels added in the last step; only their neighbors are examined in the next step, so the cost of a step
+ * scales with the perimeter of the ROIs rather than with their area or the image size, and ROIs that can no longer grow cost nothing.
+ * The result is the same as for {@link LabelMap#grow()}: a pixel touching several ROIs goes to the lowest label.
+ * To this end, each step first collects the claims of all ROIs and then assigns the pixels, which also allows
+ * processing the ROIs on several threads with results independent of the thread count.
+ * For a label map held off the heap, the claims are held off the heap as well; since direct memory offers no atomic
+ * updates, the claims are then collected on a single thread, the pixels still being assigned in parallel
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class FrontierGrowth {
+
+	/** No claim on a pixel; labels are positive, and new claim storage is 0 throughout */
+	protected static final int UNCLAIMED=0;
+
+	/** The label map being grown */
+	protected LabelMap map;
+
+	/** Frontier pixels for each label as pairs of x and y, element 0 unused */
+	protected IntList[] frontiers;
+
+	/** For each pixel, the lowest label claiming it in the current step; null for a map held off the heap */
+	protected AtomicIntegerArray claims=null;
+
+	/** The claims for a map held off the heap, null otherwise */
+	protected OffHeapLabels offHeapClaims=null;
+
+	/** Number of steps carried out by the last call to {@link #grow(int, ProgressBar)} */
+	public int stepsUsed=0;
+
+	/** Number of threads to use for growth */
+	protected int nThreads=1;
+
+	/** Thread pool for parallel growth, null when growing on a single thread */
+	protected ForkJoinPool pool=null;
+
+	/** Minimum number of labels processed by a single parallel task */
+	protected static final int minLabelsPerTask=64;
+
+	/**
+	 * Set up the frontiers of a label map: the labelled pixels touching an accessible unlabelled pixel
+	 * @param map The label map, grown in place
+	 */
+	public FrontierGrowth(LabelMap map)
+	{
+		this.map=map;
+		frontiers = new IntList[map.nLabels+1];
+		for(int l=1; l<=map.nLabels; l++)
+		{
+			frontiers[l] = new IntList();
+		}
+		if(map.isOffHeap())
+		{
+			offHeapClaims = new OffHeapLabels(map.width, map.height);
+		}
+		else
+		{
+			claims = new AtomicIntegerArray(map.width*map.height);
+		}
+		for(int y=0; y<map.height; y++)
+		{
+			for(int x=0; x<map.width; x++)
+			{
+				int l=map.getLabel(x, y);
+				if(l>0 && l<=map.nLabels && hasFreeNeighbor(x, y))
+				{
+					frontiers[l].add(x);
+					frontiers[l].add(y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the number of threads used for growth
+	 * @param nThreads Number of threads, 1 for single-threaded growth
+	 */
+	public void setThreads(int nThreads)
+	{
+		this.nThreads=Math.max(1, nThreads);
+	}
+
+	/**
+	 * Does a pixel touch an unlabelled pixel accessible for growth?
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @return Whether there is such a neighbor
+	 */
+	protected boolean hasFreeNeighbor(int x, int y)
+	{
+		int width=map.width;
+		int height=map.height;
+		for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+		{
+			for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+			{
+				if(!map.isNeighbor(xn-x, yn-y))
+				{
+					continue;
+				}
+				if(map.getLabel(xn, yn)==0 && map.isAllowed(xn, yn))
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the lowest label claiming a pixel in the current step
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @return The label, {@link #UNCLAIMED} if none
+	 */
+	protected int getClaim(int x, int y)
+	{
+		if(claims!=null)
+		{
+			return claims.get(y*map.width+x);
+		}
+		return offHeapClaims.get(x, y);
+	}
+
+	/**
+	 * Claim a pixel for a label, unless a lower label claims it
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @param l The label
+	 */
+	protected void claim(int x, int y, int l)
+	{
+		if(claims==null)
+		{
+			// Claims off the heap are collected on a single thread
+			int current=offHeapClaims.get(x, y);
+			if(current==UNCLAIMED || l<current)
+			{
+				offHeapClaims.set(x, y, l);
+			}
+			return;
+		}
+		int n=y*map.width+x;
+		int current=claims.get(n);
+		while((current==UNCLAIMED || l<current) && !claims.compareAndSet(n, current, l))
+		{
+			current=claims.get(n);
+		}
+	}
+
+	/**
+	 * Remove the claim on a pixel
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 */
+	protected void clearClaim(int x, int y)
+	{
+		if(claims!=null)
+		{
+			claims.set(y*map.width+x, UNCLAIMED);
+			return;
+		}
+		offHeapClaims.set(x, y, UNCLAIMED);
+	}
+
+	/**
+	 * Can a ROI still grow?
+	 * @param label The label of the ROI
+	 * @return false if the ROI has an empty frontier
+	 */
+	public boolean canGrow(int label)
+	{
+		return !frontiers[label].isEmpty();
+	}
+
+	/**
+	 * Grow all labels by one pixel, with the connectivity of the map
+	 * @return The number of pixels added
+	 */
+	public int grow()
+	{
+		if(pool==null)
+		{
+			claimLabels(1, map.nLabels+1);
+			return assignLabels(1, map.nLabels+1);
+		}
+		if(claims==null)
+		{
+			claimLabels(1, map.nLabels+1);
+		}
+		else
+		{
+			pool.invoke(new LabelRangeTask(1, map.nLabels+1, false));
+		}
+		LabelRangeTask assign = new LabelRangeTask(1, map.nLabels+1, true);
+		pool.invoke(assign);
+		return assign.added;
+	}
+
+	/**
+	 * Grow all labels by several pixels. Stops early when no ROI can grow anymore; the number of steps
+	 * carried out is available in {@link #stepsUsed}
+	 * @param nSteps How many pixels to grow
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of pixels added
+	 */
+	public int grow(int nSteps, ProgressBar bp)
+	{
+		int added=0;
+		stepsUsed=0;
+		if(nThreads>1)
+		{
+			pool = new ForkJoinPool(nThreads);
+		}
+		try
+		{
+			for(int step=0; step<nSteps; step++)
+			{
+				if(bp!=null)
+				{
+					bp.show(step, nSteps);
+				}
+				int addedInStep=grow();
+				if(addedInStep==0)
+				{
+					// All frontiers are empty now, further steps would do nothing
+					break;
+				}
+				added+=addedInStep;
+				stepsUsed++;
+			}
+		}
+		finally
+		{
+			if(pool!=null)
+			{
+				pool.shutdown();
+				pool=null;
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * First phase of a step: each label of a range claims the free neighbors of its frontier,
+	 * keeping the lowest label for pixels claimed several times
+	 * @param lStart First label of the range
+	 * @param lEnd Label after the last label of the range
+	 */
+	protected void claimLabels(int lStart, int lEnd)
+	{
+		int width=map.width;
+		int height=map.height;
+		for(int l=lStart; l<lEnd; l++)
+		{
+			IntList frontier=frontiers[l];
+			for(int k=0; k<frontier.size; k+=2)
+			{
+				int x=frontier.data[k];
+				int y=frontier.data[k+1];
+				for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+				{
+					for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+					{
+						if(!map.isNeighbor(xn-x, yn-y))
+						{
+							continue;
+						}
+						if(map.getLabel(xn, yn)!=0 || !map.isAllowed(xn, yn))
+						{
+							continue;
+						}
+						claim(xn, yn, l);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Second phase of a step: each label of a range takes the pixels it won, which become its new frontier
+	 * @param lStart First label of the range
+	 * @param lEnd Label after the last label of the range
+	 * @return The number of pixels added
+	 */
+	protected int assignLabels(int lStart, int lEnd)
+	{
+		int width=map.width;
+		int height=map.height;
+		int added=0;
+		for(int l=lStart; l<lEnd; l++)
+		{
+			IntList frontier=frontiers[l];
+			if(frontier.isEmpty())
+			{
+				continue;
+			}
+			IntList next = new IntList(Math.max(16, frontier.size));
+			for(int k=0; k<frontier.size; k+=2)
+			{
+				int x=frontier.data[k];
+				int y=frontier.data[k+1];
+				for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+				{
+					for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+					{
+						if(!map.isNeighbor(xn-x, yn-y))
+						{
+							continue;
+						}
+						// Only this label writes to the pixels it won
+						if(getClaim(xn, yn)==l)
+						{
+							map.setLabel(xn, yn, l);
+							clearClaim(xn, yn);
+							next.add(xn);
+							next.add(yn);
+							added++;
+						}
+					}
+				}
+			}
+			// All free neighbors of the old frontier were taken, so only the new pixels can grow further
+			frontiers[l]=next;
+		}
+		return added;
+	}
+
+	/**
+	 * Fork-join task for one of the two phases of a step on a range of labels
+	 */
+	@SuppressWarnings("serial")
+	protected class LabelRangeTask extends RecursiveAction
+	{
+		/** First label of the range */
+		protected int lStart;
+
+		/** Label after the last label of the range */
+		protected int lEnd;
+
+		/** false for the claim phase, true for the assignment phase */
+		protected boolean assign;
+
+		/** Number of pixels added in the assignment phase */
+		protected int added=0;
+
+		/**
+		 * Create a task for a range of labels
+		 * @param lStart First label of the range
+		 * @param lEnd Label after the last label of the range
+		 * @param assign false for the claim phase, true for the assignment phase
+		 */
+		public LabelRangeTask(int lStart, int lEnd, boolean assign)
+		{
+			this.lStart=lStart;
+			this.lEnd=lEnd;
+			this.assign=assign;
+		}
+
+		protected void compute()
+		{
+			if(lEnd-lStart<=minLabelsPerTask)
+			{
+				if(assign)
+				{
+					added=assignLabels(lStart, lEnd);
+				}
+				else
+				{
+					claimLabels(lStart, lEnd);
+				}
+				return;
+			}
+			int lMiddle=(lStart+lEnd)/2;
+			LabelRangeTask lowerHalf = new LabelRangeTask(lStart, lMiddle, assign);
+			LabelRangeTask upperHalf = new LabelRangeTask(lMiddle, lEnd, assign);
+			invokeAll(lowerHalf, upperHalf);
+			added=lowerHalf.added+upperHalf.added;
+		}
+	}
+
+}
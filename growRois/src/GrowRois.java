@@ -1,6 +1,8 @@
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.GenericDialog;
 import ij.gui.PolygonRoi;
@@ -46,22 +48,34 @@ public class GrowRois implements PlugInFilter {
 	public ImagePlus watershedGuide=null;
 
 	/** Title of the optional mask */
-	public static String allowedMaskTitle=null;
+	public String allowedMaskTitle=null;
 	
 	/** Title of the optional watershed guide */
-	public static String watershedGuideTitle=null;
+	public String watershedGuideTitle=null;
 
-	/** Flag indicating whether neighboring ROIs are allowed to overlap */
-	public static boolean overlapAllowed=false;
+	/** Optional binary or label image giving the seeds by its connected components, instead of the ROI manager */
+	public ImagePlus seedImage=null;
 
-	/** Total number of pixels by which the dilatation should be done */
-	public static int nPixels=1;
+	/** Title of the optional seed image */
+	public String seedImageTitle=null;
+
+	/** Available growth methods */
+	public static final String[] growthMethods = GrowthParameters.growthMethods;
+
+	/** Parameters of the growth, as chosen in the options dialog; the last choices are kept in ImageJ's preferences */
+	public GrowthParameters parameters = new GrowthParameters();
     
+	/** For a stack, grow the ROIs of all slices rather than those of the current slice only */
+	public boolean allSlices=true;
+
 	/** Array of the ROIs to be grown */
 	public Roi[] theRois;
     
 	/** Did the user push the cancel button in the options dialog */
-	protected static boolean iscanceled = false;
+	protected boolean iscanceled = false;
+
+	/** Prefix of the keys under which the dialog choices are kept in ImageJ's preferences */
+	protected static final String PREFS_KEY = "growRois.";
 
 	/** 
 	 * Main function called by imageJ to have the plugin run 
@@ -74,60 +88,69 @@ public class GrowRois implements PlugInFilter {
 		iscanceled = false;
 
 		this.ip = ip;
-		
+
+		runDialog();
+
+		if(iscanceled)
+		{
+			return;
+		}	
+
+		if(seedImage!=null)
+		{
+			growFromSeedImage();
+			return;
+		}
+
+		// The ROI manager is only needed, and opened, when the seeds do not come from a seed image
 		roiManager=RoiLogics.getRoiManager();
 
 		if(RoiLogics.getCount()==0)
 		{
 			RoiLogics.addSelection(imp);
 		}
-		
+
 		if(RoiLogics.getCount()==0)
 		{
 			IJ.error("growRois: At least one ROI must be available in the ROI manager \n"
-					+ "(Analyze > Tools > ROI Manager)");
+					+ "(Analyze > Tools > ROI Manager), or a seed image must be chosen");
 			return;
 		}
 		
-		
-
-		runDialog();
+		Roi[] theRois = roiManager.getRoisAsArray();
 
-		if(iscanceled)
+		if(PointSeeds.allPoints(theRois))
 		{
+			growFromPoints(theRois);
 			return;
-		}	
-
-		
-		
-		Roi[] theRois = roiManager.getRoisAsArray();
+		}
 		
 		WindowManager.setWindow(WindowManager.getWindow(roiManager.getTitle()));
 		
 		
-		// Rename the rois to avoid issues with automatic renaming upon change of position
+		// Name the rois by position, to avoid issues with automatic renaming upon change of position. The names
+		// are given to the grown rois, which replace the old ones in one operation at the end
 		String prefix = "GR_";
 		int minimumDigits = 3;
-		
-		for(int index=0; index<theRois.length; index++)
-		{
-			String label = prefix+RoiLogics.intToString(index, minimumDigits);
-			RoiLogics.renameLabelInRoiManager(index, label);
-			
-		}
-		
-		
-
-		theRois =  roiManager.getRoisAsArray();
 
 		IJ.showMessage("Analyzing "+theRois.length+" Rois");
 
+		if(allSlices && imp.getStackSize()>1)
+		{
+			ProgressBar bp = new ProgressBar(0, 0);
+			ip.setProgressBar(bp);
+			RoiLogics.replaceAllRois(imp, growStack(theRois, prefix, minimumDigits, bp));
+			RoiLogics.redrawScrollPane();
+			roiManager.runCommand("show all");
+			return;
+		}
+
 		Polygon[] pols = new Polygon[theRois.length];
 		String[] labels = new String[theRois.length];
 		for(int index=0; index<theRois.length; index++)
 		{
 			pols[index] = theRois[index].getPolygon();
-			labels[index]=theRois[index].getName();
+			labels[index]=prefix+RoiLogics.intToString(index, minimumDigits);
 		}
 
 		ImageProcessor allowedProcessor = null;
@@ -146,63 +169,215 @@ public class GrowRois implements PlugInFilter {
 		ip.setProgressBar(bp);
 
 		
-		if(guideProcessor==null)
-		{
-			RoiLogics.growPolygons(pols, allowedProcessor, !overlapAllowed, nPixels, bp);
-		} else
+		// The engines working on a label map also return ROIs in several parts or with holes
+		Roi[] grownRois = new Roi[pols.length];
+
+		GrowthEngine engine = new GrowthEngine(parameters, allowedProcessor, guideProcessor);
+		int stepsUsed=engine.grow(pols, ip.getWidth(), ip.getHeight(), grownRois, bp);
+		showStepsUsed(stepsUsed);
+
+		// Replace all rois in the roiManager at once, under their names, rather than deleting them and
+		// renaming the new ones one by one
+		bp.show(1);
+		Roi[] newRois = new Roi[pols.length];
+		for(int index=0; index<pols.length; index++)
 		{
-			RoiLogics.growPolygonsWatershed(pols, allowedProcessor, !overlapAllowed, nPixels, guideProcessor, bp);
+			Roi n = grownRois[index];
+			if(n==null)
+			{
+				n = new PolygonRoi(pols[index], Roi.POLYGON);
+			}
+			n = RoiLogics.simplifyRoi(n, parameters.outlineTolerance);
+			n.setName(labels[index]);
+			newRois[index]=n;
 		}
+		RoiLogics.replaceAllRois(imp, newRois);
+
+		// Bug with RoiManager, sometimes the ROIs become invisible. Hopefully this helps
+		RoiLogics.redrawScrollPane();
 		
-		
-		// At present, this seems to be a difficult problem: Changing a given
-		// ROI in the roiManager does not seem easy by programmatic access
-		// instead, we delete the whole list and add everything new
+		// To show the ROIs
+		roiManager.runCommand("show all");
 
-		roiManager.runCommand("deselect");
-		roiManager.runCommand("delete");
 
+	}
 
+	
 
-		for(int index=0; index<pols.length; index++)
-		{
 
 
-			PolygonRoi n = new PolygonRoi(pols[index], Roi.POLYGON);
 
-			roiManager.add(imp, n, -1);
 
 
-		}
-		
-		// This is a bit of fiddling, but it is convenient to have the old names back
-		bp.show(1);
-		for(int index=0; index<pols.length; index++)
+	/**
+	 * Grow the connected components of the seed image, without going through the ROI manager, and show the
+	 * result as a label image, see {@link GrowthEngine#growComponents(ImageProcessor, ProgressBar)}. For a stack,
+	 * the components of each slice are grown if the seed image has a slice for each slice and all slices are to
+	 * be grown
+	 */
+	protected void growFromSeedImage()
+	{
+		ProgressBar bp = new ProgressBar(0, 0);
+		ip.setProgressBar(bp);
+		int width=ip.getWidth();
+		int height=ip.getHeight();
+		boolean sameSlices=(seedImage.getStackSize()==imp.getStackSize());
+		String title="Grown "+seedImage.getTitle();
+
+		if(allSlices && imp.getStackSize()>1 && sameSlices)
 		{
-			if(!labels[index].startsWith("GR_"))
-			{
-				RoiLogics.renameLabelInRoiManager(index,"GR_"+labels[index]);
-			}
-			else
+			int nSlices=imp.getStackSize();
+			StackGrowth growth = new StackGrowth(parameters, nSlices, getStack(allowedPixelMask), getStack(watershedGuide));
+			Roi[][] grown = growth.growComponents(seedImage.getStack(), bp);
+			ImageStack labels = new ImageStack(width, height);
+			for(int slice=1; slice<=nSlices; slice++)
 			{
-				RoiLogics.renameLabelInRoiManager(index,labels[index]);
+				labels.addSlice(GrowRoisBatch.toLabelImage(grown[slice-1], width, height));
 			}
+			new ImagePlus(title, labels).show();
+			return;
 		}
-		// Bug with RoiManager, sometimes the ROIs become invisible. Hopefully this helps
-		RoiLogics.redrawScrollPane();
-		
-		// To show the ROIs
-		roiManager.runCommand("show all");
 
+		ImageProcessor seedProcessor=seedImage.getProcessor();
+		if(sameSlices)
+		{
+			seedProcessor=seedImage.getStack().getProcessor(imp.getCurrentSlice());
+		}
+		IJ.showStatus("growRois: growing the components of "+seedImage.getTitle());
 
+		ImageProcessor allowedProcessor = null;
+		if(allowedPixelMask!=null)
+		{
+			allowedProcessor = allowedPixelMask.getProcessor();
+		}
+		ImageProcessor guideProcessor = null;
+		if(watershedGuide!=null)
+		{
+			guideProcessor = watershedGuide.getProcessor();
+		}
+		GrowthEngine engine = new GrowthEngine(parameters, allowedProcessor, guideProcessor);
+		Roi[] grown = engine.growComponents(seedProcessor, bp);
+		new ImagePlus(title, GrowRoisBatch.toLabelImage(grown, width, height)).show();
 	}
 
-	
+	/**
+	 * Grow the points of point selections as single-pixel seeds, without overlap, on the current slice, and show
+	 * the result as a label image, seed k having label k+1
+	 * @param pointRois The point selections
+	 */
+	protected void growFromPoints(Roi[] pointRois)
+	{
+		ProgressBar bp = new ProgressBar(0, 0);
+		ip.setProgressBar(bp);
+		PointSeeds seeds = new PointSeeds(ip.getWidth(), ip.getHeight());
+		seeds.addPoints(pointRois);
+		IJ.showStatus("growRois: growing "+seeds.size()+" point seeds");
+		if(parameters.overlapAllowed)
+		{
+			IJ.log("growRois: point seeds are grown without overlap, on a label map; \"Allow overlap\" does not apply");
+		}
+
+		ImageProcessor allowedProcessor = null;
+		if(allowedPixelMask!=null)
+		{
+			allowedProcessor = allowedPixelMask.getProcessor();
+		}
+		ImageProcessor guideProcessor = null;
+		if(watershedGuide!=null)
+		{
+			guideProcessor = watershedGuide.getProcessor();
+		}
+		GrowthEngine engine = new GrowthEngine(parameters, allowedProcessor, guideProcessor);
+		LabelMap map = engine.growPoints(seeds, bp);
+		new ImagePlus("Grown points", GrowRoisBatch.toLabelImage(map)).show();
+	}
 
+	/**
+	 * Grow the ROIs of all slices of the stack, in parallel. The slice of a ROI is its position; ROIs without a
+	 * position are grown on every slice
+	 * @param theRois The ROIs
+	 * @param prefix Prefix of the names of the grown ROIs
+	 * @param minimumDigits Number of digits of the ROI index in the names
+	 * @param bp Progress bar
+	 * @return The grown ROIs, slice by slice, named by slice and index and positioned on their slice
+	 */
+	protected Roi[] growStack(Roi[] theRois, String prefix, int minimumDigits, ProgressBar bp)
+	{
+		int nSlices=imp.getStackSize();
+		Roi[] positioned = new Roi[theRois.length];
+		for(int index=0; index<theRois.length; index++)
+		{
+			positioned[index]=theRois[index];
+			if(theRois[index].hasHyperStackPosition())
+			{
+				// Seeds are sorted by stack index
+				Roi roi=theRois[index];
+				positioned[index]=(Roi)roi.clone();
+				positioned[index].setPosition(imp.getStackIndex(roi.getCPosition(), roi.getZPosition(), roi.getTPosition()));
+			}
+		}
+		Polygon[][] seeds = new Polygon[nSlices][];
+		StackGrowth.seedsBySlice(positioned, seeds, new String[nSlices][]);
 
+		StackGrowth growth = new StackGrowth(parameters, nSlices, getStack(allowedPixelMask), getStack(watershedGuide));
+		Roi[][] grown = growth.growRois(seeds, ip.getWidth(), ip.getHeight(), bp);
 
+		int nGrown=0;
+		for(int slice=1; slice<=nSlices; slice++)
+		{
+			nGrown+=grown[slice-1].length;
+		}
+		Roi[] newRois = new Roi[nGrown];
+		int k=0;
+		for(int slice=1; slice<=nSlices; slice++)
+		{
+			for(int index=0; index<grown[slice-1].length; index++)
+			{
+				Roi n=grown[slice-1][index];
+				n.setName(prefix+RoiLogics.intToString(slice, 4)+"_"+RoiLogics.intToString(index, minimumDigits));
+				if(imp.isHyperStack())
+				{
+					int[] position=imp.convertIndexToPosition(slice);
+					n.setPosition(position[0], position[1], position[2]);
+				}
+				newRois[k++]=n;
+			}
+		}
+		return newRois;
+	}
 
+	/**
+	 * Get the slices of a mask or guide for stack growth
+	 * @param image The mask or guide, can be null
+	 * @return All slices if there is one for each slice of the current image, the current slice otherwise;
+	 * null without image
+	 */
+	protected ImageStack getStack(ImagePlus image)
+	{
+		if(image==null)
+		{
+			return null;
+		}
+		if(image.getStackSize()==imp.getStackSize())
+		{
+			return image.getStack();
+		}
+		ImageStack single = new ImageStack(image.getWidth(), image.getHeight());
+		single.addSlice(image.getProcessor());
+		return single;
+	}
 
+	/**
+	 * Report in ImageJ's status bar how many growth steps were needed before all ROIs stopped changing
+	 * @param stepsUsed The number of steps carried out
+	 */
+	protected void showStepsUsed(int stepsUsed)
+	{
+		if(stepsUsed<parameters.nPixels)
+		{
+			IJ.showStatus("growRois: growth completed after "+stepsUsed+" of "+parameters.nPixels+" steps");
+		}
+	}
 
     /**
      * This function gathers the IDs of the open images. This is to offer the user the choice among the
@@ -259,6 +434,8 @@ public class GrowRois implements PlugInFilter {
 		IJ.register(GrowRois.class);
 
 
+		loadPreferences();
+
 		GenericDialog gd = new GenericDialog("growRois ROI dilatation plugin", IJ.getInstance());
 		String defaultImageTitle=null;
 		if(allowedMaskTitle!=null)
@@ -279,10 +456,26 @@ public class GrowRois implements PlugInFilter {
 		{
 			defaultGuideTitle=titles[0];
 		}
+		String defaultSeedTitle=titles[0];
+		if(seedImageTitle!=null)
+		{
+			defaultSeedTitle=seedImageTitle;
+		}
+		String connectivityName=StructuringElement.connectivityNames[parameters.connectivity==4 ? 1 : 0];
 		gd.addChoice("Image with allowed pixels:", titles,defaultImageTitle);
 		gd.addChoice("Image for watershed guiding:", titles,defaultGuideTitle);
-		gd.addCheckbox("Allow overlap between ROIs", overlapAllowed);
-		gd.addNumericField("Pixels to grow", nPixels, 0);
+		gd.addChoice("Seeds from image (result as labels):", titles, defaultSeedTitle);
+		gd.addCheckbox("Allow overlap between ROIs", parameters.overlapAllowed);
+		gd.addNumericField("Pixels to grow", parameters.nPixels, 0);
+		gd.addChoice("Growth method:", growthMethods, parameters.growthMethod);
+		gd.addChoice("Connectivity (pixel by pixel):", StructuringElement.connectivityNames, connectivityName);
+		gd.addChoice("Structuring element (one pass):", StructuringElement.shapeNames, StructuringElement.shapeNames[parameters.shape]);
+		gd.addNumericField("Outline tolerance (pixels)", parameters.outlineTolerance, 1);
+		gd.addNumericField("Watershed levels (0 = native)", parameters.guideLevels, 0);
+		if(imp.getStackSize()>1)
+		{
+			gd.addCheckbox("Grow all slices", allSlices);
+		}
 		gd.showDialog();
 		if (gd.wasCanceled())
 		{
@@ -301,12 +494,73 @@ public class GrowRois implements PlugInFilter {
 		{
 			watershedGuide=WindowManager.getImage(wListWithNone[index2]);
 		}
-		overlapAllowed = gd.getNextBoolean();
+		int index3 = gd.getNextChoiceIndex();
+		seedImageTitle = titles[index3];
+		seedImage=null;
+		if(index3>0)
+		{
+			seedImage=WindowManager.getImage(wListWithNone[index3]);
+		}
+		parameters.overlapAllowed = gd.getNextBoolean();
+
+		parameters.nPixels=(int)gd.getNextNumber();
+		if(parameters.nPixels<1) { parameters.nPixels=1; }
+
+		parameters.growthMethod = gd.getNextChoice();
+		parameters.connectivity = StructuringElement.connectivityFromName(gd.getNextChoice());
+		parameters.shape = StructuringElement.shapeFromName(gd.getNextChoice());
+
+		parameters.outlineTolerance=gd.getNextNumber();
+		if(!(parameters.outlineTolerance>0)) { parameters.outlineTolerance=0; }
+		parameters.guideLevels=(int)gd.getNextNumber();
+		if(!(parameters.guideLevels>0)) { parameters.guideLevels=0; }
+		if(imp.getStackSize()>1)
+		{
+			allSlices=gd.getNextBoolean();
+		}
+
+		savePreferences();
 
-		nPixels=(int)gd.getNextNumber();
-		if(nPixels<1) { nPixels=1; }
+	}
 
+	/**
+	 * Set the parameters and image titles to the choices made the last time the dialog was used
+	 */
+	protected void loadPreferences()
+	{
+		allowedMaskTitle=Prefs.get(PREFS_KEY+"allowedMaskTitle", allowedMaskTitle);
+		watershedGuideTitle=Prefs.get(PREFS_KEY+"watershedGuideTitle", watershedGuideTitle);
+		seedImageTitle=Prefs.get(PREFS_KEY+"seedImageTitle", seedImageTitle);
+		parameters.overlapAllowed=Prefs.get(PREFS_KEY+"overlapAllowed", parameters.overlapAllowed);
+		parameters.nPixels=(int)Prefs.get(PREFS_KEY+"nPixels", parameters.nPixels);
+		parameters.growthMethod=Prefs.get(PREFS_KEY+"growthMethod", parameters.growthMethod);
+		parameters.connectivity=(int)Prefs.get(PREFS_KEY+"connectivity", parameters.connectivity);
+		parameters.shape=(int)Prefs.get(PREFS_KEY+"shape", parameters.shape);
+		if(parameters.shape<0 || parameters.shape>=StructuringElement.shapeNames.length)
+		{
+			parameters.shape=StructuringElement.DISK;
+		}
+		parameters.outlineTolerance=Prefs.get(PREFS_KEY+"outlineTolerance", parameters.outlineTolerance);
+		parameters.guideLevels=Math.max(0, (int)Prefs.get(PREFS_KEY+"guideLevels", parameters.guideLevels));
+		allSlices=Prefs.get(PREFS_KEY+"allSlices", allSlices);
+	}
 
+	/**
+	 * Keep the parameters and image titles chosen for the next time the dialog is used
+	 */
+	protected void savePreferences()
+	{
+		Prefs.set(PREFS_KEY+"allowedMaskTitle", allowedMaskTitle);
+		Prefs.set(PREFS_KEY+"watershedGuideTitle", watershedGuideTitle);
+		Prefs.set(PREFS_KEY+"seedImageTitle", seedImageTitle);
+		Prefs.set(PREFS_KEY+"overlapAllowed", parameters.overlapAllowed);
+		Prefs.set(PREFS_KEY+"nPixels", parameters.nPixels);
+		Prefs.set(PREFS_KEY+"growthMethod", parameters.growthMethod);
+		Prefs.set(PREFS_KEY+"connectivity", parameters.connectivity);
+		Prefs.set(PREFS_KEY+"shape", parameters.shape);
+		Prefs.set(PREFS_KEY+"outlineTolerance", parameters.outlineTolerance);
+		Prefs.set(PREFS_KEY+"guideLevels", parameters.guideLevels);
+		Prefs.set(PREFS_KEY+"allSlices", allSlices);
 	}
 	
 	/** 
@@ -343,6 +597,8 @@ public class GrowRois implements PlugInFilter {
 
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
+		// Stacks are accepted: run grows the seeds of all slices in one call, in parallel, so that DOES_STACKS,
+		// which would have ImageJ call run slice by slice, is not requested
 		return DOES_8G;
 	}
 
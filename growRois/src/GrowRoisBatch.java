@@ -0,0 +1,659 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+import ij.io.RoiDecoder;
+import ij.io.RoiEncoder;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Growth of seed ROIs without the graphical user interface of ImageJ: no ROI manager, windows or dialogs are
+ * used, so that this can run on headless machines, for instance in batch jobs. The seeds are given as ROIs or
+ * as a label image, and the grown regions are returned as ROIs or as a label image. The command line entry
+ * point {@link #main(String[])} reads the inputs from files and writes the results to files; the growth itself
+ * is carried out by a {@link GrowthEngine}
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GrowRoisBatch {
+
+	/** Short names of the growth methods for the command line, in the order of {@link GrowthParameters#growthMethods} */
+	public static final String[] methodKeys = {"polygon", "labelmap", "distance", "geodesic"};
+
+	/**
+	 * Draw ROIs into a label image, ROI i receiving label i+1; where ROIs overlap, the later one is kept
+	 * @param rois The ROIs; null elements are skipped, their label remaining unused
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return The label image, 16-bit for up to 65535 ROIs, 32-bit otherwise
+	 */
+	public static ImageProcessor toLabelImage(Roi[] rois, int width, int height)
+	{
+		ImageProcessor labels;
+		if(rois.length<=65535)
+		{
+			labels = new ShortProcessor(width, height);
+		}
+		else
+		{
+			labels = new FloatProcessor(width, height);
+		}
+		for(int index=0; index<rois.length; index++)
+		{
+			if(rois[index]!=null)
+			{
+				labels.setValue(index+1);
+				labels.fill(rois[index]);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Convert a label map into a label image
+	 * @param map The label map
+	 * @return The label image, 16-bit for up to 65535 labels, 32-bit otherwise
+	 */
+	public static ImageProcessor toLabelImage(LabelMap map)
+	{
+		ImageProcessor labels;
+		if(map.nLabels<=65535)
+		{
+			labels = new ShortProcessor(map.width, map.height);
+		}
+		else
+		{
+			labels = new FloatProcessor(map.width, map.height);
+		}
+		for(int index=0; index<map.labels.length; index++)
+		{
+			labels.setf(index, map.labels[index]);
+		}
+		return labels;
+	}
+
+	/**
+	 * Read ROIs from a .roi file or a .zip file of ROIs, as saved by the ROI manager
+	 * @param path Path of the file
+	 * @return The ROIs
+	 * @throws IOException If the file cannot be read
+	 */
+	public static Roi[] readRois(String path) throws IOException
+	{
+		if(!path.toLowerCase().endsWith(".zip"))
+		{
+			Roi roi = new RoiDecoder(path).getRoi();
+			if(roi==null)
+			{
+				throw new IOException("No ROI in "+path);
+			}
+			return new Roi[] {roi};
+		}
+		ArrayList<Roi> rois = new ArrayList<Roi>();
+		ZipInputStream in = new ZipInputStream(new FileInputStream(path));
+		try
+		{
+			byte[] buffer = new byte[8192];
+			ZipEntry entry;
+			while((entry=in.getNextEntry())!=null)
+			{
+				String name=entry.getName();
+				if(!name.endsWith(".roi"))
+				{
+					continue;
+				}
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				int len;
+				while((len=in.read(buffer))>0)
+				{
+					bytes.write(buffer, 0, len);
+				}
+				Roi roi = new RoiDecoder(bytes.toByteArray(), name).getRoi();
+				if(roi!=null)
+				{
+					rois.add(roi);
+				}
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return rois.toArray(new Roi[rois.size()]);
+	}
+
+	/**
+	 * Write ROIs to a .zip file, which can be opened by the ROI manager
+	 * @param rois The ROIs; ROIs without a name are named by their position
+	 * @param path Path of the file
+	 * @throws IOException If the file cannot be written
+	 */
+	public static void writeRois(Roi[] rois, String path) throws IOException
+	{
+		ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+		DataOutputStream out = new DataOutputStream(zos);
+		try
+		{
+			RoiEncoder encoder = new RoiEncoder(out);
+			for(int index=0; index<rois.length; index++)
+			{
+				String name=rois[index].getName();
+				if(name==null)
+				{
+					name="GR_"+RoiLogics.intToString(index, 3);
+				}
+				zos.putNextEntry(new ZipEntry(name+".roi"));
+				encoder.write(rois[index]);
+				out.flush();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * Open an image file and return its slices
+	 * @param path Path of the image, null for none
+	 * @return The slices, a single one for a plain image; null if no path is given
+	 * @throws IOException If the image cannot be opened
+	 */
+	protected static ImageStack openStack(String path) throws IOException
+	{
+		if(path==null)
+		{
+			return null;
+		}
+		// ImageJ resolves relative paths against its own directory rather than the working directory
+		ImagePlus imp = IJ.openImage(new File(path).getAbsolutePath());
+		if(imp==null)
+		{
+			throw new IOException("Cannot open image "+path);
+		}
+		return imp.getStack();
+	}
+
+	/**
+	 * Get the growth method for a name from {@link #methodKeys} or {@link GrowthParameters#growthMethods}
+	 * @param name The name, case is ignored
+	 * @return The growth method, one of {@link GrowthParameters#growthMethods}
+	 */
+	public static String methodFromName(String name)
+	{
+		for(int index=0; index<methodKeys.length; index++)
+		{
+			if(methodKeys[index].equalsIgnoreCase(name) || GrowthParameters.growthMethods[index].equalsIgnoreCase(name))
+			{
+				return GrowthParameters.growthMethods[index];
+			}
+		}
+		throw new IllegalArgumentException("Unknown growth method "+name);
+	}
+
+	/**
+	 * Print the command line usage
+	 */
+	protected static void printUsage()
+	{
+		System.err.println("Usage: java -Djava.awt.headless=true -cp ij.jar:growRois_.jar GrowRoisBatch [options]\n"
+				+ "  --seeds <file>        Seed ROIs (.roi or .zip) or seed label image or stack (.tif);\n"
+				+ "                        in a stack, each slice is grown with its own seeds\n"
+				+ "  --points <file>       Instead of --seeds, point seeds from a text file, x and y in the first two\n"
+				+ "                        columns; grown without overlap on the first slice of the image, mask or guide\n"
+				+ "  --image <file>        Image giving the size, when the seeds are ROIs without mask or guide\n"
+				+ "  --mask <file>         Image with allowed pixels (non-zero)\n"
+				+ "  --guide <file>        Greyscale image for watershed guiding\n"
+				+ "  --components          Take the connected components of the seed image as seeds, for a binary\n"
+				+ "                        image or a label image with labels in several parts\n"
+				+ "  --levels <n>          Watershed levels, 0 for the native levels of the guide (default 256);\n"
+				+ "                        the polygon method uses at most 256\n"
+				+ "  --pixels <n>          Pixels to grow (default 1)\n"
+				+ "  --method <name>       polygon, labelmap, distance or geodesic (default polygon)\n"
+				+ "  --connectivity <n>    8 or 4 (default 8); 26, 18 or 6 with --3d (default 26)\n"
+				+ "  --shape <name>        disk, square or diamond, for distance and geodesic (default disk)\n"
+				+ "  --overlap             Allow overlap between ROIs\n"
+				+ "  --3d                  Grow a seed label stack in three dimensions, without overlap\n"
+				+ "  --z-ratio <r>         With --3d, ratio of the slice spacing to the pixel size (default 1)\n"
+				+ "  --tile <n>            Grow a seed label image tile by tile, with tiles of n x n pixels streamed\n"
+				+ "                        from uncompressed TIFF files; labelmap method only. A guide adds a margin of\n"
+				+ "                        --pixels times the number of levels around each tile\n"
+				+ "  --memory <MB>         With --tile, memory for the tiles grown at the same time (default half the heap)\n"
+				+ "  --out-raw <file>      Write the labels as raw little-endian 32-bit integers into a memory-mapped\n"
+				+ "                        file, which other programs can map without decoding; labelmap method only.\n"
+				+ "                        Without --tile, the seeds are grown in place in the file, outside the Java\n"
+				+ "                        heap, without guide\n"
+				+ "  --tolerance <pixels>  Outline tolerance (default 0)\n"
+				+ "  --out-rois <file>     Write the grown ROIs to a .zip file\n"
+				+ "  --out-labels <file>   Write the grown regions as a label image (.tif)");
+	}
+
+	/**
+	 * Grow tile by tile into a memory-mapped file of raw labels
+	 * @param growth The tiled growth
+	 * @param seedPath Path of the label image of the seeds, an uncompressed TIFF file
+	 * @param maskPath Path of the mask, an uncompressed TIFF file of the same size; null to allow all pixels
+	 * @param guidePath Path of the watershed guide, an uncompressed TIFF file of the same size; null for none
+	 * @param rawOutPath Path of the raw labels written, replaced if it exists
+	 * @throws IOException If a file cannot be read or written, or the mask or the guide differs in size from
+	 * the seeds
+	 */
+	public static void growToRaw(TiledGrowth growth, String seedPath, String maskPath, String guidePath, String rawOutPath) throws IOException
+	{
+		TiffRegionReader seeds = new TiffRegionReader(seedPath);
+		TiffRegionReader mask=null;
+		TiffRegionReader guide=null;
+		OffHeapLabels out=null;
+		try
+		{
+			mask=TiledGrowth.openMatching(maskPath, seeds, "mask");
+			guide=TiledGrowth.openMatching(guidePath, seeds, "guide");
+			new File(rawOutPath).delete();
+			out = new OffHeapLabels(rawOutPath, seeds.width, seeds.height);
+			growth.grow(seeds, mask, guide, out, null);
+		}
+		finally
+		{
+			seeds.close();
+			if(mask!=null)
+			{
+				mask.close();
+			}
+			if(guide!=null)
+			{
+				guide.close();
+			}
+			if(out!=null)
+			{
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Grow the seeds of a label image in place in a memory-mapped file of raw labels, on a {@link LabelMap} held
+	 * outside the Java heap together with its masks, so that the image is limited neither by the heap nor by the
+	 * 2^31 elements of a Java array. The seeds and the mask are read band of rows by band of rows
+	 * @param parameters The parameters; the seeds grow by nPixels with the labelmap method, on nThreads threads
+	 * @param seedPath Path of the label image of the seeds, an uncompressed TIFF file
+	 * @param maskPath Path of the mask, an uncompressed TIFF file of the same size; null to allow all pixels
+	 * @param rawOutPath Path of the raw labels written, replaced if it exists
+	 * @throws IOException If a file cannot be read or written, or the mask differs in size from the seeds
+	 */
+	public static void growInPlace(GrowthParameters parameters, String seedPath, String maskPath, String rawOutPath) throws IOException
+	{
+		TiffRegionReader seeds = new TiffRegionReader(seedPath);
+		TiffRegionReader mask=null;
+		OffHeapLabels labels=null;
+		try
+		{
+			mask=TiledGrowth.openMatching(maskPath, seeds, "mask");
+			new File(rawOutPath).delete();
+			labels = new OffHeapLabels(rawOutPath, seeds.width, seeds.height);
+			LabelMap map = new LabelMap(labels);
+			BitMask allowed=(mask==null) ? null : BitMask.offHeap(seeds.width, seeds.height);
+			int rows=Math.max(1, TiledGrowth.SCAN_PIXELS/Math.max(1, seeds.width));
+			for(int y=0; y<seeds.height; y+=rows)
+			{
+				Rectangle band = new Rectangle(0, y, seeds.width, Math.min(rows, seeds.height-y));
+				int[] bandLabels=seeds.readLabels(band);
+				labels.write(bandLabels, band.width, 0, y, band);
+				for(int index=0; index<bandLabels.length; index++)
+				{
+					map.nLabels=Math.max(map.nLabels, bandLabels[index]);
+				}
+				if(allowed!=null)
+				{
+					allowed.setRows(mask.readMask(band), y);
+				}
+			}
+			map.setAllowedMask(allowed);
+			map.setConnectivity(parameters.connectivity);
+			map.setThreads(parameters.nThreads);
+			map.grow(parameters.nPixels, null);
+		}
+		finally
+		{
+			seeds.close();
+			if(mask!=null)
+			{
+				mask.close();
+			}
+			if(labels!=null)
+			{
+				labels.close();
+			}
+		}
+	}
+
+	/**
+	 * Grow point seeds read from a text file, without overlap, and write the results
+	 * @param pointsPath Path of the text file of the points, see {@link PointSeeds#fromCsv(String, int, int)}
+	 * @param imageStack Image giving the size, can be null
+	 * @param allowedStack Mask of the accessible pixels, its first slice being used; null to allow all pixels
+	 * @param guideStack Greyscale watershed guide, its first slice being used; null for none
+	 * @param parameters The parameters
+	 * @param roiOutPath Path of the .zip file of grown ROIs written, null for none
+	 * @param labelOutPath Path of the label image written, null for none
+	 * @throws IOException If a file cannot be read or written, or the image size is unknown
+	 */
+	public static void growPoints(String pointsPath, ImageStack imageStack, ImageStack allowedStack, ImageStack guideStack, GrowthParameters parameters, String roiOutPath, String labelOutPath) throws IOException
+	{
+		ImageStack sizeStack=imageStack;
+		if(sizeStack==null) { sizeStack=allowedStack; }
+		if(sizeStack==null) { sizeStack=guideStack; }
+		if(sizeStack==null)
+		{
+			throw new IOException("The image size is unknown, give an image, a mask or a guide");
+		}
+		PointSeeds seeds=PointSeeds.fromCsv(pointsPath, sizeStack.getWidth(), sizeStack.getHeight());
+		if(seeds.getOutsideCount()>0)
+		{
+			System.err.println(seeds.getOutsideCount()+" points outside the image were dropped");
+		}
+		ImageProcessor allowedProcessor=(allowedStack==null) ? null : allowedStack.getProcessor(1);
+		ImageProcessor guideProcessor=(guideStack==null) ? null : guideStack.getProcessor(1);
+		LabelMap map=new GrowthEngine(parameters, allowedProcessor, guideProcessor).growPoints(seeds, null);
+		if(roiOutPath!=null)
+		{
+			Roi[] rois=map.toRois();
+			ArrayList<Roi> present = new ArrayList<Roi>();
+			for(int index=0; index<rois.length; index++)
+			{
+				if(rois[index]!=null)
+				{
+					Roi roi=RoiLogics.simplifyRoi(rois[index], parameters.outlineTolerance);
+					roi.setName("GR_"+RoiLogics.intToString(index, 3));
+					present.add(roi);
+				}
+			}
+			writeRois(present.toArray(new Roi[present.size()]), roiOutPath);
+		}
+		if(labelOutPath!=null && !new FileSaver(new ImagePlus("labels", toLabelImage(map))).saveAsTiff(labelOutPath))
+		{
+			throw new IOException("Cannot write "+labelOutPath);
+		}
+	}
+
+	/**
+	 * Command line entry point: read seeds, mask and guide from files, grow, and write the results to files
+	 * @param args Command line arguments, see {@link #printUsage()}
+	 */
+	public static void main(String[] args)
+	{
+		String seedPath=null;
+		String pointsPath=null;
+		String imagePath=null;
+		String maskPath=null;
+		String guidePath=null;
+		String roiOutPath=null;
+		String labelOutPath=null;
+		String rawOutPath=null;
+		GrowthParameters parameters = new GrowthParameters();
+		boolean volume=false;
+		boolean components=false;
+		int tileSize=0;
+		boolean methodGiven=false;
+		long memoryBudget=Runtime.getRuntime().maxMemory()/2;
+		int connectivity=26;
+		double zRatio=1;
+		try
+		{
+			for(int index=0; index<args.length; index++)
+			{
+				String arg=args[index];
+				if(arg.equals("--overlap"))
+				{
+					parameters.overlapAllowed=true;
+					continue;
+				}
+				if(arg.equals("--3d"))
+				{
+					volume=true;
+					continue;
+				}
+				if(arg.equals("--components"))
+				{
+					components=true;
+					continue;
+				}
+				if(index+1>=args.length)
+				{
+					throw new IllegalArgumentException("Missing value for "+arg);
+				}
+				String value=args[++index];
+				if(arg.equals("--seeds")) { seedPath=value; }
+				else if(arg.equals("--points")) { pointsPath=value; }
+				else if(arg.equals("--image")) { imagePath=value; }
+				else if(arg.equals("--mask")) { maskPath=value; }
+				else if(arg.equals("--guide")) { guidePath=value; }
+				else if(arg.equals("--out-rois")) { roiOutPath=value; }
+				else if(arg.equals("--out-labels")) { labelOutPath=value; }
+				else if(arg.equals("--out-raw")) { rawOutPath=value; }
+				else if(arg.equals("--pixels")) { parameters.nPixels=Math.max(1, Integer.parseInt(value)); }
+				else if(arg.equals("--method")) { parameters.growthMethod=methodFromName(value); methodGiven=true; }
+				else if(arg.equals("--connectivity")) { connectivity=Integer.parseInt(value); }
+				else if(arg.equals("--z-ratio")) { zRatio=Double.parseDouble(value); }
+				else if(arg.equals("--levels")) { parameters.guideLevels=Math.max(0, Integer.parseInt(value)); }
+				else if(arg.equals("--tile")) { tileSize=Integer.parseInt(value); }
+				else if(arg.equals("--memory")) { memoryBudget=Long.parseLong(value)<<20; }
+				else if(arg.equals("--shape")) { parameters.shape=shapeFromArgument(value); }
+				else if(arg.equals("--tolerance")) { parameters.outlineTolerance=Math.max(0, Double.parseDouble(value)); }
+				else { throw new IllegalArgumentException("Unknown option "+arg); }
+			}
+			if((seedPath==null && pointsPath==null) || (roiOutPath==null && labelOutPath==null && rawOutPath==null))
+			{
+				throw new IllegalArgumentException("Seeds and at least one output are required");
+			}
+			if(pointsPath!=null && (seedPath!=null || volume || tileSize>0 || components || rawOutPath!=null))
+			{
+				throw new IllegalArgumentException("Point seeds replace --seeds and are grown in two dimensions, without --3d, --tile or --components");
+			}
+			if(pointsPath!=null && parameters.overlapAllowed)
+			{
+				throw new IllegalArgumentException("Point seeds are grown without overlap, on a label map; --overlap does not apply");
+			}
+			if(volume && (roiOutPath!=null || seedPath.toLowerCase().endsWith(".roi") || seedPath.toLowerCase().endsWith(".zip")))
+			{
+				throw new IllegalArgumentException("Growth in three dimensions takes a seed label stack and writes a label stack");
+			}
+			if(tileSize>0 && (volume || parameters.overlapAllowed || roiOutPath!=null
+					|| seedPath.toLowerCase().endsWith(".roi") || seedPath.toLowerCase().endsWith(".zip")))
+			{
+				throw new IllegalArgumentException("Tiled growth takes a seed label image, no overlap, and writes a label image");
+			}
+			if(rawOutPath!=null && (labelOutPath!=null || roiOutPath!=null || volume || parameters.overlapAllowed
+					|| seedPath.toLowerCase().endsWith(".roi") || seedPath.toLowerCase().endsWith(".zip")))
+			{
+				throw new IllegalArgumentException("Raw output takes a seed label image and no overlap, instead of a label image");
+			}
+			if(rawOutPath!=null && tileSize<=0 && guidePath!=null)
+			{
+				throw new IllegalArgumentException("Growth in place in the raw output takes no guide; use --tile for a guide");
+			}
+			if(tileSize>0 || rawOutPath!=null)
+			{
+				// Tiles and raw labels are grown as label maps, the only method that can be split into tiles or
+				// run on labels held off the heap
+				if(methodGiven && !parameters.growthMethod.equals(GrowthParameters.growthMethods[1]))
+				{
+					throw new IllegalArgumentException("Tiled growth and raw output use the labelmap method only");
+				}
+				parameters.growthMethod=GrowthParameters.growthMethods[1];
+			}
+			if(components && (volume || tileSize>0 || rawOutPath!=null || seedPath.toLowerCase().endsWith(".roi") || seedPath.toLowerCase().endsWith(".zip")))
+			{
+				throw new IllegalArgumentException("Connected components are labelled in a seed image, slice by slice, without --3d, --tile or --out-raw");
+			}
+			parameters.connectivity=(connectivity==4) ? 4 : 8;
+		}
+		catch(IllegalArgumentException e)
+		{
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(2);
+			return;
+		}
+
+		try
+		{
+			if(tileSize>0)
+			{
+				// The images are streamed tile by tile and never opened as a whole
+				TiledGrowth growth = new TiledGrowth(parameters, tileSize, memoryBudget);
+				if(rawOutPath==null)
+				{
+					growth.grow(seedPath, maskPath, guidePath, labelOutPath, null);
+					return;
+				}
+				growToRaw(growth, seedPath, maskPath, guidePath, rawOutPath);
+				return;
+			}
+			if(rawOutPath!=null)
+			{
+				// The labels and the mask are held off the heap, the images are streamed band by band
+				growInPlace(parameters, seedPath, maskPath, rawOutPath);
+				return;
+			}
+			ImageStack allowedStack=openStack(maskPath);
+			ImageStack guideStack=openStack(guidePath);
+			if(volume)
+			{
+				ImageStack grown=RoiLogics.growLabelVolume(openStack(seedPath), allowedStack, guideStack, parameters.guideLevels, parameters.nPixels, connectivity, zRatio, parameters.nThreads, null);
+				if(!new FileSaver(new ImagePlus("labels", grown)).saveAsTiff(labelOutPath))
+				{
+					throw new IOException("Cannot write "+labelOutPath);
+				}
+				return;
+			}
+			if(pointsPath!=null)
+			{
+				growPoints(pointsPath, openStack(imagePath), allowedStack, guideStack, parameters, roiOutPath, labelOutPath);
+				return;
+			}
+			ImageStack sizeStack;
+			Roi[][] grown;
+			if(seedPath.toLowerCase().endsWith(".roi") || seedPath.toLowerCase().endsWith(".zip"))
+			{
+				sizeStack=openStack(imagePath);
+				if(sizeStack==null) { sizeStack=allowedStack; }
+				if(sizeStack==null) { sizeStack=guideStack; }
+				if(sizeStack==null)
+				{
+					throw new IOException("The image size is unknown, give an image, a mask or a guide");
+				}
+				Roi[] rois=readRois(seedPath);
+				Polygon[][] seeds=new Polygon[sizeStack.getSize()][];
+				String[][] names=new String[sizeStack.getSize()][];
+				StackGrowth.seedsBySlice(rois, seeds, names);
+				grown=new StackGrowth(parameters, seeds.length, allowedStack, guideStack).growRois(seeds, sizeStack.getWidth(), sizeStack.getHeight(), null);
+				for(int slice=1; slice<=grown.length; slice++)
+				{
+					for(int index=0; index<grown[slice-1].length; index++)
+					{
+						grown[slice-1][index].setName(names[slice-1][index]);
+					}
+				}
+			}
+			else
+			{
+				sizeStack=openStack(seedPath);
+				StackGrowth growth = new StackGrowth(parameters, sizeStack.getSize(), allowedStack, guideStack);
+				if(components)
+				{
+					grown=growth.growComponents(sizeStack, null);
+				}
+				else
+				{
+					grown=growth.growLabelRois(sizeStack, null);
+				}
+			}
+			int width=sizeStack.getWidth();
+			int height=sizeStack.getHeight();
+
+			ArrayList<Roi> all = new ArrayList<Roi>();
+			ImageStack labels = new ImageStack(width, height);
+			for(int slice=1; slice<=grown.length; slice++)
+			{
+				for(int index=0; index<grown[slice-1].length; index++)
+				{
+					Roi roi=grown[slice-1][index];
+					if(roi==null)
+					{
+						// Label not present in the seeds
+						continue;
+					}
+					String name=roi.getName();
+					if(name==null)
+					{
+						name="GR_"+(grown.length>1 ? RoiLogics.intToString(slice, 4)+"_" : "")+RoiLogics.intToString(index, 3);
+					}
+					roi.setName(name);
+					if(grown.length==1)
+					{
+						roi.setPosition(0);
+					}
+					all.add(roi);
+				}
+				labels.addSlice(toLabelImage(grown[slice-1], width, height));
+			}
+			if(roiOutPath!=null)
+			{
+				writeRois(all.toArray(new Roi[all.size()]), roiOutPath);
+			}
+			if(labelOutPath!=null)
+			{
+				if(!new FileSaver(new ImagePlus("labels", labels)).saveAsTiff(labelOutPath))
+				{
+					throw new IOException("Cannot write "+labelOutPath);
+				}
+			}
+		}
+		catch(IOException e)
+		{
+			System.err.println("growRois: "+e.getMessage());
+			System.exit(1);
+		}
+		catch(IllegalArgumentException e)
+		{
+			// Inputs that do not fit together, such as a mask with the wrong number of slices
+			System.err.println("growRois: "+e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Get the structuring element for a command line argument
+	 * @param value The name of the shape, case is ignored
+	 * @return The shape, see {@link StructuringElement}
+	 */
+	protected static int shapeFromArgument(String value)
+	{
+		for(int shape=0; shape<StructuringElement.shapeNames.length; shape++)
+		{
+			if(StructuringElement.shapeNames[shape].equalsIgnoreCase(value))
+			{
+				return shape;
+			}
+		}
+		throw new IllegalArgumentException("Unknown shape "+value);
+	}
+
+}
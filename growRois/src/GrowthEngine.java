@@ -0,0 +1,282 @@
+import ij.gui.PolygonRoi;
+import ij.gui.ProgressBar;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+
+/**
+ * Growth of seeds with a fixed set of parameters, mask and watershed guide. An engine holds no state shared with
+ * other engines and does not modify its mask and guide, so that several engines can run at the same time in one
+ * JVM, for instance to process several images in parallel
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GrowthEngine {
+
+	/** The parameters, a private copy */
+	protected final GrowthParameters parameters;
+
+	/** Mask of the pixels accessible for growth, null to allow all pixels */
+	protected final ImageProcessor allowedProcessor;
+
+	/** Greyscale watershed guide, first fill low values, then higher; null for none */
+	protected final ImageProcessor guideProcessor;
+
+	/**
+	 * Set up an engine without mask or guide
+	 * @param parameters The parameters; the engine keeps a copy
+	 */
+	public GrowthEngine(GrowthParameters parameters)
+	{
+		this(parameters, null, null);
+	}
+
+	/**
+	 * Set up an engine
+	 * @param parameters The parameters; the engine keeps a copy
+	 * @param allowedProcessor Mask of the pixels accessible for growth, null to allow all pixels
+	 * @param guideProcessor Greyscale watershed guide, null for none
+	 */
+	public GrowthEngine(GrowthParameters parameters, ImageProcessor allowedProcessor, ImageProcessor guideProcessor)
+	{
+		this.parameters=parameters.copy();
+		this.allowedProcessor=allowedProcessor;
+		this.guideProcessor=guideProcessor;
+	}
+
+	/**
+	 * Get a copy of the parameters of the engine
+	 * @return The parameters
+	 */
+	public GrowthParameters getParameters()
+	{
+		return parameters.copy();
+	}
+
+	/**
+	 * Grow polygons with the method chosen
+	 * @param pols The polygons, replaced by the grown ones
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param rois Array receiving the grown regions as ROIs, for the methods working on a label map, which keep
+	 * regions in several parts or with holes; elements not set remain null. Can be null
+	 * @param bp Progress bar, null to show no progress
+	 * @return Number of growth steps carried out, nPixels if the method does not count them
+	 */
+	public int grow(Polygon[] pols, int width, int height, Roi[] rois, ProgressBar bp)
+	{
+		boolean avoidNeighbors = !parameters.overlapAllowed;
+		int nPixels=parameters.nPixels;
+		int connectivity=parameters.connectivity;
+		String growthMethod=parameters.growthMethod;
+		if(guideProcessor==null && growthMethod.equals(GrowthParameters.growthMethods[2]))
+		{
+			// One-shot growth, a watershed guide requires the level-by-level growth instead
+			RoiLogics.growPolygonsDistance(pols, allowedProcessor, avoidNeighbors, nPixels, width, height, DistanceGrowth.DIRECT, parameters.shape, rois, bp);
+		} else if(guideProcessor==null && growthMethod.equals(GrowthParameters.growthMethods[3]))
+		{
+			RoiLogics.growPolygonsDistance(pols, allowedProcessor, avoidNeighbors, nPixels, width, height, DistanceGrowth.GEODESIC, parameters.shape, rois, bp);
+		} else if(guideProcessor==null && parameters.useLabelMap())
+		{
+			return RoiLogics.growPolygonsLabelMap(pols, allowedProcessor, width, height, nPixels, parameters.nThreads, connectivity, rois, bp);
+		} else if(parameters.useLabelMap())
+		{
+			RoiLogics.growPolygonsWatershedLabelMap(pols, allowedProcessor, nPixels, guideProcessor, parameters.guideLevels, connectivity, rois, bp);
+		} else if(guideProcessor==null)
+		{
+			return RoiLogics.growPolygons(pols, allowedProcessor, avoidNeighbors, nPixels, connectivity, bp);
+		} else
+		{
+			RoiLogics.growPolygonsWatershed(pols, allowedProcessor, avoidNeighbors, nPixels, guideProcessor, parameters.guideLevels, connectivity, bp);
+		}
+		return nPixels;
+	}
+
+	/**
+	 * Grow the labels of a label map in place, always without overlap: along the watershed guide if there is one,
+	 * otherwise in one pass for the distance methods and step by step on the map for the other methods
+	 * @param map The label map with the seeds; its mask of accessible pixels and its connectivity are set
+	 * @param bp Progress bar, null to show no progress
+	 * @return Number of growth steps carried out, nPixels if the method does not count them
+	 */
+	public int growMap(LabelMap map, ProgressBar bp)
+	{
+		int nPixels=parameters.nPixels;
+		String growthMethod=parameters.growthMethod;
+		map.setAllowedMask(allowedProcessor);
+		map.setConnectivity(parameters.connectivity);
+		if(guideProcessor!=null)
+		{
+			PriorityFlood.flood(map, guideProcessor, parameters.guideLevels, nPixels, bp);
+		} else if(growthMethod.equals(GrowthParameters.growthMethods[2]))
+		{
+			DistanceGrowth.grow(map, DistanceGrowth.DIRECT, parameters.shape, nPixels, bp);
+		} else if(growthMethod.equals(GrowthParameters.growthMethods[3]))
+		{
+			DistanceGrowth.grow(map, DistanceGrowth.GEODESIC, parameters.shape, nPixels, bp);
+		} else
+		{
+			map.setThreads(parameters.nThreads);
+			return map.grow(nPixels, bp);
+		}
+		return nPixels;
+	}
+
+	/**
+	 * Grow point seeds, always without overlap, see {@link #growMap(LabelMap, ProgressBar)}
+	 * @param seeds The seeds
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown label map, seed k having label k+1
+	 */
+	public LabelMap growPoints(PointSeeds seeds, ProgressBar bp)
+	{
+		LabelMap map=seeds.toLabelMap();
+		growMap(map, bp);
+		return map;
+	}
+
+	/**
+	 * Grow the connected components of a binary or label image, see {@link ConnectedComponents}. The methods
+	 * working on a label map grow the components as they are, keeping their holes and the components lying in
+	 * the holes of others; polygon by polygon growth and growth with overlap start from the outer contours
+	 * @param seedImage Binary or label image of the seeds, 0 is background
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, component i+1 giving ROI i, with the outlines simplified as set in the parameters
+	 */
+	public Roi[] growComponents(ImageProcessor seedImage, ProgressBar bp)
+	{
+		ConnectedComponents components = new ConnectedComponents(seedImage, parameters.connectivity);
+		if(!parameters.useLabelMap())
+		{
+			return growToRois(components.getSeeds(), seedImage.getWidth(), seedImage.getHeight(), bp);
+		}
+		LabelMap map=components.toLabelMap();
+		growMap(map, bp);
+		Roi[] rois=map.toRois();
+		for(int index=0; index<rois.length; index++)
+		{
+			rois[index] = RoiLogics.simplifyRoi(rois[index], parameters.outlineTolerance);
+		}
+		return rois;
+	}
+
+	/**
+	 * Grow polygons and return the grown regions as ROIs, with the outlines simplified as set in the parameters
+	 * @param pols The polygons, replaced by the grown ones
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, in the order of the polygons
+	 */
+	public Roi[] growToRois(Polygon[] pols, int width, int height, ProgressBar bp)
+	{
+		Roi[] rois = new Roi[pols.length];
+		grow(pols, width, height, rois, bp);
+		for(int index=0; index<pols.length; index++)
+		{
+			if(rois[index]==null)
+			{
+				rois[index] = new PolygonRoi(pols[index], Roi.POLYGON);
+			}
+			rois[index] = RoiLogics.simplifyRoi(rois[index], parameters.outlineTolerance);
+		}
+		return rois;
+	}
+
+	/**
+	 * Grow seed ROIs
+	 * @param seeds The seed ROIs, not modified
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return The grown ROIs, with the names of the seeds
+	 */
+	public Roi[] growRois(Roi[] seeds, int width, int height)
+	{
+		Polygon[] pols = new Polygon[seeds.length];
+		for(int index=0; index<seeds.length; index++)
+		{
+			pols[index] = seeds[index].getPolygon();
+		}
+		Roi[] grown = growToRois(pols, width, height, null);
+		for(int index=0; index<seeds.length; index++)
+		{
+			grown[index].setName(seeds[index].getName());
+		}
+		return grown;
+	}
+
+	/**
+	 * Grow seed regions given by a label image. The methods working on a label map grow the labels as they are,
+	 * with all their parts and holes and the labels lying in the holes of others; polygon by polygon growth and
+	 * growth with overlap start from the outer contour of the part of each label containing its topmost-leftmost
+	 * pixel
+	 * @param seedLabels Label image of the seeds, 0 is background
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, element l-1 for label l, with the outlines simplified as set in the parameters;
+	 * null for the labels not present in the seeds
+	 */
+	public Roi[] growLabelRois(ImageProcessor seedLabels, ProgressBar bp)
+	{
+		LabelMap map=LabelMap.fromLabelImage(seedLabels);
+		if(parameters.useLabelMap())
+		{
+			growMap(map, bp);
+			Roi[] rois=map.toRois();
+			for(int index=0; index<rois.length; index++)
+			{
+				if(rois[index]!=null)
+				{
+					rois[index] = RoiLogics.simplifyRoi(rois[index], parameters.outlineTolerance);
+				}
+			}
+			return rois;
+		}
+		Polygon[] traced=map.toPolygons();
+		int nPresent=0;
+		for(int l=0; l<traced.length; l++)
+		{
+			if(traced[l]!=null)
+			{
+				nPresent++;
+			}
+		}
+		Polygon[] pols = new Polygon[nPresent];
+		nPresent=0;
+		for(int l=0; l<traced.length; l++)
+		{
+			if(traced[l]!=null)
+			{
+				pols[nPresent++]=traced[l];
+			}
+		}
+		Roi[] grown=growToRois(pols, map.width, map.height, bp);
+		Roi[] rois = new Roi[traced.length];
+		nPresent=0;
+		for(int l=0; l<traced.length; l++)
+		{
+			if(traced[l]!=null)
+			{
+				rois[l]=grown[nPresent++];
+			}
+		}
+		return rois;
+	}
+
+	/**
+	 * Grow seed regions given by a label image, see {@link #growLabelRois(ImageProcessor, ProgressBar)}
+	 * @param seedLabels Label image of the seeds, 0 is background
+	 * @return Label image of the grown regions, each with the label of its seed
+	 */
+	public ImageProcessor growLabels(ImageProcessor seedLabels)
+	{
+		if(parameters.useLabelMap())
+		{
+			LabelMap map=LabelMap.fromLabelImage(seedLabels);
+			growMap(map, null);
+			return GrowRoisBatch.toLabelImage(map);
+		}
+		return GrowRoisBatch.toLabelImage(growLabelRois(seedLabels, null), seedLabels.getWidth(), seedLabels.getHeight());
+	}
+
+}
@@ -0,0 +1,66 @@
+import ij.Prefs;
+
+/**
+ * Options of a growth run: what the options dialog of the plugin asks for, apart from the images. A growth engine
+ * keeps its own copy, so that changing a parameter object later on does not affect runs already set up
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GrowthParameters {
+
+	/** Available growth methods */
+	public static final String[] growthMethods = {"Polygon by polygon", "Label map", "Distance (one pass)", "Geodesic distance (one pass)"};
+
+	/** Flag indicating whether neighboring ROIs are allowed to overlap */
+	public boolean overlapAllowed=false;
+
+	/** Total number of pixels by which the dilatation should be done */
+	public int nPixels=1;
+
+	/** Growth method, one of {@link #growthMethods} */
+	public String growthMethod=growthMethods[0];
+
+	/** Connectivity of the pixel-by-pixel growth steps, 8 or 4 */
+	public int connectivity=8;
+
+	/** Structuring element for growth in one pass, see {@link StructuringElement} */
+	public int shape=StructuringElement.DISK;
+
+	/** Tolerance in pixels for simplifying the outlines of the grown ROIs, 0 to keep them exact */
+	public double outlineTolerance=0;
+
+	/** Number of watershed levels, 0 for the native levels of the guide, see {@link GuideLevels} */
+	public int guideLevels=GuideLevels.DEFAULT_LEVELS;
+
+	/** Number of threads for the label map growth */
+	public int nThreads=Prefs.getThreads();
+
+	/**
+	 * Make a copy of the parameters
+	 * @return The copy
+	 */
+	public GrowthParameters copy()
+	{
+		GrowthParameters p = new GrowthParameters();
+		p.overlapAllowed=overlapAllowed;
+		p.nPixels=nPixels;
+		p.growthMethod=growthMethod;
+		p.connectivity=connectivity;
+		p.shape=shape;
+		p.outlineTolerance=outlineTolerance;
+		p.guideLevels=guideLevels;
+		p.nThreads=nThreads;
+		return p;
+	}
+
+	/**
+	 * Does the chosen method work on a label map? This is the case for all methods but polygon by polygon growth,
+	 * provided that the ROIs must not overlap
+	 * @return Whether a label map is used
+	 */
+	public boolean useLabelMap()
+	{
+		return !overlapAllowed && !growthMethod.equals(growthMethods[0]);
+	}
+
+}
@@ -0,0 +1,220 @@
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+
+import java.awt.Polygon;
+import java.util.Arrays;
+
+/**
+ * Reusable buffers for growing a polygon by one pixel with {@link RoiLogics#growPolygon(java.awt.Polygon, ij.process.ImageProcessor, java.awt.Polygon[], int)}.
+ * Each thread has its own set, which grows to the largest crop seen so far and is then reused, so that
+ * growing many polygons over many steps does not allocate new masks, fillers and tracers for every call
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GrowthScratch {
+
+	/** The buffers of each thread */
+	protected static final ThreadLocal<GrowthScratch> scratch = new ThreadLocal<GrowthScratch>()
+	{
+		@Override
+		protected GrowthScratch initialValue()
+		{
+			return new GrowthScratch();
+		}
+	};
+
+	/** Rasterizer for the polygon and its neighbors */
+	public PolygonRasterizer rasterizer = new PolygonRasterizer();
+
+	/** Mask of the polygon before growth */
+	public BitMask oldMask = new BitMask(64, 64);
+
+	/** Mask of the polygon after growth */
+	public BitMask grownMask = new BitMask(64, 64);
+
+	/** Mask of the allowed pixels */
+	public BitMask allowedMask = new BitMask(64, 64);
+
+	/** Mask of the pixels occupied by other polygons */
+	public BitMask obstacles = new BitMask(64, 64);
+
+	/** Image for hole filling and tracing, the crop occupies its top left corner and the rest is black */
+	protected ByteProcessor traceProcessor=null;
+
+	/** Width of the part of {@link #traceProcessor} written by the last call */
+	protected int usedWidth=0;
+
+	/** Height of the part of {@link #traceProcessor} written by the last call */
+	protected int usedHeight=0;
+
+	/** Wand tracing on {@link #traceProcessor} */
+	protected Wand wand=null;
+
+	/** Stack of pixels for the hole filling */
+	protected IntList stack = new IntList();
+
+	/**
+	 * Get the buffers of the current thread
+	 * @return The buffers
+	 */
+	public static GrowthScratch get()
+	{
+		return scratch.get();
+	}
+
+	/**
+	 * Write a mask to the top left corner of the tracing image, filling its holes
+	 * @param mask The mask
+	 * @return The tracing image, valid until the next call from the same thread
+	 */
+	protected ByteProcessor toTraceProcessor(BitMask mask)
+	{
+		if(traceProcessor==null || traceProcessor.getWidth()<mask.width || traceProcessor.getHeight()<mask.height)
+		{
+			int width=mask.width;
+			int height=mask.height;
+			if(traceProcessor!=null)
+			{
+				width=Math.max(width, traceProcessor.getWidth());
+				height=Math.max(height, traceProcessor.getHeight());
+			}
+			// Leave room for growth, so that the buffer is not reallocated at every step
+			traceProcessor = new ByteProcessor(width+16, height+16);
+			wand = new Wand(traceProcessor);
+			usedWidth=0;
+			usedHeight=0;
+		}
+		byte[] pixels=(byte[])traceProcessor.getPixels();
+		int stride=traceProcessor.getWidth();
+		// Clear what the last call wrote outside the new crop, so that the crop has a black surrounding
+		for(int y=0; y<usedHeight; y++)
+		{
+			if(y>=mask.height)
+			{
+				Arrays.fill(pixels, y*stride, y*stride+usedWidth, (byte)0);
+			}
+			else if(usedWidth>mask.width)
+			{
+				Arrays.fill(pixels, y*stride+mask.width, y*stride+usedWidth, (byte)0);
+			}
+		}
+		usedWidth=mask.width;
+		usedHeight=mask.height;
+		mask.toBytes(pixels, stride);
+		fillHoles(pixels, stride, mask.width, mask.height);
+		return traceProcessor;
+	}
+
+	/**
+	 * Fill the holes of a mask and trace the outline of the region containing a starting point, giving the same polygon
+	 * as {@link RoiLogics#fillHoles(ij.process.ImageProcessor)} followed by {@link RoiLogics#polygonFromMask(ByteProcessor, int, int)}
+	 * on an image of the size of the mask
+	 * @param mask The mask
+	 * @param xstart Starting point (needs to be set in the mask)
+	 * @param ystart Starting point (needs to be set in the mask)
+	 * @return The outline, null if the starting point is not set
+	 */
+	public Polygon traceOutline(BitMask mask, int xstart, int ystart)
+	{
+		ByteProcessor ip=toTraceProcessor(mask);
+		byte[] pixels=(byte[])ip.getPixels();
+		int stride=ip.getWidth();
+		if(pixels[ystart*stride+xstart]==0)
+		{
+			return null;
+		}
+		// In legacy mode, the wand decides between 4- and 8-connected tracing from the pixels in a window clipped
+		// to the image. The decision is taken here for the size of the mask, since the tracing image is larger
+		int x=xstart;
+		while(x<mask.width && pixels[ystart*stride+x]!=0)
+		{
+			x++;
+		}
+		int count=0;
+		int inside=0;
+		for(int xw=x; xw<=Math.min(x+10, mask.width-1); xw++)
+		{
+			for(int yw=Math.max(0, ystart-5); yw<=Math.min(ystart+5, mask.height-1); yw++)
+			{
+				count++;
+				if(pixels[yw*stride+xw]!=0)
+				{
+					inside++;
+				}
+			}
+		}
+		boolean line=(double)inside/count<0.25;
+		Wand.setAllPoints(true);
+		wand.autoOutline(xstart, ystart, 0.0, line ? Wand.EIGHT_CONNECTED : Wand.FOUR_CONNECTED);
+
+		return RoiLogics.removeCollinearVertices(wand.xpoints, wand.ypoints, wand.npoints);
+	}
+
+	/**
+	 * Fill the holes of a 0/255 mask in a part of a byte array: the black pixels not 4-connected to the border of the part
+	 * become white, as for {@link RoiLogics#fillHoles(ij.process.ImageProcessor)}
+	 * @param pixels The pixels
+	 * @param stride Row length of the array
+	 * @param width Width of the part
+	 * @param height Height of the part
+	 */
+	protected void fillHoles(byte[] pixels, int stride, int width, int height)
+	{
+		final byte outside=127;
+		stack.clear();
+		for(int y=0; y<height; y++)
+		{
+			push(pixels, y*stride, outside);
+			push(pixels, y*stride+width-1, outside);
+		}
+		for(int x=0; x<width; x++)
+		{
+			push(pixels, x, outside);
+			push(pixels, (height-1)*stride+x, outside);
+		}
+		while(!stack.isEmpty())
+		{
+			int index=stack.data[--stack.size];
+			int x=index%stride;
+			if(x>0)
+			{
+				push(pixels, index-1, outside);
+			}
+			if(x<width-1)
+			{
+				push(pixels, index+1, outside);
+			}
+			if(index>=stride)
+			{
+				push(pixels, index-stride, outside);
+			}
+			if(index<(height-1)*stride)
+			{
+				push(pixels, index+stride, outside);
+			}
+		}
+		for(int y=0; y<height; y++)
+		{
+			for(int index=y*stride; index<y*stride+width; index++)
+			{
+				pixels[index] = (pixels[index]==outside) ? 0 : (byte)255;
+			}
+		}
+	}
+
+	/**
+	 * Mark a black pixel as outside and queue it
+	 * @param pixels The pixels
+	 * @param index Index of the pixel
+	 * @param outside Value marking the outside
+	 */
+	protected void push(byte[] pixels, int index, byte outside)
+	{
+		if(pixels[index]==0)
+		{
+			pixels[index]=outside;
+			stack.add(index);
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+import ij.ImageStack;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+/**
+ * Grey levels of a watershed guide, computed once for all the levels of a watershed. By default, there are
+ * {@link #DEFAULT_LEVELS} levels: 8-bit guides keep their grey values, while 16- and 32-bit images are converted to
+ * 8 bits over their display range, as ImageJ shows them, and stacks are scaled linearly between their minimum and
+ * maximum. Another number of levels scales any guide linearly between its minimum and maximum. Native levels can be
+ * chosen instead: the grey values above the minimum for 16-bit guides, and the rank among the distinct values for
+ * 32-bit guides, so that no detail of the guide is lost. Since the growth steps apply to each level, native levels
+ * of 16- and 32-bit guides let the seeds grow much further than the default levels with the same number of steps.
+ * Pixels without level (NaN in 32-bit guides) get {@link #OUTSIDE} and are never reached
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GuideLevels {
+
+	/** Default number of levels, the grey values of 8-bit guides */
+	public static final int DEFAULT_LEVELS=256;
+
+	/** Level of the pixels never reached by the watershed */
+	public static final int OUTSIDE=Integer.MAX_VALUE;
+
+	/** Width of the guide */
+	public final int width;
+
+	/** Height of the guide */
+	public final int height;
+
+	/** The level of each pixel, [slice][y*width+x] */
+	public final int[][] level;
+
+	/** First level of the watershed */
+	public final int lower;
+
+	/** Last level of the watershed */
+	public final int upper;
+
+	/** Number of levels a pixel can have, the largest level plus one */
+	public final int nBuckets;
+
+	/**
+	 * Compute the levels
+	 * @param width Width of the guide
+	 * @param height Height of the guide
+	 * @param level The level of each pixel
+	 * @param lower First level of the watershed
+	 * @param upper Last level of the watershed
+	 * @param nBuckets Number of levels a pixel can have
+	 */
+	protected GuideLevels(int width, int height, int[][] level, int lower, int upper, int nBuckets)
+	{
+		this.width=width;
+		this.height=height;
+		this.level=level;
+		this.lower=lower;
+		this.upper=upper;
+		this.nBuckets=nBuckets;
+	}
+
+	/**
+	 * Compute the levels of a guide image. With the default levels, 16- and 32-bit guides are converted to 8 bits
+	 * over their display range; for the 256 levels of an 8-bit guide, the watershed runs over the display range, as
+	 * the guide is shown
+	 * @param guide Greyscale guide, 8-, 16- or 32-bit
+	 * @param nLevels Number of levels, 0 for the native levels; a number of levels not smaller than the native
+	 * one keeps the native levels
+	 * @return The levels
+	 */
+	public static GuideLevels fromProcessor(ImageProcessor guide, int nLevels)
+	{
+		if(nLevels==DEFAULT_LEVELS && !(guide instanceof ByteProcessor))
+		{
+			guide=guide.convertToByteProcessor(true);
+		}
+		ImageStack stack = new ImageStack(guide.getWidth(), guide.getHeight());
+		stack.addSlice(guide);
+		GuideLevels levels=fromStack(stack, nLevels);
+		if(guide instanceof ByteProcessor && levels.nBuckets==256)
+		{
+			int lower=Math.max(0, (int)Math.floor(guide.getMin()));
+			int upper=Math.min(255, (int)Math.floor(guide.getMax()));
+			return new GuideLevels(levels.width, levels.height, levels.level, lower, upper, 256);
+		}
+		return levels;
+	}
+
+	/**
+	 * Compute the levels of a guide stack, over the whole stack; the watershed runs from the lowest to the
+	 * highest level present
+	 * @param guide Greyscale guide stack, 8-, 16- or 32-bit
+	 * @param nLevels Number of levels, 0 for the native levels; a number of levels not smaller than the native
+	 * one keeps the native levels
+	 * @return The levels
+	 */
+	public static GuideLevels fromStack(ImageStack guide, int nLevels)
+	{
+		int depth=guide.getSize();
+		GuideScale scale = new GuideScale(guide.getBitDepth(), nLevels);
+		for(int z=0; z<depth; z++)
+		{
+			scale.add(guide.getProcessor(z+1));
+		}
+
+		int[][] level = new int[depth][];
+		for(int z=0; z<depth; z++)
+		{
+			ImageProcessor ip=guide.getProcessor(z+1);
+			level[z] = new int[ip.getPixelCount()];
+			for(int index=0; index<level[z].length; index++)
+			{
+				level[z][index]=scale.level(ip.getf(index));
+			}
+		}
+		return new GuideLevels(guide.getWidth(), guide.getHeight(), level, scale.getLower(), scale.getUpper(), scale.getBucketCount());
+	}
+
+	/**
+	 * Sort the pixels of a slice by level, with a counting sort
+	 * @param z The slice, 0 for a single image
+	 * @return The indices of the pixels with a level, from the lowest level to the highest
+	 */
+	public int[] sortedPixels(int z)
+	{
+		int[] l=level[z];
+		int[] start = new int[nBuckets+1];
+		for(int index=0; index<l.length; index++)
+		{
+			if(l[index]!=OUTSIDE)
+			{
+				start[l[index]+1]++;
+			}
+		}
+		for(int b=0; b<nBuckets; b++)
+		{
+			start[b+1]+=start[b];
+		}
+		int[] sorted = new int[start[nBuckets]];
+		for(int index=0; index<l.length; index++)
+		{
+			if(l[index]!=OUTSIDE)
+			{
+				sorted[start[l[index]]++]=index;
+			}
+		}
+		return sorted;
+	}
+
+}
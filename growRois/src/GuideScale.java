@@ -0,0 +1,281 @@
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+
+/**
+ * Mapping of the grey values of a watershed guide to the levels of {@link GuideLevels}, fixed over the whole guide.
+ * The guide is added region by region, so that a guide too large for the memory can be scanned once and then
+ * turned into levels tile by tile, each tile getting the levels it would have in the whole guide. Only the
+ * minimum and the maximum of the guide are kept, and for 32-bit guides with native levels, the distinct values
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class GuideScale {
+
+	/** Bit depth of the guide, 8, 16 or 32 */
+	public final int bitDepth;
+
+	/** Number of levels asked for, 0 for the native levels */
+	public final int nLevels;
+
+	/** Smallest grey value of the guide, NaN excluded */
+	protected double min=Double.MAX_VALUE;
+
+	/** Largest grey value of the guide, NaN excluded */
+	protected double max=-Double.MAX_VALUE;
+
+	/** Distinct values of a 32-bit guide, sorted; null once there are more than nLevels of them */
+	protected float[] values = new float[0];
+
+	/**
+	 * Create an empty scale
+	 * @param bitDepth Bit depth of the guide, 8, 16 or 32
+	 * @param nLevels Number of levels, 0 for the native levels, see {@link GuideLevels}
+	 */
+	public GuideScale(int bitDepth, int nLevels)
+	{
+		this.bitDepth=bitDepth;
+		this.nLevels=nLevels;
+	}
+
+	/**
+	 * Add a region of the guide
+	 * @param ip The region, of the bit depth of the guide
+	 */
+	public void add(ImageProcessor ip)
+	{
+		int n=ip.getPixelCount();
+		float[] region=(bitDepth==32 && values!=null) ? new float[n] : null;
+		int k=0;
+		for(int index=0; index<n; index++)
+		{
+			float v=ip.getf(index);
+			if(v==v)
+			{
+				min=Math.min(min, v);
+				max=Math.max(max, v);
+				if(region!=null)
+				{
+					// Adding 0 turns -0 into 0, so that both are the same level
+					region[k++]=v+0.0f;
+				}
+			}
+		}
+		if(region!=null)
+		{
+			addValues(region, k);
+		}
+	}
+
+	/**
+	 * Merge the values of a region into the distinct values, dropping them once there are more than nLevels
+	 * @param region The values of the region, NaN excluded; sorted in place
+	 * @param n Number of values
+	 */
+	protected void addValues(float[] region, int n)
+	{
+		Arrays.sort(region, 0, n);
+		float[] merged = new float[values.length+n];
+		int nDistinct=0;
+		int i=0;
+		int j=0;
+		while(i<values.length || j<n)
+		{
+			float v;
+			if(j>=n || (i<values.length && values[i]<=region[j]))
+			{
+				v=values[i++];
+			}
+			else
+			{
+				v=region[j++];
+			}
+			if(nDistinct==0 || v!=merged[nDistinct-1])
+			{
+				merged[nDistinct++]=v;
+			}
+		}
+		if(nLevels>0 && nDistinct>nLevels)
+		{
+			// The guide is scaled, the values are no longer needed
+			values=null;
+			return;
+		}
+		values=Arrays.copyOf(merged, nDistinct);
+	}
+
+	/**
+	 * Has any pixel of the guide a grey value?
+	 * @return true if a pixel other than NaN was added
+	 */
+	public boolean hasValues()
+	{
+		return min<=max;
+	}
+
+	/**
+	 * Get the smallest grey value of the guide
+	 * @return The smallest grey value, 0 if there is none
+	 */
+	public double getMin()
+	{
+		return hasValues() ? min : 0;
+	}
+
+	/**
+	 * Get the largest grey value of the guide
+	 * @return The largest grey value, 0 if there is none
+	 */
+	public double getMax()
+	{
+		return hasValues() ? max : 0;
+	}
+
+	/**
+	 * Get the number of native levels of the guide
+	 * @return 256 for 8-bit guides, the range of the grey values for 16-bit guides, the number of distinct values
+	 * for 32-bit guides, or Integer.MAX_VALUE if there are more than nLevels of them
+	 */
+	protected int getNativeCount()
+	{
+		if(bitDepth==8)
+		{
+			return 256;
+		}
+		if(bitDepth==16)
+		{
+			return (int)(getMax()-getMin())+1;
+		}
+		return (values==null) ? Integer.MAX_VALUE : Math.max(1, values.length);
+	}
+
+	/**
+	 * Are the grey values scaled linearly to nLevels levels, rather than kept at their native levels?
+	 * @return true if the levels are scaled
+	 */
+	public boolean isScaled()
+	{
+		return nLevels>0 && nLevels<getNativeCount();
+	}
+
+	/**
+	 * Are the regions converted to 8 bits over the range of the guide, as for the default levels of 16- and
+	 * 32-bit guides?
+	 * @return true if the regions are converted to 8 bits
+	 */
+	public boolean isConvertedToBytes()
+	{
+		return nLevels==GuideLevels.DEFAULT_LEVELS && bitDepth!=8;
+	}
+
+	/**
+	 * Do the levels run over all 256 grey values, as for 8-bit guides and guides converted to 8 bits?
+	 * @return true if the levels are the 256 grey values
+	 */
+	protected boolean hasByteLevels()
+	{
+		return isConvertedToBytes() || (bitDepth==8 && !isScaled());
+	}
+
+	/**
+	 * Get the number of levels a pixel can have, for guides that are not converted to 8 bits
+	 * @return The largest level plus one
+	 */
+	public int getBucketCount()
+	{
+		return isScaled() ? nLevels : getNativeCount();
+	}
+
+	/**
+	 * Get the level of a grey value, for guides that are not converted to 8 bits
+	 * @param v The grey value
+	 * @return The level, {@link GuideLevels#OUTSIDE} for NaN
+	 */
+	public int level(float v)
+	{
+		if(v!=v)
+		{
+			return GuideLevels.OUTSIDE;
+		}
+		if(isScaled())
+		{
+			double scale=(getMax()>getMin()) ? nLevels/(getMax()-getMin()) : 0;
+			return Math.min(nLevels-1, (int)((v-getMin())*scale));
+		}
+		if(bitDepth==8)
+		{
+			return (int)v;
+		}
+		if(bitDepth==16)
+		{
+			return (int)(v-getMin());
+		}
+		return Arrays.binarySearch(values, v+0.0f);
+	}
+
+	/**
+	 * Get the lowest level present in the guide
+	 * @return The level of the smallest grey value, 0 if there is none
+	 */
+	public int getLower()
+	{
+		return hasValues() ? level((float)min) : 0;
+	}
+
+	/**
+	 * Get the highest level present in the guide
+	 * @return The level of the largest grey value, 0 if there is none
+	 */
+	public int getUpper()
+	{
+		return hasValues() ? level((float)max) : 0;
+	}
+
+	/**
+	 * Get the number of levels a watershed on a region runs through, see {@link #levelsOf(ImageProcessor)}
+	 * @return The number of levels, at least 1
+	 */
+	public int getLevelCount()
+	{
+		if(hasByteLevels())
+		{
+			return 256;
+		}
+		return getUpper()-getLower()+1;
+	}
+
+	/**
+	 * Compute the levels of a region of the guide with the levels of the whole guide. The watershed on the region
+	 * runs from the lowest to the highest level of the whole guide; with levels that are the 256 grey values,
+	 * it runs over all of them, as over the default display range of an 8-bit image
+	 * @param region The region, of the bit depth of the guide
+	 * @return The levels of the region
+	 */
+	public GuideLevels levelsOf(ImageProcessor region)
+	{
+		int width=region.getWidth();
+		int height=region.getHeight();
+		int[][] level = new int[1][width*height];
+		if(hasByteLevels())
+		{
+			if(!(region instanceof ByteProcessor))
+			{
+				region=region.duplicate();
+				region.setMinAndMax(getMin(), getMax());
+				region=region.convertToByteProcessor(true);
+			}
+			for(int index=0; index<level[0].length; index++)
+			{
+				level[0][index]=(int)region.getf(index);
+			}
+			return new GuideLevels(width, height, level, 0, 255, 256);
+		}
+		for(int index=0; index<level[0].length; index++)
+		{
+			level[0][index]=level(region.getf(index));
+		}
+		return new GuideLevels(width, height, level, getLower(), getUpper(), getBucketCount());
+	}
+
+}
@@ -0,0 +1,74 @@
+/**
+ * Growable list of primitive ints, used for pixel queues without boxing
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class IntList {
+
+	/** The elements; only the first size elements are valid */
+	public int[] data;
+
+	/** Number of elements in the list */
+	public int size=0;
+
+	/**
+	 * Create an empty list
+	 */
+	public IntList()
+	{
+		this(16);
+	}
+
+	/**
+	 * Create an empty list with a given initial capacity
+	 * @param capacity The initial capacity
+	 */
+	public IntList(int capacity)
+	{
+		data = new int[Math.max(1, capacity)];
+	}
+
+	/**
+	 * Append an element
+	 * @param value The element to append
+	 */
+	public void add(int value)
+	{
+		if(size==data.length)
+		{
+			int[] larger = new int[2*data.length];
+			System.arraycopy(data, 0, larger, 0, size);
+			data=larger;
+		}
+		data[size]=value;
+		size++;
+	}
+
+	/**
+	 * Get an element
+	 * @param index Position of the element
+	 * @return The element
+	 */
+	public int get(int index)
+	{
+		return data[index];
+	}
+
+	/**
+	 * Remove all elements, keeping the allocated capacity
+	 */
+	public void clear()
+	{
+		size=0;
+	}
+
+	/**
+	 * Is the list empty?
+	 * @return Whether the list is empty
+	 */
+	public boolean isEmpty()
+	{
+		return size==0;
+	}
+
+}
@@ -0,0 +1,587 @@
+import ij.gui.ProgressBar;
+import ij.gui.Roi;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Image-sized integer label map holding all ROIs at once. Pixel value 0 is background,
+ * pixel value k belongs to the k-th polygon (polygon index k-1).
+ * The ROIs are dilated in place on the map, and only converted back to polygons once at the end,
+ * so that the cost of a growth step scales with the image size rather than with the square of the ROI count.
+ * This engine implements the non-overlapping growth: contested pixels go to the ROI with the lowest index,
+ * as in the sequential polygon-by-polygon growth of {@link RoiLogics#growPolygons}.
+ * All ROIs take their next step from the same snapshot of the map (Jacobi-style), so the rows can be
+ * processed on several threads with results independent of the thread count.
+ * The labels can also be held outside the Java heap ({@link OffHeapLabels}), with bit masks in direct memory, so
+ * that maps beyond the 2^31 elements of a Java array can be grown by {@link #grow(int, ProgressBar)} and
+ * {@link FrontierGrowth} without burdening the garbage collector; the other engines work on the labels array
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class LabelMap {
+
+	/** Width of the label map */
+	public int width;
+
+	/** Height of the label map */
+	public int height;
+
+	/** The labels, row by row (index = y*width+x); null when the labels are held off the heap */
+	public int[] labels;
+
+	/** The labels held off the heap, null when they are held in the labels array */
+	protected OffHeapLabels offHeapLabels=null;
+
+	/** Number of labels (ROIs) in the map */
+	public int nLabels;
+
+	/**
+	 * Optional mask defining the pixels accessible for growth,
+	 * null if all pixels are accessible
+	 */
+	protected BitMask allowed=null;
+
+	/** Labelled pixels, maintained during the steps of {@link #grow(int, ProgressBar)} */
+	protected BitMask occupied=null;
+
+	/** Pixels that can be labelled in the current step */
+	protected BitMask candidates=null;
+
+	/** For each band of rows, the pixels to label in the current step, as pairs of index and label */
+	protected IntList[] pending;
+
+	/** Connectivity of a growth step: 8 for all neighbors, 4 for horizontal and vertical neighbors only */
+	public int connectivity=8;
+
+	/** Number of threads to use for growth */
+	protected int nThreads=1;
+
+	/** Thread pool for parallel growth, null when growing on a single thread */
+	protected ForkJoinPool pool=null;
+
+	/** Number of rows in a band processed by a single parallel task */
+	protected static final int rowsPerBand=16;
+
+	/**
+	 * Create an empty label map
+	 * @param width Width of the map
+	 * @param height Height of the map
+	 */
+	public LabelMap(int width, int height)
+	{
+		this.width=width;
+		this.height=height;
+		labels=new int[width*height];
+		nLabels=0;
+	}
+
+	/**
+	 * Create a label map on labels held off the heap, in direct memory or in a memory-mapped file. The masks
+	 * used for growth are then also held off the heap
+	 * @param labels The labels, used as they are and grown in place; nLabels is to be set by the caller
+	 */
+	public LabelMap(OffHeapLabels labels)
+	{
+		width=labels.width;
+		height=labels.height;
+		offHeapLabels=labels;
+		this.labels=null;
+		nLabels=0;
+	}
+
+	/**
+	 * Are the labels held off the heap?
+	 * @return true if the labels are held in an {@link OffHeapLabels}, the labels array being null
+	 */
+	public boolean isOffHeap()
+	{
+		return offHeapLabels!=null;
+	}
+
+	/**
+	 * Get a label, on the heap or off the heap
+	 * @param x x position
+	 * @param y y position
+	 * @return The label
+	 */
+	public int getLabel(int x, int y)
+	{
+		if(labels!=null)
+		{
+			return labels[y*width+x];
+		}
+		return offHeapLabels.get(x, y);
+	}
+
+	/**
+	 * Set a label, on the heap or off the heap
+	 * @param x x position
+	 * @param y y position
+	 * @param label The label
+	 */
+	public void setLabel(int x, int y, int label)
+	{
+		if(labels!=null)
+		{
+			labels[y*width+x]=label;
+			return;
+		}
+		offHeapLabels.set(x, y, label);
+	}
+
+	/**
+	 * Get the labels as an array on the heap, copying labels held off the heap
+	 * @return The labels, row by row
+	 * @throws IllegalStateException If the labels are held off the heap and do not fit in a Java array
+	 */
+	protected int[] heapLabels()
+	{
+		if(labels!=null)
+		{
+			return labels;
+		}
+		if((long)width*height>Integer.MAX_VALUE-8)
+		{
+			throw new IllegalStateException("The "+width+"x"+height+" labels held off the heap do not fit in a Java array");
+		}
+		return offHeapLabels.read(new Rectangle(0, 0, width, height));
+	}
+
+	/**
+	 * Create a label map from a label image, keeping the labels as they are, with all their parts and holes
+	 * @param labelImage Label image, 0 and negative values being background
+	 * @return The label map, nLabels being the largest label
+	 */
+	public static LabelMap fromLabelImage(ImageProcessor labelImage)
+	{
+		LabelMap map = new LabelMap(labelImage.getWidth(), labelImage.getHeight());
+		for(int index=0; index<map.labels.length; index++)
+		{
+			map.labels[index]=Math.max(0, (int)labelImage.getf(index));
+			map.nLabels=Math.max(map.nLabels, map.labels[index]);
+		}
+		return map;
+	}
+
+	/**
+	 * Create a label map from an array of polygons. Where polygons overlap at start, the pixels
+	 * go to the polygon with the lowest index
+	 * @param pols The polygons, polygon index i is drawn with label i+1
+	 * @param width Width of the map
+	 * @param height Height of the map
+	 * @return The label map
+	 */
+	public static LabelMap fromPolygons(Polygon[] pols, int width, int height)
+	{
+		LabelMap map = new LabelMap(width, height);
+		for(int index=0; index<pols.length; index++)
+		{
+			map.drawPolygon(pols[index], index+1);
+		}
+		map.nLabels=pols.length;
+		return map;
+	}
+
+	/**
+	 * Draw a polygon onto the map; only unlabelled pixels are set
+	 * @param pol The polygon
+	 * @param label The label to use for the interior of the polygon
+	 */
+	public void drawPolygon(Polygon pol, int label)
+	{
+		if(pol==null || pol.npoints==0)
+		{
+			return;
+		}
+		Rectangle r = pol.getBounds();
+		if(!RoiLogics.reactangleOverlapsWithImage(r, width, height))
+		{
+			return;
+		}
+		Polygon polCopy = RoiLogics.clonePolygon(pol);
+		polCopy.translate(-r.x, -r.y);
+		ByteProcessor mask = RoiLogics.maskFromPolygon(polCopy, r.width+1, r.height+1);
+		byte[] maskPixels = (byte[])mask.getPixels();
+		for(int y=Math.max(0, r.y); y<Math.min(height, r.y+r.height+1); y++)
+		{
+			for(int x=Math.max(0, r.x); x<Math.min(width, r.x+r.width+1); x++)
+			{
+				if(getLabel(x, y)==0 && maskPixels[(y-r.y)*(r.width+1)+x-r.x]!=0)
+				{
+					setLabel(x, y, label);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Set the mask of pixels accessible for growth
+	 * @param mask Mask, non-zero pixels are accessible; null to allow all pixels
+	 */
+	public void setAllowedMask(ImageProcessor mask)
+	{
+		setAllowedMask(mask, 0, 0);
+	}
+
+	/**
+	 * Set the mask of pixels accessible for growth, for a map covering only part of the mask
+	 * @param mask Mask, non-zero pixels are accessible; null to allow all pixels. Pixels outside the mask are not accessible
+	 * @param xOffset x position in the mask of the left edge of the map
+	 * @param yOffset y position in the mask of the top edge of the map
+	 */
+	public void setAllowedMask(ImageProcessor mask, int xOffset, int yOffset)
+	{
+		if(mask==null)
+		{
+			allowed=null;
+			return;
+		}
+		allowed = BitMask.fromProcessor(mask, xOffset, yOffset, width, height);
+	}
+
+	/**
+	 * Set the mask of pixels accessible for growth from a bit mask of the size of the map
+	 * @param mask Mask, set pixels are accessible; null to allow all pixels. The mask is used, not copied; for labels
+	 * held off the heap, it is usually held off the heap as well, see {@link BitMask#offHeap(int, int)}
+	 */
+	public void setAllowedMask(BitMask mask)
+	{
+		allowed=mask;
+	}
+
+	/**
+	 * Is a pixel accessible for growth?
+	 * @param index Pixel index (y*width+x)
+	 * @return Whether growth into the pixel is allowed
+	 */
+	public boolean isAllowed(int index)
+	{
+		return allowed==null || allowed.get(index%width, index/width);
+	}
+
+	/**
+	 * Is a pixel accessible for growth?
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @return Whether growth into the pixel is allowed
+	 */
+	public boolean isAllowed(int x, int y)
+	{
+		return allowed==null || allowed.get(x, y);
+	}
+
+	/**
+	 * Get the lowest label among the neighbors of a pixel
+	 * @param index Pixel index (y*width+x)
+	 * @return The lowest neighboring label, 0 if no neighbor is labelled
+	 */
+	public int lowestNeighborLabel(int index)
+	{
+		return lowestNeighborLabel(index%width, index/width);
+	}
+
+	/**
+	 * Get the lowest label among the neighbors of a pixel
+	 * @param x x position of the pixel
+	 * @param y y position of the pixel
+	 * @return The lowest neighboring label, 0 if no neighbor is labelled
+	 */
+	public int lowestNeighborLabel(int x, int y)
+	{
+		int[] labels=this.labels;
+		int best=0;
+		for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+		{
+			for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+			{
+				if(!isNeighbor(xn-x, yn-y))
+				{
+					continue;
+				}
+				int l=(labels!=null) ? labels[yn*width+xn] : offHeapLabels.get(xn, yn);
+				if(l!=0 && (best==0 || l<best))
+				{
+					best=l;
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Set the connectivity of a growth step
+	 * @param connectivity 8 for all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 */
+	public void setConnectivity(int connectivity)
+	{
+		this.connectivity=(connectivity==4) ? 4 : 8;
+	}
+
+	/**
+	 * Are two pixels at a given offset neighbors for the connectivity of the map?
+	 * @param dx Offset in x, -1, 0 or 1
+	 * @param dy Offset in y, -1, 0 or 1
+	 * @return Whether the pixels are neighbors (a pixel is its own neighbor)
+	 */
+	public boolean isNeighbor(int dx, int dy)
+	{
+		return connectivity==8 || dx==0 || dy==0;
+	}
+
+	/**
+	 * Set the number of threads used for growth
+	 * @param nThreads Number of threads, 1 for single-threaded growth
+	 */
+	public void setThreads(int nThreads)
+	{
+		this.nThreads=Math.max(1, nThreads);
+	}
+
+	/**
+	 * Grow all labels by one pixel. Each unlabelled, accessible pixel touching
+	 * at least one label at the beginning of the step takes the lowest of these labels
+	 * @return The number of pixels added
+	 */
+	public int grow()
+	{
+		occupied=null;
+		return growStep();
+	}
+
+	/**
+	 * Mark the labelled pixels in the occupied mask
+	 */
+	protected void updateOccupied()
+	{
+		occupied=isOffHeap() ? BitMask.offHeap(width, height) : new BitMask(width, height);
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				if(getLabel(x, y)!=0)
+				{
+					occupied.set(x, y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Carry out a growth step. The candidate pixels are found word by word on the bit masks,
+	 * as the dilation of the occupied pixels within the allowed pixels; only the candidates are then examined
+	 * @return The number of pixels added
+	 */
+	protected int growStep()
+	{
+		if(occupied==null)
+		{
+			updateOccupied();
+		}
+		candidates=occupied.dilate(candidates, connectivity==8);
+		if(allowed!=null)
+		{
+			candidates.and(allowed);
+		}
+		candidates.andNot(occupied);
+		int nBands=(height+rowsPerBand-1)/rowsPerBand;
+		if(pending==null || pending.length!=nBands)
+		{
+			pending = new IntList[nBands];
+			for(int band=0; band<nBands; band++)
+			{
+				pending[band] = new IntList();
+			}
+		}
+		// All bands decide on their pixels before any label is written, so all ROIs grow from the same state
+		if(pool==null)
+		{
+			findPending(0, nBands);
+			return assignPending(0, nBands);
+		}
+		pool.invoke(new BandTask(0, nBands, false));
+		BandTask assign = new BandTask(0, nBands, true);
+		pool.invoke(assign);
+		return assign.added;
+	}
+
+	/**
+	 * First phase of a growth step: determine the labels of the candidate pixels in a range of row bands.
+	 * The pixels are indexed within their band, so that the indices fit in an int for maps held off the heap
+	 * @param bandStart First band of the range
+	 * @param bandEnd Band after the last band of the range
+	 */
+	protected void findPending(int bandStart, int bandEnd)
+	{
+		int wordsPerRow=candidates.wordsPerRow;
+		for(int band=bandStart; band<bandEnd; band++)
+		{
+			IntList p=pending[band];
+			p.clear();
+			int yStart=band*rowsPerBand;
+			for(int y=yStart; y<Math.min(height, yStart+rowsPerBand); y++)
+			{
+				for(int w=0; w<wordsPerRow; w++)
+				{
+					long word=candidates.word(y*wordsPerRow+w);
+					while(word!=0)
+					{
+						int x=(w<<6)+Long.numberOfTrailingZeros(word);
+						p.add((y-yStart)*width+x);
+						p.add(lowestNeighborLabel(x, y));
+						word&=word-1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Second phase of a growth step: label the pixels determined in the first phase for a range of row bands
+	 * @param bandStart First band of the range
+	 * @param bandEnd Band after the last band of the range
+	 * @return The number of pixels added
+	 */
+	protected int assignPending(int bandStart, int bandEnd)
+	{
+		int added=0;
+		for(int band=bandStart; band<bandEnd; band++)
+		{
+			IntList p=pending[band];
+			int yStart=band*rowsPerBand;
+			for(int k=0; k<p.size; k+=2)
+			{
+				int x=p.data[k]%width;
+				int y=yStart+p.data[k]/width;
+				setLabel(x, y, p.data[k+1]);
+				occupied.set(x, y);
+			}
+			added+=p.size/2;
+		}
+		return added;
+	}
+
+	/**
+	 * Fork-join task for one of the two phases of a growth step on a range of row bands,
+	 * split in halves down to single bands
+	 */
+	@SuppressWarnings("serial")
+	protected class BandTask extends RecursiveAction
+	{
+		/** First band of the range */
+		protected int bandStart;
+
+		/** Band after the last band of the range */
+		protected int bandEnd;
+
+		/** false for the first phase, true for the assignment phase */
+		protected boolean assign;
+
+		/** Number of pixels added in the assignment phase */
+		protected int added=0;
+
+		/**
+		 * Create a task for a range of row bands
+		 * @param bandStart First band of the range
+		 * @param bandEnd Band after the last band of the range
+		 * @param assign false for the first phase, true for the assignment phase
+		 */
+		public BandTask(int bandStart, int bandEnd, boolean assign)
+		{
+			this.bandStart=bandStart;
+			this.bandEnd=bandEnd;
+			this.assign=assign;
+		}
+
+		protected void compute()
+		{
+			if(bandEnd-bandStart<=1)
+			{
+				if(assign)
+				{
+					added=assignPending(bandStart, bandEnd);
+				}
+				else
+				{
+					findPending(bandStart, bandEnd);
+				}
+				return;
+			}
+			int bandMiddle=(bandStart+bandEnd)/2;
+			BandTask lowerHalf = new BandTask(bandStart, bandMiddle, assign);
+			BandTask upperHalf = new BandTask(bandMiddle, bandEnd, assign);
+			invokeAll(lowerHalf, upperHalf);
+			added=lowerHalf.added+upperHalf.added;
+		}
+	}
+
+	/**
+	 * Grow all labels by several pixels, stopping early when no pixel can be added anymore
+	 * @param nSteps How many pixels to grow
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of steps actually carried out
+	 */
+	public int grow(int nSteps, ProgressBar bp)
+	{
+		int stepsUsed=0;
+		occupied=null;
+		if(nThreads>1)
+		{
+			pool = new ForkJoinPool(nThreads);
+		}
+		try
+		{
+			for(int step=0; step<nSteps; step++)
+			{
+				if(bp!=null)
+				{
+					bp.show(step, nSteps);
+				}
+				if(growStep()==0)
+				{
+					break;
+				}
+				stepsUsed++;
+			}
+		}
+		finally
+		{
+			if(pool!=null)
+			{
+				pool.shutdown();
+				pool=null;
+			}
+			// The labels may be changed by other engines afterwards
+			occupied=null;
+		}
+		return stepsUsed;
+	}
+
+	/**
+	 * Convert the labels back to polygons. For each label, the outline of the part
+	 * containing the topmost-leftmost pixel is traced; all labels are traced in one pass over the map
+	 * @return Array of polygons, element i corresponds to label i+1; null for labels that are no longer present
+	 * @throws IllegalStateException If the labels are held off the heap and do not fit in a Java array
+	 */
+	public Polygon[] toPolygons()
+	{
+		return new ContourTracer(heapLabels(), width, height, nLabels).getOuterPolygons();
+	}
+
+	/**
+	 * Convert the labels back to ROIs, keeping labels in several parts or with holes as composite ROIs;
+	 * all labels are traced in one pass over the map
+	 * @return Array of ROIs, element i corresponds to label i+1; null for labels that are no longer present
+	 * @throws IllegalStateException If the labels are held off the heap and do not fit in a Java array
+	 */
+	public Roi[] toRois()
+	{
+		return new ContourTracer(heapLabels(), width, height, nLabels).getRois();
+	}
+
+
+}
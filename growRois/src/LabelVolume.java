@@ -0,0 +1,533 @@
+import ij.ImageStack;
+import ij.gui.ProgressBar;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Three-dimensional counterpart of {@link LabelMap}: integer labels on a stack of slices, grown in place voxel by
+ * voxel. Voxel value 0 is background. The growth follows the non-overlapping semantics of {@link LabelMap}: each
+ * unlabelled, accessible voxel touching labels at the beginning of a step takes the lowest of these labels, all
+ * labels taking their step from the same state, so that slabs of slices can be processed on several threads with
+ * results independent of the thread count. Neighbors are 6-, 18- or 26-connected. For stacks whose slices are
+ * further apart than the pixels, growth across slices can be restricted to every few steps
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class LabelVolume {
+
+	/** Width of the slices */
+	public int width;
+
+	/** Height of the slices */
+	public int height;
+
+	/** Number of slices */
+	public int depth;
+
+	/** The labels, labels[z][y*width+x] */
+	public int[][] labels;
+
+	/** Number of labels in the volume */
+	public int nLabels;
+
+	/** Connectivity of a growth step: 6 (faces), 18 (faces and edges) or 26 (faces, edges and corners) */
+	public int connectivity=26;
+
+	/** Growth across slices takes place every zInterval steps only, 1 for isotropic voxels */
+	public int zInterval=1;
+
+	/** Accessible voxels of each slice, null if all voxels are accessible */
+	protected BitMask[] allowed=null;
+
+	/** Labelled voxels of each slice, maintained during the steps of {@link #grow(int, ProgressBar)} */
+	protected BitMask[] occupied=null;
+
+	/** Dilation of the labelled voxels of each slice within the slice */
+	protected BitMask[] inPlane=null;
+
+	/** Dilation of the labelled voxels of each slice, as seen from the neighboring slices */
+	protected BitMask[] across=null;
+
+	/** Voxels that can be labelled in the current step */
+	protected BitMask[] candidates=null;
+
+	/** For each slice, the voxels to label in the current step, as pairs of index in the slice and label */
+	protected IntList[] pending=null;
+
+	/** Number of growth steps carried out so far, to decide when growth across slices takes place */
+	protected int stepCount=0;
+
+	/** Number of threads to use for growth */
+	protected int nThreads=1;
+
+	/** Thread pool for parallel growth, null when growing on a single thread */
+	protected ForkJoinPool pool=null;
+
+	/**
+	 * Create an empty label volume
+	 * @param width Width of the slices
+	 * @param height Height of the slices
+	 * @param depth Number of slices
+	 */
+	public LabelVolume(int width, int height, int depth)
+	{
+		this.width=width;
+		this.height=height;
+		this.depth=depth;
+		labels = new int[depth][width*height];
+		nLabels=0;
+	}
+
+	/**
+	 * Create a label volume from a label stack
+	 * @param stack The labels, 0 is background; negative values are taken as background
+	 * @return The label volume
+	 */
+	public static LabelVolume fromStack(ImageStack stack)
+	{
+		LabelVolume volume = new LabelVolume(stack.getWidth(), stack.getHeight(), stack.getSize());
+		for(int z=0; z<volume.depth; z++)
+		{
+			ImageProcessor ip = stack.getProcessor(z+1);
+			int[] slice = volume.labels[z];
+			for(int index=0; index<slice.length; index++)
+			{
+				slice[index]=Math.max(0, (int)ip.getf(index));
+				volume.nLabels=Math.max(volume.nLabels, slice[index]);
+			}
+		}
+		return volume;
+	}
+
+	/**
+	 * Convert the labels to a stack
+	 * @return The label stack, 16-bit for up to 65535 labels, 32-bit otherwise
+	 */
+	public ImageStack toStack()
+	{
+		ImageStack stack = new ImageStack(width, height);
+		for(int z=0; z<depth; z++)
+		{
+			ImageProcessor ip;
+			if(nLabels<=65535)
+			{
+				short[] pixels = new short[width*height];
+				for(int index=0; index<pixels.length; index++)
+				{
+					pixels[index]=(short)labels[z][index];
+				}
+				ip = new ShortProcessor(width, height, pixels, null);
+			}
+			else
+			{
+				float[] pixels = new float[width*height];
+				for(int index=0; index<pixels.length; index++)
+				{
+					pixels[index]=labels[z][index];
+				}
+				ip = new FloatProcessor(width, height, pixels, null);
+			}
+			stack.addSlice(ip);
+		}
+		return stack;
+	}
+
+	/**
+	 * Set the mask of voxels accessible for growth
+	 * @param mask Mask stack with a slice for each slice of the volume, or a single slice used for all slices;
+	 * non-zero voxels are accessible; null to allow all voxels
+	 * @throws IllegalArgumentException If the mask has neither one slice nor a slice for each slice of the volume
+	 */
+	public void setAllowedMask(ImageStack mask)
+	{
+		if(mask==null)
+		{
+			allowed=null;
+			return;
+		}
+		if(mask.getSize()!=1 && mask.getSize()!=depth)
+		{
+			throw new IllegalArgumentException("The mask has "+mask.getSize()+" slices, the seeds "+depth
+					+"; it needs one slice or a slice for each slice of the seeds");
+		}
+		allowed = new BitMask[depth];
+		for(int z=0; z<depth; z++)
+		{
+			if(z>0 && mask.getSize()==1)
+			{
+				allowed[z]=allowed[0];
+				continue;
+			}
+			allowed[z] = BitMask.fromProcessor(mask.getProcessor(z+1), 0, 0, width, height);
+		}
+	}
+
+	/**
+	 * Set the connectivity of a growth step
+	 * @param connectivity 6, 18 or 26; other values give 26
+	 */
+	public void setConnectivity(int connectivity)
+	{
+		this.connectivity=(connectivity==6 || connectivity==18) ? connectivity : 26;
+	}
+
+	/**
+	 * Set the ratio of the slice spacing to the pixel size. Growth across slices then takes place every
+	 * zRatio steps (rounded), so that a given number of steps covers roughly the same physical distance in all
+	 * directions
+	 * @param zRatio Ratio of the slice spacing to the pixel size, 1 for isotropic voxels
+	 */
+	public void setZRatio(double zRatio)
+	{
+		zInterval=Math.max(1, (int)Math.round(zRatio));
+	}
+
+	/**
+	 * Set the number of threads used for growth
+	 * @param nThreads Number of threads, 1 for single-threaded growth
+	 */
+	public void setThreads(int nThreads)
+	{
+		this.nThreads=Math.max(1, nThreads);
+	}
+
+	/**
+	 * Are two voxels at a given offset neighbors for the connectivity of the volume?
+	 * @param dx Offset in x, -1, 0 or 1
+	 * @param dy Offset in y, -1, 0 or 1
+	 * @param dz Offset in z, -1, 0 or 1
+	 * @return Whether the voxels are neighbors (a voxel is its own neighbor)
+	 */
+	public boolean isNeighbor(int dx, int dy, int dz)
+	{
+		int distance=Math.abs(dx)+Math.abs(dy)+Math.abs(dz);
+		return distance<=1 || (connectivity==18 && distance==2) || connectivity==26;
+	}
+
+	/**
+	 * Is a voxel accessible for growth?
+	 * @param index Index in the slice (y*width+x)
+	 * @param z The slice
+	 * @return Whether growth into the voxel is allowed
+	 */
+	public boolean isAllowed(int index, int z)
+	{
+		return allowed==null || allowed[z].get(index%width, index/width);
+	}
+
+	/**
+	 * Does the current step grow across slices?
+	 * @return Whether neighbors in the adjacent slices are taken into account
+	 */
+	protected boolean acrossSlices()
+	{
+		return (stepCount+1)%zInterval==0;
+	}
+
+	/**
+	 * Get the lowest label among the neighbors of a voxel
+	 * @param x x position of the voxel
+	 * @param y y position of the voxel
+	 * @param z Slice of the voxel
+	 * @param withAdjacentSlices Whether the neighbors in the adjacent slices are taken into account
+	 * @return The lowest neighboring label, 0 if no neighbor is labelled
+	 */
+	public int lowestNeighborLabel(int x, int y, int z, boolean withAdjacentSlices)
+	{
+		int best=0;
+		int zRange=withAdjacentSlices ? 1 : 0;
+		for(int zn=Math.max(0, z-zRange); zn<=Math.min(depth-1, z+zRange); zn++)
+		{
+			int[] slice=labels[zn];
+			for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+			{
+				for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+				{
+					if(!isNeighbor(xn-x, yn-y, zn-z))
+					{
+						continue;
+					}
+					int l=slice[yn*width+xn];
+					if(l!=0 && (best==0 || l<best))
+					{
+						best=l;
+					}
+				}
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Set up the masks of labelled voxels and the buffers of the growth steps
+	 */
+	protected void prepare()
+	{
+		occupied = new BitMask[depth];
+		inPlane = new BitMask[depth];
+		across = new BitMask[depth];
+		candidates = new BitMask[depth];
+		pending = new IntList[depth];
+		for(int z=0; z<depth; z++)
+		{
+			occupied[z] = new BitMask(width, height);
+			inPlane[z] = new BitMask(width, height);
+			across[z] = new BitMask(width, height);
+			candidates[z] = new BitMask(width, height);
+			pending[z] = new IntList();
+			int[] slice=labels[z];
+			for(int y=0; y<height; y++)
+			{
+				for(int x=0; x<width; x++)
+				{
+					if(slice[y*width+x]!=0)
+					{
+						occupied[z].set(x, y);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grow all labels by one voxel
+	 * @return The number of voxels added
+	 */
+	public int grow()
+	{
+		prepare();
+		return growStep();
+	}
+
+	/**
+	 * Carry out a growth step in three phases, each over all slices: dilation of the labelled voxels of each
+	 * slice, determination of the labels of the candidate voxels, and assignment of these labels
+	 * @return The number of voxels added
+	 */
+	protected int growStep()
+	{
+		int added;
+		if(pool==null)
+		{
+			dilateSlices(0, depth);
+			findPending(0, depth);
+			added=assignPending(0, depth);
+		}
+		else
+		{
+			pool.invoke(new SlabTask(0, depth, 0));
+			pool.invoke(new SlabTask(0, depth, 1));
+			SlabTask assign = new SlabTask(0, depth, 2);
+			pool.invoke(assign);
+			added=assign.added;
+		}
+		stepCount++;
+		return added;
+	}
+
+	/**
+	 * First phase of a growth step: dilate the labelled voxels of a range of slices, within the slice and as seen
+	 * from the adjacent slices
+	 * @param zStart First slice of the range
+	 * @param zEnd Slice after the last slice of the range
+	 */
+	protected void dilateSlices(int zStart, int zEnd)
+	{
+		// Within a slice, 18 and 26 neighbors include the diagonals; across slices, 26 neighbors include the
+		// diagonals, 18 neighbors the horizontal and vertical offsets and 6 neighbors the voxel above or below only
+		for(int z=zStart; z<zEnd; z++)
+		{
+			occupied[z].dilate(inPlane[z], connectivity!=6);
+			if(connectivity==6)
+			{
+				across[z].read(occupied[z], 0, 0);
+			}
+			else
+			{
+				occupied[z].dilate(across[z], connectivity==26);
+			}
+		}
+	}
+
+	/**
+	 * Second phase of a growth step: determine the labels of the candidate voxels of a range of slices
+	 * @param zStart First slice of the range
+	 * @param zEnd Slice after the last slice of the range
+	 */
+	protected void findPending(int zStart, int zEnd)
+	{
+		boolean withAdjacentSlices=acrossSlices();
+		for(int z=zStart; z<zEnd; z++)
+		{
+			BitMask c=candidates[z];
+			c.read(inPlane[z], 0, 0);
+			if(withAdjacentSlices)
+			{
+				if(z>0)
+				{
+					c.or(across[z-1]);
+				}
+				if(z<depth-1)
+				{
+					c.or(across[z+1]);
+				}
+			}
+			if(allowed!=null)
+			{
+				c.and(allowed[z]);
+			}
+			c.andNot(occupied[z]);
+			IntList p=pending[z];
+			p.clear();
+			int wordsPerRow=c.wordsPerRow;
+			for(int y=0; y<height; y++)
+			{
+				for(int w=0; w<wordsPerRow; w++)
+				{
+					long word=c.bits[y*wordsPerRow+w];
+					while(word!=0)
+					{
+						int x=(w<<6)+Long.numberOfTrailingZeros(word);
+						p.add(y*width+x);
+						p.add(lowestNeighborLabel(x, y, z, withAdjacentSlices));
+						word&=word-1;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Third phase of a growth step: label the voxels determined in the second phase for a range of slices
+	 * @param zStart First slice of the range
+	 * @param zEnd Slice after the last slice of the range
+	 * @return The number of voxels added
+	 */
+	protected int assignPending(int zStart, int zEnd)
+	{
+		int added=0;
+		for(int z=zStart; z<zEnd; z++)
+		{
+			IntList p=pending[z];
+			for(int k=0; k<p.size; k+=2)
+			{
+				int index=p.data[k];
+				labels[z][index]=p.data[k+1];
+				occupied[z].set(index%width, index/width);
+			}
+			added+=p.size/2;
+		}
+		return added;
+	}
+
+	/**
+	 * Fork-join task for one of the three phases of a growth step on a range of slices,
+	 * split in halves down to single slices
+	 */
+	@SuppressWarnings("serial")
+	protected class SlabTask extends RecursiveAction
+	{
+		/** First slice of the range */
+		protected int zStart;
+
+		/** Slice after the last slice of the range */
+		protected int zEnd;
+
+		/** The phase: 0 for dilation, 1 for the determination of the labels, 2 for the assignment */
+		protected int phase;
+
+		/** Number of voxels added in the assignment phase */
+		protected int added=0;
+
+		/**
+		 * Create a task for a range of slices
+		 * @param zStart First slice of the range
+		 * @param zEnd Slice after the last slice of the range
+		 * @param phase 0 for dilation, 1 for the determination of the labels, 2 for the assignment
+		 */
+		public SlabTask(int zStart, int zEnd, int phase)
+		{
+			this.zStart=zStart;
+			this.zEnd=zEnd;
+			this.phase=phase;
+		}
+
+		protected void compute()
+		{
+			if(zEnd-zStart<=1)
+			{
+				if(phase==0)
+				{
+					dilateSlices(zStart, zEnd);
+				}
+				else if(phase==1)
+				{
+					findPending(zStart, zEnd);
+				}
+				else
+				{
+					added=assignPending(zStart, zEnd);
+				}
+				return;
+			}
+			int zMiddle=(zStart+zEnd)/2;
+			SlabTask lowerHalf = new SlabTask(zStart, zMiddle, phase);
+			SlabTask upperHalf = new SlabTask(zMiddle, zEnd, phase);
+			invokeAll(lowerHalf, upperHalf);
+			added=lowerHalf.added+upperHalf.added;
+		}
+	}
+
+	/**
+	 * Grow all labels by several voxels, stopping early when no voxel can be added anymore
+	 * @param nSteps How many voxels to grow
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return The number of steps actually carried out
+	 */
+	public int grow(int nSteps, ProgressBar bp)
+	{
+		int stepsUsed=0;
+		stepCount=0;
+		prepare();
+		if(nThreads>1 && depth>1)
+		{
+			pool = new ForkJoinPool(Math.min(nThreads, depth));
+		}
+		try
+		{
+			for(int step=0; step<nSteps; step++)
+			{
+				if(bp!=null)
+				{
+					bp.show(step, nSteps);
+				}
+				// Only a step including growth across slices shows that no voxel can be added anymore
+				boolean complete=acrossSlices();
+				if(growStep()==0 && complete)
+				{
+					break;
+				}
+				stepsUsed++;
+			}
+		}
+		finally
+		{
+			if(pool!=null)
+			{
+				pool.shutdown();
+				pool=null;
+			}
+			occupied=null;
+			inPlane=null;
+			across=null;
+			candidates=null;
+			pending=null;
+		}
+		return stepsUsed;
+	}
+
+}
@@ -0,0 +1,210 @@
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * Image-wide record of the pixels covered by a set of polygons, for growing polygons without overlap.
+ * For each pixel, the number of polygons covering it is counted, and the covered pixels are also kept as a
+ * bit-packed mask. When a polygon grows, only the pixels it gained or lost are updated, so that the obstacles
+ * around a polygon can be looked up in a crop of the mask instead of drawing all its neighbors again
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class OccupancyMap {
+
+	/** Left edge of the covered area */
+	public int x0;
+
+	/** Top edge of the covered area */
+	public int y0;
+
+	/** Number of polygons covering each pixel of the area */
+	protected int[] coverage;
+
+	/** Pixels of the area covered by at least one polygon */
+	protected BitMask occupied;
+
+	/** Pixels that became free since the list was last cleared, as y*width+x within the area */
+	public IntList freed = new IntList();
+
+	/**
+	 * Create an empty map
+	 * @param area Area covered by the map; pixels outside are never occupied
+	 */
+	public OccupancyMap(Rectangle area)
+	{
+		x0=area.x;
+		y0=area.y;
+		coverage = new int[area.width*area.height];
+		occupied = new BitMask(area.width, area.height);
+	}
+
+	/**
+	 * Create a map covering an array of polygons and the pixels they can reach by growth
+	 * @param pols The polygons
+	 * @param margin Number of pixels by which the area exceeds the bounds of the polygons
+	 * @return The map, with all polygons added
+	 */
+	public static OccupancyMap fromPolygons(Polygon[] pols, int margin)
+	{
+		Rectangle area=null;
+		for(int index=0; index<pols.length; index++)
+		{
+			if(area==null)
+			{
+				area = new Rectangle(pols[index].getBounds());
+			}
+			else
+			{
+				area.add(pols[index].getBounds());
+			}
+		}
+		if(area==null)
+		{
+			area = new Rectangle(0, 0, 1, 1);
+		}
+		area.grow(margin, margin);
+		OccupancyMap map = new OccupancyMap(area);
+		GrowthScratch scratch=GrowthScratch.get();
+		for(int index=0; index<pols.length; index++)
+		{
+			Rectangle r=pols[index].getBounds();
+			scratch.oldMask.reset(r.width+1, r.height+1);
+			scratch.rasterizer.fill(pols[index], scratch.oldMask, r.x, r.y);
+			map.add(scratch.oldMask, r.x, r.y, 1);
+		}
+		return map;
+	}
+
+	/**
+	 * Change the coverage of the pixels set in a mask
+	 * @param mask The mask
+	 * @param xOffset x position of the left edge of the mask
+	 * @param yOffset y position of the top edge of the mask
+	 * @param delta 1 to add the pixels, -1 to remove them
+	 */
+	public void add(BitMask mask, int xOffset, int yOffset, int delta)
+	{
+		for(int y=0; y<mask.height; y++)
+		{
+			for(int w=0; w<mask.wordsPerRow; w++)
+			{
+				long word=mask.bits[y*mask.wordsPerRow+w];
+				while(word!=0)
+				{
+					change((w<<6)+Long.numberOfTrailingZeros(word)+xOffset, y+yOffset, delta);
+					word&=word-1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Replace the pixels of a polygon by new ones: only the pixels that differ between the two masks are updated
+	 * @param oldMask The pixels covered by the polygon so far
+	 * @param newMask The pixels covered by the polygon from now on, a mask of the same size
+	 * @param xOffset x position of the left edge of the masks
+	 * @param yOffset y position of the top edge of the masks
+	 */
+	public void replace(BitMask oldMask, BitMask newMask, int xOffset, int yOffset)
+	{
+		for(int y=0; y<oldMask.height; y++)
+		{
+			for(int w=0; w<oldMask.wordsPerRow; w++)
+			{
+				long oldWord=oldMask.bits[y*oldMask.wordsPerRow+w];
+				long newWord=newMask.bits[y*newMask.wordsPerRow+w];
+				long changed=oldWord^newWord;
+				while(changed!=0)
+				{
+					int bit=Long.numberOfTrailingZeros(changed);
+					change((w<<6)+bit+xOffset, y+yOffset, ((newWord>>>bit)&1L)!=0 ? 1 : -1);
+					changed&=changed-1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Change the coverage of a pixel
+	 * @param x x position
+	 * @param y y position
+	 * @param delta 1 to add a polygon, -1 to remove one
+	 */
+	protected void change(int x, int y, int delta)
+	{
+		x-=x0;
+		y-=y0;
+		if(x<0 || y<0 || x>=occupied.width || y>=occupied.height)
+		{
+			return;
+		}
+		int index=y*occupied.width+x;
+		coverage[index]+=delta;
+		if(coverage[index]>0)
+		{
+			occupied.set(x, y);
+		}
+		else if(occupied.get(x, y))
+		{
+			occupied.clear(x, y);
+			freed.add(index);
+		}
+	}
+
+	/**
+	 * Was one of the pixels listed in {@link #freed} within a rectangle?
+	 * @param r The rectangle
+	 * @return Whether a freed pixel lies in the rectangle
+	 */
+	public boolean freedWithin(Rectangle r)
+	{
+		int width=occupied.width;
+		for(int k=0; k<freed.size; k++)
+		{
+			if(r.contains(freed.data[k]%width+x0, freed.data[k]/width+y0))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the bounds of the pixels listed in {@link #freed}
+	 * @return The smallest rectangle containing the freed pixels, in image coordinates; null if there are none
+	 */
+	public Rectangle getFreedBounds()
+	{
+		if(freed.isEmpty())
+		{
+			return null;
+		}
+		int width=occupied.width;
+		int xMin=Integer.MAX_VALUE;
+		int yMin=Integer.MAX_VALUE;
+		int xMax=Integer.MIN_VALUE;
+		int yMax=Integer.MIN_VALUE;
+		for(int k=0; k<freed.size; k++)
+		{
+			int x=freed.data[k]%width;
+			int y=freed.data[k]/width;
+			xMin=Math.min(xMin, x);
+			yMin=Math.min(yMin, y);
+			xMax=Math.max(xMax, x);
+			yMax=Math.max(yMax, y);
+		}
+		return new Rectangle(xMin+x0, yMin+y0, xMax-xMin+1, yMax-yMin+1);
+	}
+
+	/**
+	 * Copy the occupied pixels in a rectangle to a mask
+	 * @param target The mask, of the size of the rectangle
+	 * @param xOffset x position of the left edge of the rectangle
+	 * @param yOffset y position of the top edge of the rectangle
+	 */
+	public void getOccupied(BitMask target, int xOffset, int yOffset)
+	{
+		target.read(occupied, xOffset-x0, yOffset-y0);
+	}
+
+}
@@ -0,0 +1,179 @@
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Labels held outside the Java heap, in direct memory or in a memory-mapped file, as the storage of a
+ * {@link LabelMap} or the output of {@link TiledGrowth}. The labels are 32-bit integers, row by row; a mapped file
+ * holds them little-endian without header, so that other processes can map the same file and share the labels
+ * without copying. The storage is split into chunks of at most 1 GB, each holding a power of two of whole rows, so
+ * that the image is not limited to the 2^31 elements of a Java array and the garbage collector never scans the
+ * labels. Pixels are addressed by x and y; reads, and writes of distinct pixels, can be carried out from several
+ * threads
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class OffHeapLabels implements TiledGrowth.LabelSink {
+
+	/** Maximum size of a chunk in bytes */
+	protected static final long CHUNK_BYTES=1L<<30;
+
+	/** Width of the image */
+	public final int width;
+
+	/** Height of the image */
+	public final int height;
+
+	/** Number of rows per chunk, a power of two */
+	protected final int rowsPerChunk;
+
+	/** Base 2 logarithm of the number of rows per chunk */
+	protected final int rowShift;
+
+	/** The chunks */
+	protected final IntBuffer[] chunks;
+
+	/** The mapped file, null for direct memory or once closed */
+	protected RandomAccessFile file=null;
+
+	/**
+	 * Allocate labels in direct memory, all 0. The size of the direct memory is limited by the option
+	 * -XX:MaxDirectMemorySize of the Java virtual machine
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @throws IllegalArgumentException If a row is larger than a chunk
+	 */
+	public OffHeapLabels(int width, int height)
+	{
+		this.width=width;
+		this.height=height;
+		rowShift=rowShift(width);
+		rowsPerChunk=1<<rowShift;
+		chunks = new IntBuffer[(int)(((long)height+rowsPerChunk-1)>>rowShift)];
+		for(int c=0; c<chunks.length; c++)
+		{
+			chunks[c]=ByteBuffer.allocateDirect(4*width*chunkRows(c)).order(ByteOrder.nativeOrder()).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Map a file of raw labels; the file is created or extended if needed, new labels being 0
+	 * @param path Path of the file
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @throws IOException If the file cannot be mapped
+	 * @throws IllegalArgumentException If a row is larger than a chunk
+	 */
+	public OffHeapLabels(String path, int width, int height) throws IOException
+	{
+		this.width=width;
+		this.height=height;
+		rowShift=rowShift(width);
+		rowsPerChunk=1<<rowShift;
+		chunks = new IntBuffer[(int)(((long)height+rowsPerChunk-1)>>rowShift)];
+		file = new RandomAccessFile(path, "rw");
+		if(file.length()<4L*width*height)
+		{
+			file.setLength(4L*width*height);
+		}
+		FileChannel channel=file.getChannel();
+		for(int c=0; c<chunks.length; c++)
+		{
+			long position=4L*width*((long)c<<rowShift);
+			chunks[c]=channel.map(FileChannel.MapMode.READ_WRITE, position, 4L*width*chunkRows(c)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		}
+	}
+
+	/**
+	 * Get the number of rows per chunk, as a power of two
+	 * @param width Width of the image
+	 * @return The base 2 logarithm of the number of rows per chunk
+	 * @throws IllegalArgumentException If a row is larger than a chunk
+	 */
+	protected static int rowShift(int width)
+	{
+		long rows=CHUNK_BYTES/(4L*Math.max(1, width));
+		if(rows<1)
+		{
+			throw new IllegalArgumentException("Rows of "+width+" labels are too long to be held off the heap");
+		}
+		return 63-Long.numberOfLeadingZeros(rows);
+	}
+
+	/**
+	 * Number of rows of a chunk
+	 * @param c The chunk
+	 * @return The number of rows, smaller for the last chunk
+	 */
+	protected int chunkRows(int c)
+	{
+		return (int)Math.min(rowsPerChunk, height-((long)c<<rowShift));
+	}
+
+	/**
+	 * Get a label
+	 * @param x x position
+	 * @param y y position
+	 * @return The label
+	 */
+	public int get(int x, int y)
+	{
+		return chunks[y>>>rowShift].get((y&(rowsPerChunk-1))*width+x);
+	}
+
+	/**
+	 * Set a label
+	 * @param x x position
+	 * @param y y position
+	 * @param label The label
+	 */
+	public void set(int x, int y, int label)
+	{
+		chunks[y>>>rowShift].put((y&(rowsPerChunk-1))*width+x, label);
+	}
+
+	/**
+	 * Read a region of the labels
+	 * @param r The region, within the image
+	 * @return The labels of the region, row by row
+	 */
+	public int[] read(Rectangle r)
+	{
+		int[] labels = new int[r.width*r.height];
+		for(int y=r.y; y<r.y+r.height; y++)
+		{
+			IntBuffer chunk=chunks[y>>>rowShift].duplicate();
+			chunk.position((y&(rowsPerChunk-1))*width+r.x);
+			chunk.get(labels, (y-r.y)*r.width, r.width);
+		}
+		return labels;
+	}
+
+	public void write(int[] labels, int tileWidth, int xTile, int yTile, Rectangle r)
+	{
+		for(int y=r.y; y<r.y+r.height; y++)
+		{
+			IntBuffer chunk=chunks[y>>>rowShift].duplicate();
+			chunk.position((y&(rowsPerChunk-1))*width+r.x);
+			chunk.put(labels, (y-yTile)*tileWidth+r.x-xTile, r.width);
+		}
+	}
+
+	/**
+	 * Close the mapped file; the memory itself is released by the garbage collector
+	 * @throws IOException If the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		if(file!=null)
+		{
+			file.close();
+			file=null;
+		}
+	}
+
+}
@@ -0,0 +1,174 @@
+import ij.gui.Roi;
+
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Single-pixel seeds, such as the centroids of detected nuclei, kept as a compact list of pixel indices
+ * (y*width+x, four bytes per seed) rather than as a ROI or polygon each. The seeds are drawn straight into a
+ * {@link LabelMap}, seed k receiving label k+1, so that hundreds of thousands of seeds can be grown together
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class PointSeeds {
+
+	/** Width of the image */
+	public final int width;
+
+	/** Height of the image */
+	public final int height;
+
+	/** Pixel index of each seed, y*width+x */
+	protected IntList indices = new IntList();
+
+	/** Number of points dropped since they lie outside the image */
+	protected int nOutside=0;
+
+	/**
+	 * Create an empty list of seeds for an image
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 */
+	public PointSeeds(int width, int height)
+	{
+		this.width=width;
+		this.height=height;
+	}
+
+	/**
+	 * Read seeds from a text file with one point per line, x and y being the first two columns, separated by
+	 * commas, semicolons, tabs or spaces. The file is read line by line; lines not starting with two numbers,
+	 * such as a header, are skipped. Coordinates are in pixels, a point belonging to the pixel containing it
+	 * @param path Path of the file
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @return The seeds, in the order of the file
+	 * @throws IOException If the file cannot be read
+	 */
+	public static PointSeeds fromCsv(String path, int width, int height) throws IOException
+	{
+		PointSeeds seeds = new PointSeeds(width, height);
+		BufferedReader in = new BufferedReader(new FileReader(path));
+		try
+		{
+			String line;
+			while((line=in.readLine())!=null)
+			{
+				String[] fields=line.trim().split("[,;\\t ]+");
+				if(fields.length<2)
+				{
+					continue;
+				}
+				double x;
+				double y;
+				try
+				{
+					x=Double.parseDouble(fields[0]);
+					y=Double.parseDouble(fields[1]);
+				}
+				catch(NumberFormatException e)
+				{
+					continue;
+				}
+				seeds.add((int)Math.floor(x), (int)Math.floor(y));
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return seeds;
+	}
+
+	/**
+	 * Add the points of point selections
+	 * @param rois ROIs; the points of point ROIs are added, other ROIs are ignored
+	 */
+	public void addPoints(Roi[] rois)
+	{
+		for(int index=0; index<rois.length; index++)
+		{
+			if(rois[index]!=null && rois[index].getType()==Roi.POINT)
+			{
+				Point[] points=rois[index].getContainedPoints();
+				for(int k=0; k<points.length; k++)
+				{
+					add(points[k].x, points[k].y);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Are all ROIs point selections?
+	 * @param rois The ROIs
+	 * @return Whether there is at least one ROI and all are point ROIs
+	 */
+	public static boolean allPoints(Roi[] rois)
+	{
+		for(int index=0; index<rois.length; index++)
+		{
+			if(rois[index]==null || rois[index].getType()!=Roi.POINT)
+			{
+				return false;
+			}
+		}
+		return rois.length>0;
+	}
+
+	/**
+	 * Add a seed; points outside the image are dropped
+	 * @param x x position
+	 * @param y y position
+	 */
+	public void add(int x, int y)
+	{
+		if(x<0 || y<0 || x>=width || y>=height)
+		{
+			nOutside++;
+			return;
+		}
+		indices.add(y*width+x);
+	}
+
+	/**
+	 * Get the number of seeds
+	 * @return The number of seeds
+	 */
+	public int size()
+	{
+		return indices.size;
+	}
+
+	/**
+	 * Get the number of points dropped since they lie outside the image
+	 * @return The number of points dropped
+	 */
+	public int getOutsideCount()
+	{
+		return nOutside;
+	}
+
+	/**
+	 * Draw the seeds into a new label map, seed k receiving label k+1. Where several seeds fall on the same
+	 * pixel, the first one keeps it and the others have no pixel
+	 * @return The label map
+	 */
+	public LabelMap toLabelMap()
+	{
+		LabelMap map = new LabelMap(width, height);
+		for(int k=0; k<indices.size; k++)
+		{
+			int index=indices.data[k];
+			if(map.labels[index]==0)
+			{
+				map.labels[index]=k+1;
+			}
+		}
+		map.nLabels=indices.size;
+		return map;
+	}
+
+}
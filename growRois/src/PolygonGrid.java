@@ -0,0 +1,223 @@
+import java.awt.Polygon;
+import java.awt.Rectangle;
+
+/**
+ * Uniform grid spatial index over the bounding boxes of an array of polygons. Each polygon is registered in
+ * all the grid cells its bounding box touches, so that the polygons near a given rectangle can be found
+ * without testing every polygon. Bounding boxes outside the area covered by the grid are clamped to the
+ * border cells, which keeps queries correct when polygons grow beyond their initial extent
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class PolygonGrid {
+
+	/** The indexed polygons */
+	protected Polygon[] pols;
+
+	/** Current bounds of the polygons, as registered in the grid */
+	protected Rectangle[] bounds;
+
+	/** Left position of the grid */
+	protected int x0;
+
+	/** Top position of the grid */
+	protected int y0;
+
+	/** Edge length of a square grid cell */
+	protected int cellSize;
+
+	/** Number of grid columns */
+	protected int nx;
+
+	/** Number of grid rows */
+	protected int ny;
+
+	/** For each cell, the indexes of the polygons touching the cell */
+	protected int[][] cellItems;
+
+	/** For each cell, the number of polygons touching the cell */
+	protected int[] cellCounts;
+
+	/** Per-polygon marker to avoid returning a polygon twice from a query */
+	protected int[] queryStamp;
+
+	/** Counter of the queries, used as marker in queryStamp */
+	protected int queryCount=0;
+
+	/**
+	 * Build the index. The cell size is chosen as twice the average bounding box size
+	 * @param pols The polygons to index; the array is referenced, not copied
+	 */
+	public PolygonGrid(Polygon[] pols)
+	{
+		this.pols=pols;
+		bounds = new Rectangle[pols.length];
+		queryStamp = new int[pols.length];
+		Rectangle all=null;
+		double sizeSum=0;
+		for(int index=0; index<pols.length; index++)
+		{
+			bounds[index]=pols[index].getBounds();
+			sizeSum+=bounds[index].width+bounds[index].height;
+			if(all==null)
+			{
+				all=new Rectangle(bounds[index]);
+			}
+			else
+			{
+				all.add(bounds[index]);
+			}
+		}
+		if(all==null)
+		{
+			all=new Rectangle(0,0,1,1);
+		}
+		cellSize=Math.max(4, (int)Math.ceil(pols.length==0 ? 1 : sizeSum/pols.length));
+		x0=all.x;
+		y0=all.y;
+		nx=all.width/cellSize+1;
+		ny=all.height/cellSize+1;
+		cellItems = new int[nx*ny][];
+		cellCounts = new int[nx*ny];
+		for(int index=0; index<pols.length; index++)
+		{
+			register(index);
+		}
+	}
+
+	/**
+	 * Grid column for an x position, clamped to the grid
+	 * @param x The x position
+	 * @return The column index
+	 */
+	protected int cellX(int x)
+	{
+		return Math.max(0, Math.min(nx-1, Math.floorDiv(x-x0, cellSize)));
+	}
+
+	/**
+	 * Grid row for a y position, clamped to the grid
+	 * @param y The y position
+	 * @return The row index
+	 */
+	protected int cellY(int y)
+	{
+		return Math.max(0, Math.min(ny-1, Math.floorDiv(y-y0, cellSize)));
+	}
+
+	/**
+	 * Add a polygon to all the cells touched by its registered bounds
+	 * @param index Index of the polygon
+	 */
+	protected void register(int index)
+	{
+		Rectangle r=bounds[index];
+		for(int cy=cellY(r.y); cy<=cellY(r.y+r.height); cy++)
+		{
+			for(int cx=cellX(r.x); cx<=cellX(r.x+r.width); cx++)
+			{
+				int cell=cy*nx+cx;
+				if(cellItems[cell]==null)
+				{
+					cellItems[cell]=new int[4];
+				}
+				else if(cellCounts[cell]==cellItems[cell].length)
+				{
+					int[] larger = new int[2*cellCounts[cell]];
+					System.arraycopy(cellItems[cell], 0, larger, 0, cellCounts[cell]);
+					cellItems[cell]=larger;
+				}
+				cellItems[cell][cellCounts[cell]]=index;
+				cellCounts[cell]++;
+			}
+		}
+	}
+
+	/**
+	 * Remove a polygon from all the cells touched by its registered bounds
+	 * @param index Index of the polygon
+	 */
+	protected void unregister(int index)
+	{
+		Rectangle r=bounds[index];
+		for(int cy=cellY(r.y); cy<=cellY(r.y+r.height); cy++)
+		{
+			for(int cx=cellX(r.x); cx<=cellX(r.x+r.width); cx++)
+			{
+				int cell=cy*nx+cx;
+				for(int k=0; k<cellCounts[cell]; k++)
+				{
+					if(cellItems[cell][k]==index)
+					{
+						cellCounts[cell]--;
+						cellItems[cell][k]=cellItems[cell][cellCounts[cell]];
+						break;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Notify the index that a polygon has changed (typically, after growth)
+	 * @param index Index of the polygon
+	 * @param pol The new polygon, also stored in the indexed polygon array
+	 */
+	public void update(int index, Polygon pol)
+	{
+		pols[index]=pol;
+		Rectangle r=pol.getBounds();
+		if(r.equals(bounds[index]))
+		{
+			return;
+		}
+		unregister(index);
+		bounds[index]=r;
+		register(index);
+	}
+
+	/**
+	 * Get the polygons whose bounds meet a given rectangle, edges included
+	 * @param r The rectangle
+	 * @param indexToAvoid Index of a polygon not to be returned (typically, the polygon being grown)
+	 * @return Indexes of the polygons meeting the rectangle, in no particular order; empty if there are none
+	 */
+	public int[] getNeighbors(Rectangle r, int indexToAvoid)
+	{
+		queryCount++;
+		int found=0;
+		int[] candidates = new int[8];
+		for(int cy=cellY(r.y); cy<=cellY(r.y+r.height); cy++)
+		{
+			for(int cx=cellX(r.x); cx<=cellX(r.x+r.width); cx++)
+			{
+				int cell=cy*nx+cx;
+				for(int k=0; k<cellCounts[cell]; k++)
+				{
+					int index=cellItems[cell][k];
+					if(index==indexToAvoid || queryStamp[index]==queryCount)
+					{
+						continue;
+					}
+					queryStamp[index]=queryCount;
+					Rectangle b=bounds[index];
+					if(b.x<=r.x+r.width && b.x+b.width>=r.x && b.y<=r.y+r.height && b.y+b.height>=r.y)
+					{
+						if(found==candidates.length)
+						{
+							int[] larger = new int[2*found];
+							System.arraycopy(candidates, 0, larger, 0, found);
+							candidates=larger;
+						}
+						candidates[found]=index;
+						found++;
+					}
+				}
+			}
+		}
+		int[] ret = new int[found];
+		System.arraycopy(candidates, 0, ret, 0, found);
+		return ret;
+	}
+
+}
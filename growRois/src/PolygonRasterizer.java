@@ -0,0 +1,214 @@
+import java.awt.Polygon;
+
+/**
+ * Scanline filling of polygons into a {@link BitMask}, with the pixel rule of ImageJ's PolygonFiller.
+ * The polygon is drawn at an offset, so that it does not need to be cloned and translated to the
+ * frame of the mask, and the edge tables are kept between calls, so that filling does not allocate
+ * once they have reached the size of the largest polygon
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class PolygonRasterizer {
+
+	/** Number of edges in the edge table */
+	protected int edges=0;
+
+	/** Number of edges crossing the current scanline */
+	protected int activeEdges=0;
+
+	/** x position of each edge on the current scanline, relative to the left of the polygon bounds */
+	protected double[] ex = new double[16];
+
+	/** First scanline of each edge */
+	protected int[] ey1 = new int[16];
+
+	/** Scanline after the last one of each edge */
+	protected int[] ey2 = new int[16];
+
+	/** Change in x per scanline of each edge */
+	protected double[] eslope = new double[16];
+
+	/** Edges crossing the current scanline, sorted by x */
+	protected int[] aedge = new int[16];
+
+	/**
+	 * Fill a polygon into a mask. The pixel at (x, y) of the polygon is set at (x-xOffset, y-yOffset) in the mask;
+	 * the parts of the polygon outside the mask are clipped
+	 * @param pol The polygon
+	 * @param target The mask, existing pixels are kept
+	 * @param xOffset x position of the left edge of the mask in the coordinates of the polygon
+	 * @param yOffset y position of the top edge of the mask in the coordinates of the polygon
+	 */
+	public void fill(Polygon pol, BitMask target, int xOffset, int yOffset)
+	{
+		if(pol.npoints<3)
+		{
+			return;
+		}
+		// The edges are set up relative to the top left of the bounds, like for a PolygonRoi, so that the
+		// rounding of the edge positions does not depend on where the polygon is
+		int xMin=Integer.MAX_VALUE;
+		int yMin=Integer.MAX_VALUE;
+		int yMax=Integer.MIN_VALUE;
+		for(int i=0; i<pol.npoints; i++)
+		{
+			xMin=Math.min(xMin, pol.xpoints[i]);
+			yMin=Math.min(yMin, pol.ypoints[i]);
+			yMax=Math.max(yMax, pol.ypoints[i]);
+		}
+		if(yMin-yOffset>=target.height || yMax-yOffset<=0)
+		{
+			return;
+		}
+		buildEdgeTable(pol, xMin, yMin);
+
+		int xShift=xMin-xOffset;
+		int yEnd=Math.min(yMax-yMin, target.height+yOffset-yMin);
+		for(int y=0; y<yEnd; y++)
+		{
+			removeInactiveEdges(y);
+			activateEdges(y);
+			int yTarget=y+yMin-yOffset;
+			if(yTarget>=0)
+			{
+				for(int i=0; i+1<activeEdges; i+=2)
+				{
+					int x1=Math.max(0, (int)(ex[aedge[i]]+0.5)+xShift);
+					int x2=Math.min(target.width, (int)(ex[aedge[i+1]]+0.5)+xShift);
+					target.setSpan(yTarget, x1, x2);
+				}
+			}
+			updateXCoordinates();
+		}
+	}
+
+	/**
+	 * Set up the non-horizontal edges of a polygon
+	 * @param pol The polygon
+	 * @param xMin Left edge of the polygon bounds
+	 * @param yMin Top edge of the polygon bounds
+	 */
+	protected void buildEdgeTable(Polygon pol, int xMin, int yMin)
+	{
+		int n=pol.npoints;
+		if(ex.length<n)
+		{
+			ex = new double[n];
+			ey1 = new int[n];
+			ey2 = new int[n];
+			eslope = new double[n];
+			aedge = new int[n];
+		}
+		edges=0;
+		activeEdges=0;
+		for(int i=0; i<n; i++)
+		{
+			int iplus1=(i==n-1) ? 0 : i+1;
+			int y1=pol.ypoints[i]-yMin;
+			int y2=pol.ypoints[iplus1]-yMin;
+			int x1=pol.xpoints[i]-xMin;
+			int x2=pol.xpoints[iplus1]-xMin;
+			if(y1==y2)
+			{
+				continue;
+			}
+			if(y1>y2)
+			{
+				int swap=y1;
+				y1=y2;
+				y2=swap;
+				swap=x1;
+				x1=x2;
+				x2=swap;
+			}
+			double slope=(double)(x2-x1)/(y2-y1);
+			ex[edges]=x1+slope/2.0+1e-8;
+			ey1[edges]=y1;
+			ey2[edges]=y2;
+			eslope[edges]=slope;
+			edges++;
+		}
+	}
+
+	/**
+	 * Remove the edges that do not cross a scanline anymore
+	 * @param y The scanline
+	 */
+	protected void removeInactiveEdges(int y)
+	{
+		int i=0;
+		while(i<activeEdges)
+		{
+			int index=aedge[i];
+			if(y<ey1[index] || y>=ey2[index])
+			{
+				System.arraycopy(aedge, i+1, aedge, i, activeEdges-i-1);
+				activeEdges--;
+			}
+			else
+			{
+				i++;
+			}
+		}
+	}
+
+	/**
+	 * Add the edges starting at a scanline, keeping the active edges sorted by x
+	 * @param y The scanline
+	 */
+	protected void activateEdges(int y)
+	{
+		for(int index=0; index<edges; index++)
+		{
+			if(y==ey1[index])
+			{
+				int position=0;
+				while(position<activeEdges && ex[index]>ex[aedge[position]])
+				{
+					position++;
+				}
+				System.arraycopy(aedge, position, aedge, position+1, activeEdges-position);
+				aedge[position]=index;
+				activeEdges++;
+			}
+		}
+	}
+
+	/**
+	 * Move the active edges to the next scanline, and sort them again if their order changed
+	 */
+	protected void updateXCoordinates()
+	{
+		double previous=-Double.MAX_VALUE;
+		boolean sorted=true;
+		for(int i=0; i<activeEdges; i++)
+		{
+			int index=aedge[i];
+			ex[index]+=eslope[index];
+			if(ex[index]<previous)
+			{
+				sorted=false;
+			}
+			previous=ex[index];
+		}
+		if(!sorted)
+		{
+			// Selection sort, as in PolygonFiller
+			for(int i=0; i<activeEdges; i++)
+			{
+				int min=i;
+				for(int j=i; j<activeEdges; j++)
+				{
+					if(ex[aedge[j]]<ex[aedge[min]])
+					{
+						min=j;
+					}
+				}
+				int swap=aedge[min];
+				aedge[min]=aedge[i];
+				aedge[i]=swap;
+			}
+		}
+	}
+
+}
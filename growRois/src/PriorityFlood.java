@@ -0,0 +1,572 @@
+import ij.ImageStack;
+import ij.gui.ProgressBar;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Seeded watershed on a {@link LabelMap} with a hierarchical queue of buckets, one per grey level of the guide
+ * (see {@link GuideLevels}), so that 16- and 32-bit guides can be flooded at their native levels.
+ * The result follows the semantics of {@link RoiLogics#growPolygonsWatershed}: for each grey level from dark to bright,
+ * the ROIs grow by up to nSteps pixels into the accessible pixels not brighter than the level. Instead of
+ * thresholding the whole guide and growing the whole map at every level, only the pixels adjacent to the ROIs
+ * are queued, in the bucket of their grey level, so that each pixel is processed roughly once
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class PriorityFlood {
+
+	/** Pixel not yet queued */
+	protected static final byte NOT_QUEUED=0;
+
+	/** Pixel waiting in a queue */
+	protected static final byte QUEUED=1;
+
+	/**
+	 * Flood the label map along the watershed guide, with the default levels of {@link GuideLevels}
+	 * @param map The label map, with seeds and allowed pixels set; grown in place
+	 * @param watershedProcessor Greyscale image containing the watershed guide, first fill low values, then higher
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param bp Reference to progress bar to show progress, can be null
+	 */
+	public static void flood(LabelMap map, ImageProcessor watershedProcessor, int nSteps, ProgressBar bp)
+	{
+		flood(map, watershedProcessor, GuideLevels.DEFAULT_LEVELS, nSteps, bp);
+	}
+
+	/**
+	 * Flood the label map along the watershed guide, with a given number of levels
+	 * @param map The label map, with seeds and allowed pixels set; grown in place
+	 * @param watershedProcessor Greyscale image containing the watershed guide, first fill low values, then higher
+	 * @param nLevels Number of watershed levels, 0 for the native levels of the guide, see {@link GuideLevels}
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param bp Reference to progress bar to show progress, can be null
+	 */
+	public static void flood(LabelMap map, ImageProcessor watershedProcessor, int nLevels, int nSteps, ProgressBar bp)
+	{
+		flood(map, GuideLevels.fromProcessor(watershedProcessor, nLevels), nSteps, bp);
+	}
+
+	/**
+	 * Flood the label map along the levels of a watershed guide, from the lowest to the highest level of the levels
+	 * @param map The label map, with seeds and allowed pixels set; grown in place
+	 * @param levels The levels of the guide, see {@link GuideLevels} and {@link GuideScale#levelsOf(ImageProcessor)}
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param bp Reference to progress bar to show progress, can be null
+	 */
+	public static void flood(LabelMap map, GuideLevels levels, int nSteps, ProgressBar bp)
+	{
+		int lower=levels.lower;
+		int upper=levels.upper;
+
+		int width=map.width;
+		int height=map.height;
+		int[] guide=levels.level[0];
+		int guideWidth=levels.width;
+		int guideHeight=levels.height;
+
+		// Pixels outside the guide are never reached by the threshold of any level
+		int[] level = new int[width*height];
+		for(int y=0; y<height; y++)
+		{
+			for(int x=0; x<width; x++)
+			{
+				if(x<guideWidth && y<guideHeight)
+				{
+					level[y*width+x]=guide[y*guideWidth+x];
+				}
+				else
+				{
+					level[y*width+x]=Integer.MAX_VALUE;
+				}
+			}
+		}
+
+		// Buckets are created when first used, since 32-bit guides can have as many levels as pixels
+		IntList[] buckets = new IntList[levels.nBuckets];
+		byte[] state = new byte[width*height];
+
+		// Initial candidates: unlabelled accessible pixels touching a seed
+		for(int index=0; index<width*height; index++)
+		{
+			if(map.labels[index]!=0)
+			{
+				queueNeighbors(map, index, level, state, buckets, null, -1);
+			}
+		}
+
+		IntList current = new IntList();
+		IntList next = new IntList();
+		int[] newLabels = new int[16];
+
+		for(int theLevel=lower; theLevel<=upper; theLevel++)
+		{
+			// Pixels left over from the previous level remain accessible and keep growing;
+			// at the first level, all the pixels not brighter than the level become accessible
+			int firstBucket=theLevel;
+			if(theLevel==lower)
+			{
+				firstBucket=0;
+			}
+			for(int l=Math.max(0, firstBucket); l<=Math.min(buckets.length-1, theLevel); l++)
+			{
+				IntList bucket=buckets[l];
+				if(bucket==null)
+				{
+					continue;
+				}
+				for(int k=0; k<bucket.size; k++)
+				{
+					current.add(bucket.data[k]);
+				}
+				buckets[l]=null;
+			}
+
+			for(int step=0; step<nSteps && !current.isEmpty(); step++)
+			{
+				// First decide on the labels of the whole layer, then assign, so that all ROIs grow from the same state
+				if(newLabels.length<current.size)
+				{
+					newLabels = new int[current.data.length];
+				}
+				for(int k=0; k<current.size; k++)
+				{
+					newLabels[k]=map.lowestNeighborLabel(current.data[k]);
+				}
+				for(int k=0; k<current.size; k++)
+				{
+					map.labels[current.data[k]]=newLabels[k];
+				}
+				next.clear();
+				for(int k=0; k<current.size; k++)
+				{
+					queueNeighbors(map, current.data[k], level, state, buckets, next, theLevel);
+				}
+				IntList swap=current;
+				current=next;
+				next=swap;
+			}
+
+			if(bp!=null)
+			{
+				bp.show(theLevel-lower,upper-lower);
+			}
+		}
+	}
+
+	/**
+	 * Get a bucket, creating it if needed
+	 * @param buckets The buckets
+	 * @param l The level of the bucket
+	 * @return The bucket
+	 */
+	protected static IntList bucketFor(IntList[] buckets, int l)
+	{
+		if(buckets[l]==null)
+		{
+			buckets[l] = new IntList();
+		}
+		return buckets[l];
+	}
+
+	/**
+	 * Queue the unlabelled, accessible neighbors of a labelled pixel that are not yet queued
+	 * @param map The label map
+	 * @param index Index of the labelled pixel
+	 * @param level Grey level of each pixel
+	 * @param state Queue state of each pixel
+	 * @param buckets Buckets for the pixels above the current level
+	 * @param next List for the pixels at or below the current level, can be null
+	 * @param currentLevel The current level
+	 */
+	protected static void queueNeighbors(LabelMap map, int index, int[] level, byte[] state, IntList[] buckets, IntList next, int currentLevel)
+	{
+		int width=map.width;
+		int height=map.height;
+		int x=index%width;
+		int y=index/width;
+		for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+		{
+			for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+			{
+				if(!map.isNeighbor(xn-x, yn-y))
+				{
+					continue;
+				}
+				int n=yn*width+xn;
+				if(map.labels[n]!=0 || state[n]!=NOT_QUEUED || !map.isAllowed(n) || level[n]>=buckets.length)
+				{
+					continue;
+				}
+				state[n]=QUEUED;
+				if(next!=null && level[n]<=currentLevel)
+				{
+					next.add(n);
+				}
+				else
+				{
+					bucketFor(buckets, level[n]).add(n);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flood a label volume along a three-dimensional watershed guide, with the default levels of {@link GuideLevels}
+	 * @param volume The label volume, with seeds and allowed voxels set; grown in place
+	 * @param guide Greyscale stack containing the watershed guide, one slice for each slice of the volume
+	 * @param nSteps How many voxels to grow for each watershed level
+	 * @param bp Reference to progress bar to show progress, can be null
+	 */
+	public static void flood(LabelVolume volume, ImageStack guide, int nSteps, ProgressBar bp)
+	{
+		flood(volume, guide, GuideLevels.DEFAULT_LEVELS, nSteps, bp);
+	}
+
+	/**
+	 * Flood a label volume along a three-dimensional watershed guide, with the semantics of
+	 * {@link #flood(LabelMap, ImageProcessor, int, ProgressBar)}. Voxels are indexed z*width*height+y*width+x,
+	 * so that the volume must have fewer than 2^31 voxels. Each step is carried out on slabs of slices in parallel
+	 * with the number of threads set on the volume: the new labels are first determined from the labels of the previous
+	 * step, then assigned, so that the result does not depend on the number of threads
+	 * @param volume The label volume, with seeds and allowed voxels set; grown in place
+	 * @param guide Greyscale stack containing the watershed guide, one slice for each slice of the volume
+	 * @param nLevels Number of watershed levels over the whole stack, 0 for the native levels of the guide, see
+	 * {@link GuideLevels}
+	 * @param nSteps How many voxels to grow for each watershed level
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @throws IllegalArgumentException If the guide does not have the size of the volume
+	 */
+	public static void flood(LabelVolume volume, ImageStack guide, int nLevels, int nSteps, ProgressBar bp)
+	{
+		int width=volume.width;
+		int height=volume.height;
+		int depth=volume.depth;
+		int plane=width*height;
+		if((long)plane*depth>Integer.MAX_VALUE)
+		{
+			throw new IllegalArgumentException("Label volume too large for the watershed: "+width+"x"+height+"x"+depth);
+		}
+		if(guide.getWidth()!=width || guide.getHeight()!=height || guide.getSize()!=depth)
+		{
+			throw new IllegalArgumentException("The guide is "+guide.getWidth()+"x"+guide.getHeight()+"x"+guide.getSize()
+					+", the seeds "+width+"x"+height+"x"+depth+"; they need the same size");
+		}
+
+		GuideLevels levels=GuideLevels.fromStack(guide, nLevels);
+		int[][] level=levels.level;
+		int lower=levels.lower;
+		int upper=levels.upper;
+
+		IntList[] buckets = new IntList[levels.nBuckets];
+		byte[][] state = new byte[depth][plane];
+
+		for(int z=0; z<depth; z++)
+		{
+			for(int index=0; index<plane; index++)
+			{
+				if(volume.labels[z][index]!=0)
+				{
+					queueNeighbors(volume, z*plane+index, level, state, buckets, null, -1);
+				}
+			}
+		}
+
+		// The voxels to process are kept by slice, so that slabs of slices can be processed in parallel
+		FloodSlices slices = new FloodSlices(volume);
+		ForkJoinPool pool=null;
+		if(volume.nThreads>1 && depth>1)
+		{
+			pool = new ForkJoinPool(Math.min(volume.nThreads, depth));
+		}
+		try
+		{
+			for(int theLevel=lower; theLevel<=upper; theLevel++)
+			{
+				int firstBucket=theLevel;
+				if(theLevel==lower)
+				{
+					firstBucket=0;
+				}
+				for(int l=firstBucket; l<=theLevel; l++)
+				{
+					IntList bucket=buckets[l];
+					if(bucket==null)
+					{
+						continue;
+					}
+					for(int k=0; k<bucket.size; k++)
+					{
+						slices.current[bucket.data[k]/plane].add(bucket.data[k]);
+					}
+					buckets[l]=null;
+				}
+
+				for(int step=0; step<nSteps && !slices.isEmpty(); step++)
+				{
+					// Across slices, voxels are reached every zInterval steps only; those reached only across slices
+					// wait in the list until then
+					slices.acrossSlices=(step+1)%volume.zInterval==0;
+					// Jacobi step: all new labels are determined from the labels of the previous step, then assigned
+					if(pool==null)
+					{
+						slices.decide(0, depth);
+						slices.assign(0, depth);
+					}
+					else
+					{
+						pool.invoke(new FloodSlabTask(slices, 0, depth, 0));
+						pool.invoke(new FloodSlabTask(slices, 0, depth, 1));
+					}
+					// Queueing touches the neighboring slices and the shared buckets, so that it stays serial
+					for(int z=0; z<depth; z++)
+					{
+						IntList current=slices.current[z];
+						int[] newLabels=slices.newLabels[z];
+						for(int k=0; k<current.size; k++)
+						{
+							if(newLabels[k]!=0)
+							{
+								queueNeighbors(volume, current.data[k], level, state, buckets, slices.next, theLevel);
+							}
+						}
+					}
+					slices.swap();
+				}
+
+				if(bp!=null)
+				{
+					bp.show(theLevel-lower,upper-lower);
+				}
+			}
+		}
+		finally
+		{
+			if(pool!=null)
+			{
+				pool.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * The voxels processed by a step of the three-dimensional flood, kept by slice
+	 * @author Thomas Braschler, Zahra Sadat Ghazali
+	 *
+	 */
+	protected static class FloodSlices
+	{
+		/** The label volume being flooded */
+		protected LabelVolume volume;
+
+		/** Voxels to process in the current step, for each slice */
+		protected IntList[] current;
+
+		/** Voxels to process in the next step, for each slice */
+		protected IntList[] next;
+
+		/** New label of each voxel of the current step, in the order of the current list of its slice */
+		protected int[][] newLabels;
+
+		/** Whether the current step includes growth across slices */
+		protected boolean acrossSlices=false;
+
+		/**
+		 * Create empty lists for each slice of a volume
+		 * @param volume The label volume being flooded
+		 */
+		public FloodSlices(LabelVolume volume)
+		{
+			this.volume=volume;
+			current = new IntList[volume.depth];
+			next = new IntList[volume.depth];
+			newLabels = new int[volume.depth][];
+			for(int z=0; z<volume.depth; z++)
+			{
+				current[z] = new IntList();
+				next[z] = new IntList();
+				newLabels[z] = new int[16];
+			}
+		}
+
+		/**
+		 * Are there no voxels left to process?
+		 * @return true if the current lists of all slices are empty
+		 */
+		public boolean isEmpty()
+		{
+			for(int z=0; z<current.length; z++)
+			{
+				if(!current[z].isEmpty())
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Determine the new labels of the current voxels of a range of slices, reading the labels only
+		 * @param zStart First slice of the range
+		 * @param zEnd Slice after the last slice of the range
+		 */
+		public void decide(int zStart, int zEnd)
+		{
+			int width=volume.width;
+			int plane=width*volume.height;
+			for(int z=zStart; z<zEnd; z++)
+			{
+				IntList list=current[z];
+				if(newLabels[z].length<list.size)
+				{
+					newLabels[z] = new int[list.data.length];
+				}
+				for(int k=0; k<list.size; k++)
+				{
+					int index=list.data[k]%plane;
+					newLabels[z][k]=volume.lowestNeighborLabel(index%width, index/width, z, acrossSlices);
+				}
+			}
+		}
+
+		/**
+		 * Assign the new labels of the current voxels of a range of slices; the voxels still unlabelled are kept
+		 * for the next step
+		 * @param zStart First slice of the range
+		 * @param zEnd Slice after the last slice of the range
+		 */
+		public void assign(int zStart, int zEnd)
+		{
+			int plane=volume.width*volume.height;
+			for(int z=zStart; z<zEnd; z++)
+			{
+				IntList list=current[z];
+				IntList waiting=next[z];
+				waiting.clear();
+				for(int k=0; k<list.size; k++)
+				{
+					int v=list.data[k];
+					volume.labels[z][v%plane]=newLabels[z][k];
+					if(newLabels[z][k]==0)
+					{
+						waiting.add(v);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Make the lists of the next step the current lists
+		 */
+		public void swap()
+		{
+			IntList[] swap=current;
+			current=next;
+			next=swap;
+		}
+	}
+
+	/**
+	 * Task for one phase of a step of the three-dimensional flood on a range of slices, split in halves
+	 * until single slices are reached
+	 * @author Thomas Braschler, Zahra Sadat Ghazali
+	 *
+	 */
+	protected static class FloodSlabTask extends RecursiveAction
+	{
+		/** The voxels of the step */
+		protected FloodSlices slices;
+
+		/** First slice of the range */
+		protected int zStart;
+
+		/** Slice after the last slice of the range */
+		protected int zEnd;
+
+		/** The phase: 0 for the determination of the labels, 1 for the assignment */
+		protected int phase;
+
+		/**
+		 * Create a task for a range of slices
+		 * @param slices The voxels of the step
+		 * @param zStart First slice of the range
+		 * @param zEnd Slice after the last slice of the range
+		 * @param phase 0 for the determination of the labels, 1 for the assignment
+		 */
+		public FloodSlabTask(FloodSlices slices, int zStart, int zEnd, int phase)
+		{
+			this.slices=slices;
+			this.zStart=zStart;
+			this.zEnd=zEnd;
+			this.phase=phase;
+		}
+
+		protected void compute()
+		{
+			if(zEnd-zStart<=1)
+			{
+				if(phase==0)
+				{
+					slices.decide(zStart, zEnd);
+				}
+				else
+				{
+					slices.assign(zStart, zEnd);
+				}
+				return;
+			}
+			int zMiddle=(zStart+zEnd)/2;
+			invokeAll(new FloodSlabTask(slices, zStart, zMiddle, phase), new FloodSlabTask(slices, zMiddle, zEnd, phase));
+		}
+	}
+
+	/**
+	 * Queue the unlabelled, accessible neighbors of a labelled voxel that are not yet queued
+	 * @param volume The label volume
+	 * @param v Index of the labelled voxel, z*width*height+y*width+x
+	 * @param level Grey level of each voxel
+	 * @param state Queue state of each voxel
+	 * @param buckets Buckets for the voxels above the current level
+	 * @param next Lists for the voxels at or below the current level, one for each slice, can be null
+	 * @param currentLevel The current level
+	 */
+	protected static void queueNeighbors(LabelVolume volume, int v, int[][] level, byte[][] state, IntList[] buckets, IntList[] next, int currentLevel)
+	{
+		int width=volume.width;
+		int height=volume.height;
+		int plane=width*height;
+		int z=v/plane;
+		int x=(v%plane)%width;
+		int y=(v%plane)/width;
+		for(int zn=Math.max(0, z-1); zn<=Math.min(volume.depth-1, z+1); zn++)
+		{
+			for(int yn=Math.max(0, y-1); yn<=Math.min(height-1, y+1); yn++)
+			{
+				for(int xn=Math.max(0, x-1); xn<=Math.min(width-1, x+1); xn++)
+				{
+					if(!volume.isNeighbor(xn-x, yn-y, zn-z))
+					{
+						continue;
+					}
+					int n=yn*width+xn;
+					int l=level[zn][n];
+					if(volume.labels[zn][n]!=0 || state[zn][n]!=NOT_QUEUED || !volume.isAllowed(n, zn) || l>=buckets.length)
+					{
+						continue;
+					}
+					state[zn][n]=QUEUED;
+					if(next!=null && l<=currentLevel)
+					{
+						next[zn].add(zn*plane+n);
+					}
+					else
+					{
+						bucketFor(buckets, l).add(zn*plane+n);
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -2,7 +2,9 @@
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.Macro;
+import ij.Prefs;
 import ij.WindowManager;
 import ij.gui.PolygonRoi;
 import ij.gui.ProgressBar;
@@ -22,8 +24,12 @@ import java.awt.Frame;
 import java.awt.List;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.util.Arrays;
 
+import javax.swing.DefaultListModel;
+import javax.swing.JList;
 import javax.swing.JScrollPane;
+import javax.swing.ListModel;
 
 /** 
  * Class with static utility functions for handling Rois and also accessing imageJ's roiManager
@@ -32,10 +38,8 @@ import javax.swing.JScrollPane;
  */
 public class RoiLogics {
 
-	/** 
-	 * Reference to ImageJ's roiManager
-	 */
-	public static RoiManager roiManager=null;
+	/** Largest number of watershed levels of the polygon by polygon watershed, each level growing over the whole image */
+	public static final int MAX_POLYGON_WATERSHED_LEVELS=256;
 
 	/**
 	 * Get the count of ROIs at present listed in the ROI manager
@@ -43,10 +47,7 @@ public class RoiLogics {
 	 */
 	public static int getCount()
 	{
-		if(roiManager==null)
-		{
-			roiManager=getRoiManager();
-		}
+		RoiManager roiManager=getRoiManager();
 
 		return(roiManager.getCount());
 	}
@@ -59,10 +60,7 @@ public class RoiLogics {
 	public static void addSelection(ImagePlus imp)
 	{
 
-		if(roiManager==null)
-		{
-			roiManager=getRoiManager();
-		}
+		RoiManager roiManager=getRoiManager();
 
 		if(imp.getRoi() != null)
 		{
@@ -79,10 +77,7 @@ public class RoiLogics {
 	 */
 	public static void checkRois(ImagePlus imp)
 	{
-		if(roiManager==null)
-		{
-			roiManager=getRoiManager();
-		}
+		RoiManager roiManager=getRoiManager();
 
 		if(roiManager.getCount()==0)
 		{
@@ -245,19 +240,22 @@ public class RoiLogics {
 		return new Color(0,0,0);
 	}
 
+	/**
+	 * Get a reference to ImageJ's roiManager, opening it if necessary. The reference is looked up at each call
+	 * rather than kept, so that concurrent runs do not share it and a closed manager is not used again
+	 * @return The ROI manager
+	 */
 	public static RoiManager getRoiManager()
 	{
+		RoiManager roiManager=null;
+		if (Macro.getOptions()!=null && Interpreter.isBatchMode())
+			roiManager = Interpreter.getBatchModeRoiManager();
 		if (roiManager==null) {
-			if (Macro.getOptions()!=null && Interpreter.isBatchMode())
-				roiManager = Interpreter.getBatchModeRoiManager();
-			if (roiManager==null) {
-				Frame frame = WindowManager.getFrame("ROI Manager");
-				if (frame==null)
-					IJ.run("ROI Manager...");
-				frame = WindowManager.getFrame("ROI Manager");
-				roiManager = (RoiManager)frame;
-			}
-
+			Frame frame = WindowManager.getFrame("ROI Manager");
+			if (frame==null)
+				IJ.run("ROI Manager...");
+			frame = WindowManager.getFrame("ROI Manager");
+			roiManager = (RoiManager)frame;
 		}
 		return roiManager;
 	}
@@ -291,93 +289,124 @@ public class RoiLogics {
 	 * @return The polygon grown by a pixel
 	 */
 	public static Polygon growPolygon(Polygon pol, ImageProcessor maskAllowedPixels, Polygon[] polygons_to_avoid)
-	{	
-		// In order to save memory, we do the enlargement operation only locally, 
-		// so we need to translate the polygon to near the origin
-
-
+	{
+		return growPolygon(pol, maskAllowedPixels, polygons_to_avoid, 8);
+	}
 
-		Rectangle r=pol.getBounds();
-		Polygon polCopy = clonePolygon(pol);
-		polCopy.translate(-r.x+2, -r.y+2);
+	/**
+	 * Grows a polygon by a pixel with a given connectivity, respecting the white areas on the mask and also avoiding the other polygons
+	 * @param pol The polygon to be grown (the polygon itself is not changed, the resulting polygon is a new one)
+	 * @param maskAllowedPixels 0/255 values to indicate the forbidden and allowed areas
+	 * @param polygons_to_avoid An array of polygons to be avoided while growing
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @return The polygon grown by a pixel
+	 */
+	public static Polygon growPolygon(Polygon pol, ImageProcessor maskAllowedPixels, Polygon[] polygons_to_avoid, int connectivity)
+	{
+		return growPolygon(pol, maskAllowedPixels, polygons_to_avoid, null, connectivity, null);
+	}
 
-		Polygon[] polygons_to_avoid_copy=clonePolygonArray(polygons_to_avoid);
+	/**
+	 * Grows a polygon by a pixel with a given connectivity, respecting the white areas on the mask and avoiding the
+	 * pixels occupied by other polygons. The occupancy map is updated with the pixels gained or lost by the polygon
+	 * @param pol The polygon to be grown (the polygon itself is not changed, the resulting polygon is a new one)
+	 * @param maskAllowedPixels 0/255 values to indicate the forbidden and allowed areas
+	 * @param occupancy The pixels occupied by all polygons, including this one
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @return The polygon grown by a pixel
+	 */
+	public static Polygon growPolygon(Polygon pol, ImageProcessor maskAllowedPixels, OccupancyMap occupancy, int connectivity)
+	{
+		return growPolygon(pol, maskAllowedPixels, null, occupancy, connectivity, null);
+	}
 
-		translatePolygonArray(polygons_to_avoid_copy,-r.x+2,-r.y+2);
+	/**
+	 * Grows a polygon by a pixel, with the obstacles given either as polygons or as occupancy map
+	 * @param pol The polygon to be grown (the polygon itself is not changed, the resulting polygon is a new one)
+	 * @param maskAllowedPixels 0/255 values to indicate the forbidden and allowed areas
+	 * @param polygons_to_avoid An array of polygons to be avoided while growing, can be null
+	 * @param occupancy The pixels occupied by all polygons, updated with the changes of this one; can be null
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param seed Pixel inside the polygon from which the outline is traced, see {@link #getSeed(Polygon)}; null to search one
+	 * near the center of gravity
+	 * @return The polygon grown by a pixel
+	 */
+	protected static Polygon growPolygon(Polygon pol, ImageProcessor maskAllowedPixels, Polygon[] polygons_to_avoid, OccupancyMap occupancy, int connectivity, int[] seed)
+	{	
+		// In order to save memory, we do the enlargement operation only locally, on a crop around the polygon
+		// with a rim of 2 pixels. The polygons are drawn into the crop at an offset, and all masks come from the
+		// buffers of the current thread, so that no images need to be allocated
 
+		Rectangle r=pol.getBounds();
+		int xOffset=r.x-2;
+		int yOffset=r.y-2;
+		int width=r.width+4;
+		int height=r.height+4;
 
+		GrowthScratch scratch=GrowthScratch.get();
 
-		// Use the polygon coordinates to create an image where the pixels inside the polygon are white, the other ones black
-		ByteProcessor thePolygonMask = maskFromPolygon(polCopy,r.width+4,r.height+4);
-		ByteProcessor thePolygonMask_Old = maskFromPolygon(polCopy,r.width+4,r.height+4);
-		ByteProcessor allowedMask=new ByteProcessor(r.width+4, r.height+4);
+		// The masks are combined bit-packed, 64 pixels at a time
+		BitMask oldMask=scratch.oldMask;
+		oldMask.reset(width, height);
+		scratch.rasterizer.fill(pol, oldMask, xOffset, yOffset);
+		BitMask grownMask = oldMask.dilate(scratch.grownMask, connectivity!=4);
 
 		if(maskAllowedPixels!=null)
 		{
-
-
-
-			allowedMask.copyBits(maskAllowedPixels, -r.x+2, -r.y+2, Blitter.COPY);
-
-
-
-			allowedMask.copyBits(thePolygonMask, 0, 0, Blitter.OR);
-
-
-
-			//ip1.copyBits(ip2, 0, 0, mode);
-
+			BitMask allowedMask=scratch.allowedMask;
+			allowedMask.reset(width, height);
+			allowedMask.read(maskAllowedPixels, xOffset, yOffset);
+			allowedMask.or(oldMask);
+			grownMask.and(allowedMask);
 		}
-		else
+		if(polygons_to_avoid != null)
 		{
-			// all pixels are possible
-			allowedMask.add(allowedMask.maxValue());
+			BitMask obstacles=scratch.obstacles;
+			obstacles.reset(width, height);
+			for(int index=0; index<polygons_to_avoid.length; index++)
+			{
+				scratch.rasterizer.fill(polygons_to_avoid[index], obstacles, xOffset, yOffset);
+			}
+			// The polygon itself is never an obstacle
+			obstacles.andNot(oldMask);
+			grownMask.andNot(obstacles);
 		}
-		ByteProcessor otherPols = null;
-		if(polygons_to_avoid_copy != null)
+		if(occupancy != null)
 		{
-			otherPols = new ByteProcessor(r.width+4, r.height+4);	
-			otherPols.setColor(RoiLogics.getWhiteColor());
-			otherPols.fill();
-			drawPolygonArrayToMask(polygons_to_avoid_copy,otherPols,RoiLogics.getBlackColor());
-			drawPolygonToMask(polCopy,otherPols,RoiLogics.getWhiteColor());
-
-
+			BitMask obstacles=scratch.obstacles;
+			obstacles.reset(width, height);
+			occupancy.getOccupied(obstacles, xOffset, yOffset);
+			obstacles.andNot(oldMask);
+			grownMask.andNot(obstacles);
 		}
 
-		// The binary processing erodes the black, which mean it actually enlargens the polygon
-		thePolygonMask.erode();
+		grownMask.or(oldMask);
 
-		if(maskAllowedPixels!=null)
+		int[] starting_point_old;
+		if(seed!=null && oldMask.get(seed[0]-xOffset, seed[1]-yOffset))
 		{
-			thePolygonMask.copyBits(allowedMask, 0, 0, Blitter.AND);
+			starting_point_old = new int[] {seed[0]-xOffset, seed[1]-yOffset};
 		}
-		if(otherPols!=null)
+		else
 		{
-
-			thePolygonMask.copyBits(otherPols, 0, 0, Blitter.AND);
-
-
-
+			starting_point_old = getStartingPointBright(oldMask);
 		}
-		
-		thePolygonMask.copyBits(thePolygonMask_Old, 0, 0, Blitter.OR);
-		
-		
-		fillHoles(thePolygonMask);
-		
 
-
-		int[] starting_point_old = getStartingPointBright(thePolygonMask_Old);
-		
-
-
-		// Reconstitute a polygon from the mask
-		Polygon retPol = polygonFromMask(thePolygonMask,starting_point_old[0],starting_point_old[1]);
+		// Reconstitute a polygon from the mask, after filling its holes
+		Polygon retPol = scratch.traceOutline(grownMask, starting_point_old[0], starting_point_old[1]);
 		
 		
 		// Now, we can shift the polygon back to where it belongs
-		retPol.translate(r.x-2, r.y-2);
+		retPol.translate(xOffset, yOffset);
+
+		if(occupancy != null)
+		{
+			// The new polygon lies within the crop, its pixels replace the old ones
+			BitMask newMask=scratch.allowedMask;
+			newMask.reset(width, height);
+			scratch.rasterizer.fill(retPol, newMask, xOffset, yOffset);
+			occupancy.replace(oldMask, newMask, xOffset, yOffset);
+		}
 
 		return retPol;
 
@@ -413,16 +442,59 @@ public class RoiLogics {
     }
 	
 	/**
-	 * Grow polygons
+	 * Grow polygons. A polygon that did not change during a step is frozen and skipped in the following steps:
+	 * the mask is fixed and the neighbors only grow, so it cannot grow anymore. When a neighbor gives up pixels
+	 * next to a frozen polygon, the polygon is unfrozen again. The growth stops early once all
+	 * polygons are frozen. Each watershed level calls this function anew, so that an opening level unfreezes all polygons
+	 * @param pols An array of polygons
+	 * @param allowedProcessor The image Processor to use
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nSteps How many pixels to grow?
+	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
+	 */
+
+	public static int growPolygons(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, ProgressBar bp)
+	{
+		return growPolygons(pols, allowedProcessor, avoidNeighbors, nSteps, 8, bp);
+	}
+
+	/**
+	 * Grow polygons with a given connectivity, see {@link #growPolygons(Polygon[], ImageProcessor, boolean, int, ProgressBar)}
 	 * @param pols An array of polygons
 	 * @param allowedProcessor The image Processor to use
 	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
 	 * @param nSteps How many pixels to grow?
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
 	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
 	 */
 
-	public static void growPolygons(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, ProgressBar bp)
+	public static int growPolygons(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, int connectivity, ProgressBar bp)
 	{
+		// The pixels of all polygons are recorded once and then updated with the changes of each polygon.
+		// A polygon grows by at most a pixel per step, so the map needs to extend beyond the polygons by nSteps
+		// plus the rim of the crop in growPolygon
+		// The grid finds the frozen polygons near the pixels given up by a polygon, without testing every polygon
+		OccupancyMap occupancy = null;
+		PolygonGrid grid = null;
+		if(avoidNeighbors)
+		{
+			occupancy = OccupancyMap.fromPolygons(pols, nSteps+3);
+			grid = new PolygonGrid(pols);
+		}
+
+		// The outline of a polygon is traced from the region containing its seed, so the seed stays inside
+		// the polygon and does not need to be searched again at every step
+		int[][] seeds = new int[pols.length][];
+		for(int index=0; index<pols.length; index++)
+		{
+			seeds[index]=getSeed(pols[index]);
+		}
+
+		boolean[] frozen = new boolean[pols.length];
+		int nFrozen=0;
+
 		for(int nindex=0; nindex<nSteps; nindex++)
 		{
 
@@ -436,17 +508,49 @@ public class RoiLogics {
 			for(int index=0; index<pols.length; index++)
 			{
 
+				if(frozen[index])
+				{
+					continue;
+				}
+
 				Polygon pol = pols[index];
 
-				Polygon[] toAvoid=null;
+				pols[index] = growPolygon(pol, allowedProcessor, null, occupancy, connectivity, seeds[index]);
 
-				if(avoidNeighbors)
+				if(samePolygon(pol, pols[index]))
 				{
-					toAvoid = getAllButOneElement(pols,index);
+					frozen[index]=true;
+					nFrozen++;
+				}
 
+				if(avoidNeighbors)
+				{
+					grid.update(index, pols[index]);
 				}
 
-				pols[index] = growPolygon(pol, allowedProcessor,toAvoid);
+				if(avoidNeighbors && !occupancy.freed.isEmpty())
+				{
+					// The polygon gave up pixels, which its frozen neighbors may now be able to take; only the
+					// polygons whose bounds come within a pixel of the freed pixels can reach them
+					Rectangle freedBounds=occupancy.getFreedBounds();
+					freedBounds.grow(1, 1);
+					int[] near=grid.getNeighbors(freedBounds, index);
+					for(int k=0; k<near.length; k++)
+					{
+						int other=near[k];
+						if(frozen[other])
+						{
+							Rectangle r = pols[other].getBounds();
+							r.grow(1, 1);
+							if(occupancy.freedWithin(r))
+							{
+								frozen[other]=false;
+								nFrozen--;
+							}
+						}
+					}
+					occupancy.freed.clear();
+				}
 
 
 				if(showProgress & (index % 400) == 0)
@@ -457,9 +561,405 @@ public class RoiLogics {
 
 			}
 
+			if(nFrozen==pols.length)
+			{
+				return nindex+1;
+			}
+
+		}
+		return nSteps;
+	}
+
+	/**
+	 * Find a seed pixel of a polygon, a pixel inside the polygon near its center of gravity
+	 * @param pol The polygon
+	 * @return x and y position of the seed, null if the polygon covers no pixel
+	 */
+	public static int[] getSeed(Polygon pol)
+	{
+		Rectangle r=pol.getBounds();
+		BitMask mask=GrowthScratch.get().oldMask;
+		mask.reset(r.width+1, r.height+1);
+		GrowthScratch.get().rasterizer.fill(pol, mask, r.x, r.y);
+		int[] seed=getStartingPointBright(mask);
+		if(seed!=null)
+		{
+			seed[0]+=r.x;
+			seed[1]+=r.y;
+		}
+		return seed;
+	}
+
+	/**
+	 * Do two polygons have the same vertices, in the same order?
+	 * @param a The first polygon
+	 * @param b The second polygon
+	 * @return Whether the polygons are identical
+	 */
+
+	public static boolean samePolygon(Polygon a, Polygon b)
+	{
+		if(a==null || b==null || a.npoints!=b.npoints)
+		{
+			return false;
 		}
+		for(int index=0; index<a.npoints; index++)
+		{
+			if(a.xpoints[index]!=b.xpoints[index] || a.ypoints[index]!=b.ypoints[index])
+			{
+				return false;
+			}
+		}
+		return true;
 	}
 	
+	/**
+	 * Grow polygons without overlap on a shared label map. Instead of rasterizing and tracing each polygon
+	 * at every step, all polygons are drawn once onto an image-sized label map, dilated there, and traced back
+	 * to polygons at the end. Uses the number of threads set in ImageJ's preferences
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param nSteps How many pixels to grow?
+	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
+	 */
+
+	public static int growPolygonsLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int width, int height, int nSteps, ProgressBar bp)
+	{
+		return growPolygonsLabelMap(pols, allowedProcessor, width, height, nSteps, Prefs.getThreads(), bp);
+	}
+
+	/**
+	 * Grow polygons without overlap on a shared label map, using several threads. All polygons take their step
+	 * from the same snapshot, and contested pixels go to the polygon with the lowest index, so the result
+	 * does not depend on the number of threads
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param nSteps How many pixels to grow?
+	 * @param nThreads Number of threads to use
+	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
+	 */
+
+	public static int growPolygonsLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int width, int height, int nSteps, int nThreads, ProgressBar bp)
+	{
+		return growPolygonsLabelMap(pols, allowedProcessor, width, height, nSteps, nThreads, 8, bp);
+	}
+
+	/**
+	 * Grow polygons without overlap on a shared label map, using several threads and a given connectivity
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param nSteps How many pixels to grow?
+	 * @param nThreads Number of threads to use
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
+	 */
+
+	public static int growPolygonsLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int width, int height, int nSteps, int nThreads, int connectivity, ProgressBar bp)
+	{
+		return growPolygonsLabelMap(pols, allowedProcessor, width, height, nSteps, nThreads, connectivity, null, bp);
+	}
+
+	/**
+	 * Grow polygons without overlap on a shared label map, also returning the grown ROIs with all their parts and holes
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param nSteps How many pixels to grow?
+	 * @param nThreads Number of threads to use
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param rois Array receiving the grown ROIs, see {@link #copyGrownLabels(LabelMap, Polygon[], Roi[])}; can be null
+	 * @param bp Reference to progress bar to show progress
+	 * @return The number of steps actually carried out
+	 */
+	public static int growPolygonsLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int width, int height, int nSteps, int nThreads, int connectivity, Roi[] rois, ProgressBar bp)
+	{
+		LabelMap map = LabelMap.fromPolygons(pols, width, height);
+		map.setAllowedMask(allowedProcessor);
+		map.setConnectivity(connectivity);
+		// Only the boundary pixels are examined at each step
+		FrontierGrowth growth = new FrontierGrowth(map);
+		growth.setThreads(nThreads);
+		growth.grow(nSteps, bp);
+		copyGrownLabels(map, pols, rois);
+		return growth.stepsUsed;
+	}
+
+	/**
+	 * Grow polygons without overlap along a watershed guide, using a priority flood on a shared label map
+	 * instead of thresholding the guide and growing all polygons at each grey level
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guide, first fill low values, then higher
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershedLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int nSteps, ImageProcessor watershedProcessor, ProgressBar bp)
+	{
+		growPolygonsWatershedLabelMap(pols, allowedProcessor, nSteps, watershedProcessor, 8, bp);
+	}
+
+	/**
+	 * Grow polygons without overlap along a watershed guide with a given connectivity, using a priority flood on a shared label map
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guide, first fill low values, then higher
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershedLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int nSteps, ImageProcessor watershedProcessor, int connectivity, ProgressBar bp)
+	{
+		growPolygonsWatershedLabelMap(pols, allowedProcessor, nSteps, watershedProcessor, connectivity, null, bp);
+	}
+
+	/**
+	 * Grow polygons without overlap along a watershed guide, also returning the grown ROIs with all their parts and holes
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guide, first fill low values, then higher
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param rois Array receiving the grown ROIs, see {@link #copyGrownLabels(LabelMap, Polygon[], Roi[])}; can be null
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershedLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int nSteps, ImageProcessor watershedProcessor, int connectivity, Roi[] rois, ProgressBar bp)
+	{
+		growPolygonsWatershedLabelMap(pols, allowedProcessor, nSteps, watershedProcessor, GuideLevels.DEFAULT_LEVELS, connectivity, rois, bp);
+	}
+
+	/**
+	 * Grow polygons without overlap along a watershed guide with a given number of watershed levels
+	 * @param pols An array of polygons
+	 * @param allowedProcessor The image Processor to use
+	 * @param nSteps How many pixels to grow for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guide, first fill low values, then higher
+	 * @param nLevels Number of watershed levels, 0 for the native levels of the guide, see {@link GuideLevels}
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param rois Array receiving the grown ROIs, see {@link #copyGrownLabels(LabelMap, Polygon[], Roi[])}; can be null
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershedLabelMap(Polygon[] pols, ImageProcessor allowedProcessor, int nSteps, ImageProcessor watershedProcessor, int nLevels, int connectivity, Roi[] rois, ProgressBar bp)
+	{
+		LabelMap map = LabelMap.fromPolygons(pols, watershedProcessor.getWidth(), watershedProcessor.getHeight());
+		map.setAllowedMask(allowedProcessor);
+		map.setConnectivity(connectivity);
+		PriorityFlood.flood(map, watershedProcessor, nLevels, nSteps, bp);
+		copyGrownLabels(map, pols, rois);
+	}
+
+	/**
+	 * Grow the labels of a label stack in three dimensions, without overlap, optionally along a watershed guide
+	 * @param seeds Label stack of the seeds, 0 is background
+	 * @param allowedStack Mask stack of the voxels accessible for growth, one slice for each slice of the seeds
+	 * or a single slice for all; null to allow all voxels
+	 * @param guideStack Greyscale watershed guide, one slice for each slice of the seeds; null to grow without guide
+	 * @param nSteps How many voxels to grow, for each watershed level if there is a guide
+	 * @param connectivity 6, 18 or 26
+	 * @param zRatio Ratio of the slice spacing to the pixel size, 1 for isotropic voxels
+	 * @param nThreads Number of threads, the slices being split among them
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return Label stack of the grown labels
+	 * @throws IllegalArgumentException If the mask or the guide does not match the size of the seeds
+	 */
+	public static ImageStack growLabelVolume(ImageStack seeds, ImageStack allowedStack, ImageStack guideStack, int nSteps, int connectivity, double zRatio, int nThreads, ProgressBar bp)
+	{
+		return growLabelVolume(seeds, allowedStack, guideStack, GuideLevels.DEFAULT_LEVELS, nSteps, connectivity, zRatio, nThreads, bp);
+	}
+
+	/**
+	 * Grow the labels of a label stack in three dimensions, without overlap, optionally along a watershed guide
+	 * with a given number of watershed levels
+	 * @param seeds Label stack of the seeds, 0 is background
+	 * @param allowedStack Mask stack of the voxels accessible for growth, one slice for each slice of the seeds
+	 * or a single slice for all; null to allow all voxels
+	 * @param guideStack Greyscale watershed guide, one slice for each slice of the seeds; null to grow without guide
+	 * @param nLevels Number of watershed levels, 0 for the native levels of the guide, see {@link GuideLevels}
+	 * @param nSteps How many voxels to grow, for each watershed level if there is a guide
+	 * @param connectivity 6, 18 or 26
+	 * @param zRatio Ratio of the slice spacing to the pixel size, 1 for isotropic voxels
+	 * @param nThreads Number of threads, the slices being split among them
+	 * @param bp Reference to progress bar to show progress, can be null
+	 * @return Label stack of the grown labels
+	 * @throws IllegalArgumentException If the mask or the guide does not match the size of the seeds
+	 */
+	public static ImageStack growLabelVolume(ImageStack seeds, ImageStack allowedStack, ImageStack guideStack, int nLevels, int nSteps, int connectivity, double zRatio, int nThreads, ProgressBar bp)
+	{
+		LabelVolume volume = LabelVolume.fromStack(seeds);
+		volume.setAllowedMask(allowedStack);
+		volume.setConnectivity(connectivity);
+		volume.setZRatio(zRatio);
+		volume.setThreads(nThreads);
+		if(guideStack==null)
+		{
+			volume.grow(nSteps, bp);
+		}
+		else
+		{
+			PriorityFlood.flood(volume, guideStack, nLevels, nSteps, bp);
+		}
+		return volume.toStack();
+	}
+
+	/**
+	 * Grow polygons to a given Euclidean distance in a single pass, using a seeded exact distance transform.
+	 * Without overlap, the pixels between neighbors go to the nearest polygon (Voronoi split); with overlap,
+	 * each polygon is grown on its own crop
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nPixels The growth distance in pixels
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsEuclidean(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nPixels, int width, int height, ProgressBar bp)
+	{
+		growPolygonsDistance(pols, allowedProcessor, avoidNeighbors, nPixels, width, height, DistanceGrowth.DIRECT, StructuringElement.DISK, bp);
+	}
+
+	/**
+	 * Grow polygons to a given geodesic distance within the allowed pixels, in a single pass from all polygons.
+	 * Without overlap, each pixel goes to the nearest polygon along paths through the mask; with overlap,
+	 * each polygon is grown on its own crop
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nPixels The growth distance in pixels
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsGeodesic(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nPixels, int width, int height, ProgressBar bp)
+	{
+		growPolygonsDistance(pols, allowedProcessor, avoidNeighbors, nPixels, width, height, DistanceGrowth.GEODESIC, StructuringElement.DISK, bp);
+	}
+
+	/**
+	 * Grow polygons to a given distance in a single pass, that is, by a structuring element of radius nPixels
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nPixels The growth distance in pixels
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param distance The distance to use, {@link DistanceGrowth#DIRECT} or {@link DistanceGrowth#GEODESIC}
+	 * @param shape The shape of the structuring element, see {@link StructuringElement}
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsDistance(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nPixels, int width, int height, int distance, int shape, ProgressBar bp)
+	{
+		growPolygonsDistance(pols, allowedProcessor, avoidNeighbors, nPixels, width, height, distance, shape, null, bp);
+	}
+
+	/**
+	 * Grow polygons to a given distance in a single pass, also returning the grown ROIs with all their parts and holes
+	 * when growing without overlap
+	 * @param pols An array of polygons, replaced by the grown polygons
+	 * @param allowedProcessor Mask of the allowed pixels, null if all pixels are allowed
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nPixels The growth distance in pixels
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param distance The distance to use, {@link DistanceGrowth#DIRECT} or {@link DistanceGrowth#GEODESIC}
+	 * @param shape The shape of the structuring element, see {@link StructuringElement}
+	 * @param rois Array receiving the grown ROIs without overlap, see {@link #copyGrownLabels(LabelMap, Polygon[], Roi[])};
+	 * can be null, and is left unchanged with overlap
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsDistance(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nPixels, int width, int height, int distance, int shape, Roi[] rois, ProgressBar bp)
+	{
+		if(avoidNeighbors)
+		{
+			LabelMap map = LabelMap.fromPolygons(pols, width, height);
+			map.setAllowedMask(allowedProcessor);
+			DistanceGrowth.grow(map, distance, shape, nPixels, bp);
+			copyGrownLabels(map, pols, rois);
+			return;
+		}
+		for(int index=0; index<pols.length; index++)
+		{
+			// The crop leaves room for the growth and a black rim
+			Rectangle r = pols[index].getBounds();
+			int x0=r.x-nPixels-2;
+			int y0=r.y-nPixels-2;
+			Polygon polCopy = clonePolygon(pols[index]);
+			polCopy.translate(-x0, -y0);
+			LabelMap map = LabelMap.fromPolygons(new Polygon[] {polCopy}, r.width+2*nPixels+5, r.height+2*nPixels+5);
+			map.setAllowedMask(allowedProcessor, x0, y0);
+			DistanceGrowth.grow(map, distance, shape, nPixels, null);
+			Polygon grown = map.toPolygons()[0];
+			if(grown!=null)
+			{
+				grown.translate(x0, y0);
+				pols[index]=grown;
+			}
+			if(bp!=null)
+			{
+				bp.show(index, pols.length);
+			}
+		}
+	}
+
+	/**
+	 * Copy grown polygons into the original array. Where no grown polygon is available
+	 * (the ROI was completely covered by neighbors or lies outside the image), the original polygon is kept
+	 * @param grown The grown polygons
+	 * @param pols The original polygons, to be replaced
+	 */
+
+	public static void copyGrownPolygons(Polygon[] grown, Polygon[] pols)
+	{
+		for(int index=0; index<pols.length; index++)
+		{
+			if(grown[index]!=null)
+			{
+				pols[index]=grown[index];
+			}
+		}
+	}
+
+	/**
+	 * Copy the grown labels of a label map into the original arrays, tracing all labels in one pass.
+	 * The polygons receive the outer contour of the part containing the topmost pixel of each label, as needed to
+	 * grow them further; the ROIs receive polygon ROIs, or composite ROIs for labels in several parts or with holes.
+	 * Where a label is no longer present, the polygon is kept and the ROI is set to null
+	 * @param map The label map, label k+1 for polygon k
+	 * @param pols The original polygons, to be replaced
+	 * @param rois Array receiving the ROIs, can be null
+	 */
+
+	public static void copyGrownLabels(LabelMap map, Polygon[] pols, Roi[] rois)
+	{
+		ContourTracer tracer = new ContourTracer(map.labels, map.width, map.height, map.nLabels);
+		copyGrownPolygons(tracer.getOuterPolygons(), pols);
+		if(rois!=null)
+		{
+			Roi[] grown=tracer.getRois();
+			for(int index=0; index<rois.length && index<grown.length; index++)
+			{
+				rois[index]=grown[index];
+			}
+		}
+	}
+
 	/**
 	 * Grow polygons with progressive enlargements of the mask from watershedding
 	 * @param pols An array of polygons
@@ -471,40 +971,102 @@ public class RoiLogics {
 	 */
 	
 	public static void growPolygonsWatershed(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, ImageProcessor watershedProcessor, ProgressBar bp)
+	{
+		growPolygonsWatershed(pols, allowedProcessor, avoidNeighbors, nSteps, watershedProcessor, 8, bp);
+	}
+
+	/**
+	 * Grow polygons with progressive enlargements of the mask from watershedding, with a given connectivity
+	 * @param pols An array of polygons
+	 * @param allowedProcessor The image Processor to use
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nSteps How many pixels to for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guid, first fill low values, then higher
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershed(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, ImageProcessor watershedProcessor, int connectivity, ProgressBar bp)
+	{
+		growPolygonsWatershed(pols, allowedProcessor, avoidNeighbors, nSteps, watershedProcessor, GuideLevels.DEFAULT_LEVELS, connectivity, bp);
+	}
+
+	/**
+	 * Grow polygons with progressive enlargements of the mask from watershedding, with a given number of watershed
+	 * levels. The pixels are sorted by level once, and the mask of each level is obtained by adding the pixels of
+	 * the level to the mask of the previous one, instead of converting and thresholding the whole guide again.
+	 * Since every level still grows the polygons over the whole image, at most {@link #MAX_POLYGON_WATERSHED_LEVELS}
+	 * levels are used; more levels, or the native levels of a 16- or 32-bit guide, are scaled down to this number
+	 * @param pols An array of polygons
+	 * @param allowedProcessor The image Processor to use
+	 * @param avoidNeighbors Does a growing polygon have to avoid geometric neighbors during growth?
+	 * @param nSteps How many pixels to for each watershed level
+	 * @param watershedProcessor Greyscale image containg the watershed guid, first fill low values, then higher
+	 * @param nLevels Number of watershed levels, 0 for the native levels of the guide, see {@link GuideLevels}
+	 * @param connectivity 8 to grow into all neighbors (3x3 square), 4 for horizontal and vertical neighbors only
+	 * @param bp Reference to progress bar to show progress
+	 */
+
+	public static void growPolygonsWatershed(Polygon[] pols, ImageProcessor allowedProcessor, boolean avoidNeighbors, int nSteps, ImageProcessor watershedProcessor, int nLevels, int connectivity, ProgressBar bp)
 	{
 		if(watershedProcessor==null)
 		{
-			growPolygons(pols, allowedProcessor, avoidNeighbors, nSteps, bp);
+			growPolygons(pols, allowedProcessor, avoidNeighbors, nSteps, connectivity, bp);
 			return;
 		}
-		ByteProcessor w=null;
-		if(!(watershedProcessor instanceof ByteProcessor))
-		{
-			w=watershedProcessor.convertToByteProcessor(true);
-		} else
+		if(nLevels<=0 || nLevels>MAX_POLYGON_WATERSHED_LEVELS)
 		{
-			w=(ByteProcessor)watershedProcessor;
+			nLevels=MAX_POLYGON_WATERSHED_LEVELS;
 		}
-		
-		int lower=(int)Math.floor(w.getMin());
-		int upper=(int)Math.floor(w.getMax());
+		GuideLevels levels=GuideLevels.fromProcessor(watershedProcessor, nLevels);
+		int[] level=levels.level[0];
+		int[] sorted=levels.sortedPixels(0);
+		int width=levels.width;
+		int height=levels.height;
+
+		// Accessible pixels not brighter than the current level, and the same with the polygons drawn in
+		byte[] levelPixels = new byte[width*height];
+		ByteProcessor thresholdMask = new ByteProcessor(width, height);
+		byte[] maskPixels=(byte[])thresholdMask.getPixels();
+		int next=0;
+		boolean settled=false;
+
+		int lower=levels.lower;
+		int upper=levels.upper;
 		
 		for(int theLevel=lower; theLevel<=upper; theLevel++)
 		{
-			ByteProcessor thresholdMask=maskFromThreshold(w,theLevel);
-			thresholdMask.invert();
-			
-			if(allowedProcessor!=null)
+			int first=next;
+			for(; next<sorted.length && level[sorted[next]]<=theLevel; next++)
 			{
-				thresholdMask.copyBits(allowedProcessor, 0, 0, Blitter.AND);
-				drawPolygonArrayToMask(pols, thresholdMask, getWhiteColor());
+				int index=sorted[next];
+				if(allowedProcessor==null)
+				{
+					levelPixels[index]=(byte)255;
+				}
+				else
+				{
+					int x=index%width;
+					int y=index/width;
+					if(x<allowedProcessor.getWidth() && y<allowedProcessor.getHeight())
+					{
+						levelPixels[index]=(byte)allowedProcessor.get(x, y);
+					}
+				}
 			}
 			
-			growPolygons(pols, thresholdMask, avoidNeighbors, nSteps, null);
-			
-			
-			
-			
+			// A level adding no pixel leaves the polygons as they are once they have stopped growing, which
+			// spares the levels missing from 16-bit guides
+			if(!settled || next>first)
+			{
+				System.arraycopy(levelPixels, 0, maskPixels, 0, maskPixels.length);
+				if(allowedProcessor!=null)
+				{
+					drawPolygonArrayToMask(pols, thresholdMask, getWhiteColor());
+				}
+				
+				settled=growPolygons(pols, thresholdMask, avoidNeighbors, nSteps, connectivity, null)<nSteps;
+			}
 			
 			boolean showProgress = (bp!=null);	
 
@@ -588,11 +1150,8 @@ public class RoiLogics {
 
 		thewand.autoOutline(xstart, ystart);
 
-		Polygon retPol = new Polygon();
-
-		retPol.xpoints = thewand.xpoints.clone();
-		retPol.ypoints = thewand.ypoints.clone();
-		retPol.npoints = thewand.npoints;
+		// The wand returns every pixel corner along the outline, the corners on straight runs are not needed
+		Polygon retPol = removeCollinearVertices(thewand.xpoints, thewand.ypoints, thewand.npoints);
 
 
 
@@ -666,6 +1225,210 @@ public class RoiLogics {
 	
 	
 
+	/**
+	 * Remove the vertices of a closed outline that lie on the straight line between their neighbors.
+	 * The outline covers the same pixels as before
+	 * @param xpoints x coordinates of the vertices
+	 * @param ypoints y coordinates of the vertices
+	 * @param npoints Number of vertices
+	 * @return New polygon with the remaining vertices
+	 */
+	public static Polygon removeCollinearVertices(int[] xpoints, int[] ypoints, int npoints)
+	{
+		int[] x = new int[npoints];
+		int[] y = new int[npoints];
+		int n=0;
+		for(int index=0; index<npoints; index++)
+		{
+			int previous=(index+npoints-1)%npoints;
+			int next=(index+1)%npoints;
+			long cross=(long)(xpoints[index]-xpoints[previous])*(ypoints[next]-ypoints[index])
+					-(long)(ypoints[index]-ypoints[previous])*(xpoints[next]-xpoints[index]);
+			boolean repeated=xpoints[index]==xpoints[previous] && ypoints[index]==ypoints[previous];
+			// A vertex where the outline turns back on itself is kept, it is not on the line between its neighbors
+			boolean between=(long)(xpoints[index]-xpoints[previous])*(xpoints[next]-xpoints[index])
+					+(long)(ypoints[index]-ypoints[previous])*(ypoints[next]-ypoints[index])>0;
+			if(npoints>3 && (repeated || (cross==0 && between)))
+			{
+				continue;
+			}
+			x[n]=xpoints[index];
+			y[n]=ypoints[index];
+			n++;
+		}
+		if(n<3)
+		{
+			return new Polygon(xpoints.clone(), ypoints.clone(), npoints);
+		}
+		return new Polygon(Arrays.copyOf(x, n), Arrays.copyOf(y, n), n);
+	}
+
+	/**
+	 * Simplify a closed outline with the Douglas-Peucker algorithm: vertices are dropped as long as the outline
+	 * moves by no more than a given distance
+	 * @param pol The polygon
+	 * @param tolerance Maximum distance in pixels between the original and the simplified outline, 0 to only
+	 * remove collinear vertices
+	 * @return New polygon with the remaining vertices
+	 */
+	public static Polygon simplifyPolygon(Polygon pol, double tolerance)
+	{
+		Polygon reduced = removeCollinearVertices(pol.xpoints, pol.ypoints, pol.npoints);
+		int n=reduced.npoints;
+		if(tolerance<=0 || n<=4)
+		{
+			return reduced;
+		}
+		// Split the closed outline at the first vertex and the vertex farthest from it
+		int far=0;
+		long farDistance=-1;
+		for(int index=1; index<n; index++)
+		{
+			long dx=reduced.xpoints[index]-reduced.xpoints[0];
+			long dy=reduced.ypoints[index]-reduced.ypoints[0];
+			if(dx*dx+dy*dy>farDistance)
+			{
+				farDistance=dx*dx+dy*dy;
+				far=index;
+			}
+		}
+		boolean[] keep = new boolean[n+1];
+		keep[0]=true;
+		keep[far]=true;
+		keep[n]=true;
+		simplifyRun(reduced, 0, far, tolerance, keep);
+		simplifyRun(reduced, far, n, tolerance, keep);
+		Polygon ret = new Polygon();
+		for(int index=0; index<n; index++)
+		{
+			if(keep[index])
+			{
+				ret.addPoint(reduced.xpoints[index], reduced.ypoints[index]);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Douglas-Peucker simplification of a run of vertices of a closed outline
+	 * @param pol The polygon
+	 * @param start First vertex of the run, kept
+	 * @param end Last vertex of the run, kept; npoints stands for vertex 0
+	 * @param tolerance Maximum distance in pixels between the original and the simplified outline
+	 * @param keep For each vertex, whether it is kept
+	 */
+	protected static void simplifyRun(Polygon pol, int start, int end, double tolerance, boolean[] keep)
+	{
+		int n=pol.npoints;
+		double x0=pol.xpoints[start];
+		double y0=pol.ypoints[start];
+		double x1=pol.xpoints[end%n];
+		double y1=pol.ypoints[end%n];
+		double length=Math.sqrt((x1-x0)*(x1-x0)+(y1-y0)*(y1-y0));
+		int farthest=-1;
+		double farDistance=tolerance;
+		for(int index=start+1; index<end; index++)
+		{
+			double x=pol.xpoints[index];
+			double y=pol.ypoints[index];
+			double d;
+			if(length==0)
+			{
+				d=Math.sqrt((x-x0)*(x-x0)+(y-y0)*(y-y0));
+			}
+			else
+			{
+				d=Math.abs((x1-x0)*(y0-y)-(x0-x)*(y1-y0))/length;
+			}
+			if(d>farDistance)
+			{
+				farDistance=d;
+				farthest=index;
+			}
+		}
+		if(farthest<0)
+		{
+			return;
+		}
+		keep[farthest]=true;
+		simplifyRun(pol, start, farthest, tolerance, keep);
+		simplifyRun(pol, farthest, end, tolerance, keep);
+	}
+
+	/**
+	 * Simplify the outline of a polygon ROI, see {@link #simplifyPolygon(Polygon, double)}
+	 * @param roi The ROI
+	 * @param tolerance Maximum distance in pixels between the original and the simplified outline
+	 * @return A new polygon ROI with the same name, or the ROI itself if it is not a polygon ROI
+	 */
+	public static Roi simplifyRoi(Roi roi, double tolerance)
+	{
+		if(!(roi instanceof PolygonRoi) || tolerance<=0)
+		{
+			return roi;
+		}
+		Roi ret = new PolygonRoi(simplifyPolygon(roi.getPolygon(), tolerance), Roi.POLYGON);
+		ret.setName(roi.getName());
+		return ret;
+	}
+
+	/**
+	 * Find a set pixel of a bit-packed mask near its center of gravity, the same pixel as
+	 * {@link #getStartingPointBright(ByteProcessor)} for the corresponding ByteProcessor
+	 * @param theMask The mask
+	 * @return x and y position of the pixel, null if the mask is empty
+	 */
+	public static int[] getStartingPointBright(BitMask theMask)
+	{
+		double cgx=0;
+		double cgy=0;
+		double cgn=0;
+		for(int y=0; y<theMask.height; y++)
+		{
+			for(int w=0; w<theMask.wordsPerRow; w++)
+			{
+				long word=theMask.bits[y*theMask.wordsPerRow+w];
+				while(word!=0)
+				{
+					cgx+=(w<<6)+Long.numberOfTrailingZeros(word);
+					cgy+=y;
+					cgn++;
+					word&=word-1;
+				}
+			}
+		}
+		if(cgn==0)
+		{
+			return null;
+		}
+		cgx=cgx/cgn;
+		cgy=cgy/cgn;
+
+		// Ties go to the lowest x, then the lowest y, as for the column by column scan
+		double dsquared=Double.MAX_VALUE;
+		int[] ret=new int[2];
+		for(int y=0; y<theMask.height; y++)
+		{
+			for(int w=0; w<theMask.wordsPerRow; w++)
+			{
+				long word=theMask.bits[y*theMask.wordsPerRow+w];
+				while(word!=0)
+				{
+					int x=(w<<6)+Long.numberOfTrailingZeros(word);
+					double d=(x-cgx)*(x-cgx)+(y-cgy)*(y-cgy);
+					if(d<dsquared || (d==dsquared && x<ret[0]))
+					{
+						dsquared=d;
+						ret[0]=x;
+						ret[1]=y;
+					}
+					word&=word-1;
+				}
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Convert a binary mask to a polygon
 	 * @param theMask ByteProcessor containing the mask (white pixels = selected)
@@ -726,6 +1489,60 @@ public class RoiLogics {
 		js.setVisible(true);
 	}
 	
+	/**
+	 * Find the list showing the ROIs in the window of the ROI manager
+	 * @param r The ROI manager
+	 * @return The list, null if the ROI manager has no window (batch mode)
+	 */
+	public static JList<?> getRoiList(RoiManager r)
+	{
+		if(r.getComponentCount()==0 || !(r.getComponent(0) instanceof JScrollPane))
+		{
+			return null;
+		}
+		JScrollPane js = (JScrollPane)r.getComponent(0);
+		if(js.getViewport().getView() instanceof JList)
+		{
+			return (JList<?>)js.getViewport().getView();
+		}
+		return null;
+	}
+
+	/**
+	 * Replace all ROIs in the ROI manager in one operation. The ROIs are added under their names, so that they
+	 * do not need to be renamed afterwards, and the list in the window is detached from its contents while the
+	 * ROIs are added, so that it is updated once at the end rather than for every ROI
+	 * @param imp The image the ROIs belong to
+	 * @param rois The new ROIs, with their names set
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void replaceAllRois(ImagePlus imp, Roi[] rois)
+	{
+		RoiManager r=getRoiManager();
+		JList list=getRoiList(r);
+		ListModel model=null;
+		if(list!=null)
+		{
+			model=list.getModel();
+			list.setModel(new DefaultListModel());
+		}
+		try
+		{
+			r.reset();
+			for(int index=0; index<rois.length; index++)
+			{
+				r.add(imp, rois[index], -1);
+			}
+		}
+		finally
+		{
+			if(list!=null)
+			{
+				list.setModel(model);
+			}
+		}
+	}
+
 	/**
 	 * Helper function, renames ROI in ROI manager
 	 * @param index The index of the ROI to rename
@@ -735,6 +1552,7 @@ public class RoiLogics {
 	@SuppressWarnings("unchecked")
 	public static void renameLabelInRoiManager(int index, String label)
 	{
+		RoiManager roiManager=getRoiManager();
 		List l = roiManager.getList();
 		String oldLabel = l.getItem(index);
 		Roi theRoi=(Roi) roiManager.getRoisAsArray()[index];
@@ -758,6 +1576,7 @@ public class RoiLogics {
 	@SuppressWarnings("unchecked")
 	public static void replaceRoiinRoiManager(int index, Roi newRoi)
 	{
+		RoiManager roiManager=getRoiManager();
 		String oldLabel = RoiManager.getName(""+index);
 		if(newRoi != null)
 		{
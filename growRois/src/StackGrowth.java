@@ -0,0 +1,371 @@
+import ij.ImageStack;
+import ij.gui.ProgressBar;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Polygon;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Growth of the seeds of all slices of a stack, each slice with its own seeds. The slices are independent and are
+ * grown in parallel, the threads being shared among the slices, so that a stack of many slices is grown one slice
+ * per thread and a single image with all threads. The mask and the watershed guide are either stacks with a slice
+ * for each slice of the seeds, or single images used for all slices
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class StackGrowth {
+
+	/** The parameters, a private copy */
+	protected final GrowthParameters parameters;
+
+	/** Number of slices of the seeds */
+	protected final int nSlices;
+
+	/** Masks of the pixels accessible for growth, null to allow all pixels */
+	protected final ImageStack allowedStack;
+
+	/** Greyscale watershed guides, null for none */
+	protected final ImageStack guideStack;
+
+	/** Number of slices grown so far, for the progress bar */
+	protected AtomicInteger slicesDone = new AtomicInteger();
+
+	/**
+	 * Set up the growth of a stack
+	 * @param parameters The parameters; a copy is kept
+	 * @param nSlices Number of slices of the seeds
+	 * @param allowedStack Masks of the pixels accessible for growth, one slice or a slice for each slice of the
+	 * seeds; null to allow all pixels
+	 * @param guideStack Greyscale watershed guides, one slice or a slice for each slice of the seeds; null for none
+	 * @throws IllegalArgumentException If the mask or the guide has neither one slice nor a slice for each slice
+	 */
+	public StackGrowth(GrowthParameters parameters, int nSlices, ImageStack allowedStack, ImageStack guideStack)
+	{
+		checkSlices(allowedStack, nSlices, "mask");
+		checkSlices(guideStack, nSlices, "guide");
+		this.parameters=parameters.copy();
+		this.nSlices=nSlices;
+		this.allowedStack=allowedStack;
+		this.guideStack=guideStack;
+	}
+
+	/**
+	 * Check that a mask or guide stack has one slice or a slice for each slice of the seeds
+	 * @param stack The stack, can be null
+	 * @param nSlices Number of slices of the seeds
+	 * @param name Name of the stack, for the error message
+	 * @throws IllegalArgumentException If the number of slices does not match
+	 */
+	protected static void checkSlices(ImageStack stack, int nSlices, String name)
+	{
+		if(stack!=null && stack.getSize()!=1 && stack.getSize()!=nSlices)
+		{
+			throw new IllegalArgumentException("The "+name+" has "+stack.getSize()+" slices, the seeds "+nSlices
+					+"; it needs one slice or a slice for each slice of the seeds");
+		}
+	}
+
+	/**
+	 * Check the number of slices of the seeds against that given when setting up the growth
+	 * @param n Number of slices of the seeds
+	 * @throws IllegalArgumentException If the numbers differ
+	 */
+	protected void checkSeedSlices(int n)
+	{
+		if(n!=nSlices)
+		{
+			throw new IllegalArgumentException("The seeds have "+n+" slices instead of "+nSlices);
+		}
+	}
+
+	/**
+	 * Get the engine for a slice
+	 * @param slice The slice, from 1 on
+	 * @param nSlices Number of slices grown; the threads are shared among them
+	 * @return The engine
+	 */
+	public GrowthEngine getEngine(int slice, int nSlices)
+	{
+		GrowthParameters sliceParameters=parameters.copy();
+		sliceParameters.nThreads=Math.max(1, parameters.nThreads/Math.max(1, nSlices));
+		return new GrowthEngine(sliceParameters, getSlice(allowedStack, slice), getSlice(guideStack, slice));
+	}
+
+	/**
+	 * Sort seed ROIs by slice. The slice of a ROI is its position; ROIs without a position, or with a position
+	 * beyond the last slice, are seeds of every slice
+	 * @param rois The seed ROIs
+	 * @param seeds Array receiving the seed polygons, element s for slice s+1; its length is the number of slices
+	 * @param names Array receiving the names of the seeds, of the same length as seeds
+	 */
+	public static void seedsBySlice(Roi[] rois, Polygon[][] seeds, String[][] names)
+	{
+		int nSlices=seeds.length;
+		int[] count = new int[nSlices+1];
+		for(int index=0; index<rois.length; index++)
+		{
+			count[sliceOf(rois[index], nSlices)]++;
+		}
+		for(int slice=1; slice<=nSlices; slice++)
+		{
+			seeds[slice-1] = new Polygon[count[slice]+count[0]];
+			names[slice-1] = new String[count[slice]+count[0]];
+			int k=0;
+			for(int index=0; index<rois.length; index++)
+			{
+				int s=sliceOf(rois[index], nSlices);
+				if(s==slice || s==0)
+				{
+					seeds[slice-1][k]=rois[index].getPolygon();
+					names[slice-1][k]=rois[index].getName();
+					k++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the slice of a seed ROI
+	 * @param roi The ROI
+	 * @param nSlices Number of slices
+	 * @return The slice, from 1 on; 0 for a ROI seeding every slice
+	 */
+	protected static int sliceOf(Roi roi, int nSlices)
+	{
+		int slice=roi.getPosition();
+		if(slice<1 || slice>nSlices)
+		{
+			return 0;
+		}
+		return slice;
+	}
+
+	/**
+	 * Get a slice of a mask or guide stack
+	 * @param stack The stack, can be null
+	 * @param slice The slice, from 1 on
+	 * @return The processor of the slice, the only one for a single image; null without stack
+	 */
+	protected static ImageProcessor getSlice(ImageStack stack, int slice)
+	{
+		if(stack==null)
+		{
+			return null;
+		}
+		if(stack.getSize()==1)
+		{
+			return stack.getProcessor(1);
+		}
+		return stack.getProcessor(slice);
+	}
+
+	/**
+	 * Grow the seed polygons of all slices
+	 * @param seeds The seeds, element s for slice s+1; null or empty for slices without seeds
+	 * @param width Width of the slices
+	 * @param height Height of the slices
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, element s for slice s+1, with the position set to the slice
+	 * @throws IllegalArgumentException If the number of slices differs from that given when setting up the growth
+	 */
+	public Roi[][] growRois(final Polygon[][] seeds, final int width, final int height, ProgressBar bp)
+	{
+		checkSeedSlices(seeds.length);
+		final Roi[][] grown = new Roi[seeds.length][];
+		forEachSlice(seeds.length, bp, new SliceGrower() {
+			public void grow(int slice)
+			{
+				Polygon[] pols = seeds[slice-1];
+				if(pols==null)
+				{
+					pols = new Polygon[0];
+				}
+				grown[slice-1] = getEngine(slice, seeds.length).growToRois(pols, width, height, null);
+				for(int index=0; index<pols.length; index++)
+				{
+					grown[slice-1][index].setPosition(slice);
+				}
+			}
+		});
+		return grown;
+	}
+
+	/**
+	 * Grow the connected components of each slice of a binary or label stack, see
+	 * {@link GrowthEngine#growComponents(ImageProcessor, ProgressBar)}
+	 * @param seedImages Binary or label image of the seeds of each slice, 0 is background
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, element s for slice s+1, with the position set to the slice
+	 * @throws IllegalArgumentException If the number of slices differs from that given when setting up the growth
+	 */
+	public Roi[][] growComponents(final ImageStack seedImages, ProgressBar bp)
+	{
+		checkSeedSlices(seedImages.getSize());
+		final Roi[][] grown = new Roi[seedImages.getSize()][];
+		forEachSlice(grown.length, bp, new SliceGrower() {
+			public void grow(int slice)
+			{
+				grown[slice-1] = getEngine(slice, grown.length).growComponents(seedImages.getProcessor(slice), null);
+				for(int index=0; index<grown[slice-1].length; index++)
+				{
+					grown[slice-1][index].setPosition(slice);
+				}
+			}
+		});
+		return grown;
+	}
+
+	/**
+	 * Grow seed regions given by a label stack, slice by slice, see
+	 * {@link GrowthEngine#growLabelRois(ImageProcessor, ProgressBar)}
+	 * @param seedLabels Label image of the seeds of each slice, 0 is background
+	 * @param bp Progress bar, null to show no progress
+	 * @return The grown ROIs, element s for slice s+1 and within it element l-1 for label l, with the position set
+	 * to the slice; null for the labels not present in the slice
+	 * @throws IllegalArgumentException If the number of slices differs from that given when setting up the growth
+	 */
+	public Roi[][] growLabelRois(final ImageStack seedLabels, ProgressBar bp)
+	{
+		checkSeedSlices(seedLabels.getSize());
+		final Roi[][] grown = new Roi[seedLabels.getSize()][];
+		forEachSlice(grown.length, bp, new SliceGrower() {
+			public void grow(int slice)
+			{
+				grown[slice-1] = getEngine(slice, grown.length).growLabelRois(seedLabels.getProcessor(slice), null);
+				for(int index=0; index<grown[slice-1].length; index++)
+				{
+					if(grown[slice-1][index]!=null)
+					{
+						grown[slice-1][index].setPosition(slice);
+					}
+				}
+			}
+		});
+		return grown;
+	}
+
+	/**
+	 * Grow seed regions given by a label stack, slice by slice
+	 * @param seedLabels Label image of the seeds of each slice, 0 is background
+	 * @param bp Progress bar, null to show no progress
+	 * @return Label stack of the grown regions, each with the label of its seed
+	 * @throws IllegalArgumentException If the number of slices differs from that given when setting up the growth
+	 */
+	public ImageStack growLabels(final ImageStack seedLabels, ProgressBar bp)
+	{
+		checkSeedSlices(seedLabels.getSize());
+		final ImageProcessor[] grown = new ImageProcessor[seedLabels.getSize()];
+		forEachSlice(grown.length, bp, new SliceGrower() {
+			public void grow(int slice)
+			{
+				grown[slice-1] = getEngine(slice, grown.length).growLabels(seedLabels.getProcessor(slice));
+			}
+		});
+		ImageStack result = new ImageStack(seedLabels.getWidth(), seedLabels.getHeight());
+		for(int slice=1; slice<=grown.length; slice++)
+		{
+			result.addSlice(seedLabels.getSliceLabel(slice), grown[slice-1]);
+		}
+		return result;
+	}
+
+	/**
+	 * Growth of one slice
+	 */
+	protected interface SliceGrower
+	{
+		/**
+		 * Grow a slice
+		 * @param slice The slice, from 1 on
+		 */
+		void grow(int slice);
+	}
+
+	/**
+	 * Grow all slices, in parallel on nThreads threads
+	 * @param nSlices Number of slices
+	 * @param bp Progress bar, null to show no progress
+	 * @param grower The growth of one slice
+	 */
+	protected void forEachSlice(int nSlices, ProgressBar bp, SliceGrower grower)
+	{
+		slicesDone.set(0);
+		SliceRangeTask all = new SliceRangeTask(1, nSlices+1, nSlices, grower, bp);
+		if(parameters.nThreads<=1 || nSlices<=1)
+		{
+			all.compute();
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(Math.min(parameters.nThreads, nSlices));
+		try
+		{
+			pool.invoke(all);
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Fork-join task growing a range of slices
+	 */
+	@SuppressWarnings("serial")
+	protected class SliceRangeTask extends RecursiveAction
+	{
+		/** First slice of the range */
+		protected int sStart;
+
+		/** Slice after the last slice of the range */
+		protected int sEnd;
+
+		/** Total number of slices, for the progress bar */
+		protected int nSlices;
+
+		/** The growth of one slice */
+		protected SliceGrower grower;
+
+		/** Progress bar, can be null */
+		protected ProgressBar bp;
+
+		/**
+		 * Create a task for a range of slices
+		 * @param sStart First slice of the range
+		 * @param sEnd Slice after the last slice of the range
+		 * @param nSlices Total number of slices
+		 * @param grower The growth of one slice
+		 * @param bp Progress bar, can be null
+		 */
+		public SliceRangeTask(int sStart, int sEnd, int nSlices, SliceGrower grower, ProgressBar bp)
+		{
+			this.sStart=sStart;
+			this.sEnd=sEnd;
+			this.nSlices=nSlices;
+			this.grower=grower;
+			this.bp=bp;
+		}
+
+		protected void compute()
+		{
+			if(sEnd-sStart<=1)
+			{
+				for(int slice=sStart; slice<sEnd; slice++)
+				{
+					grower.grow(slice);
+					int done=slicesDone.incrementAndGet();
+					if(bp!=null)
+					{
+						bp.show(done, nSlices);
+					}
+				}
+				return;
+			}
+			int sMiddle=(sStart+sEnd)/2;
+			invokeAll(new SliceRangeTask(sStart, sMiddle, nSlices, grower, bp), new SliceRangeTask(sMiddle, sEnd, nSlices, grower, bp));
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Shape of the neighborhood used for growth. For step-by-step growth, the connectivity (4 or 8) defines
+ * which pixels are reached in one step; for growth in one pass to a radius r, the shape of the element
+ * defines the distance used: disk (Euclidean), square (chessboard) or diamond (city block).
+ * Growing by an element of radius r is carried out as a distance transform, which decomposes the element into
+ * passes over the image independent of r, instead of r successive dilations
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class StructuringElement {
+
+	/** Disk, Euclidean distance */
+	public static final int DISK=0;
+
+	/** Square, chessboard distance (8-connected steps) */
+	public static final int SQUARE=1;
+
+	/** Diamond, city block distance (4-connected steps) */
+	public static final int DIAMOND=2;
+
+	/** Names of the shapes, as shown in the options dialog */
+	public static final String[] shapeNames = {"Disk", "Square", "Diamond"};
+
+	/** Names of the connectivities, as shown in the options dialog */
+	public static final String[] connectivityNames = {"8-connected", "4-connected"};
+
+	/**
+	 * Get the shape for a name from {@link #shapeNames}
+	 * @param name The name of the shape
+	 * @return The shape, {@link #DISK} if the name is unknown
+	 */
+	public static int shapeFromName(String name)
+	{
+		for(int shape=0; shape<shapeNames.length; shape++)
+		{
+			if(shapeNames[shape].equals(name))
+			{
+				return shape;
+			}
+		}
+		return DISK;
+	}
+
+	/**
+	 * Get the connectivity for a name from {@link #connectivityNames}
+	 * @param name The name of the connectivity
+	 * @return 4 or 8, 8 if the name is unknown
+	 */
+	public static int connectivityFromName(String name)
+	{
+		if(connectivityNames[1].equals(name))
+		{
+			return 4;
+		}
+		return 8;
+	}
+
+	/**
+	 * Chamfer weight of a horizontal or vertical step for an element shape
+	 * @param shape The shape of the element
+	 * @return The weight
+	 */
+	public static int straightWeight(int shape)
+	{
+		if(shape==DISK)
+		{
+			return 5;
+		}
+		return 1;
+	}
+
+	/**
+	 * Chamfer weight of a diagonal step for an element shape
+	 * @param shape The shape of the element
+	 * @return The weight, 0 if diagonal steps are not allowed
+	 */
+	public static int diagonalWeight(int shape)
+	{
+		if(shape==DISK)
+		{
+			return 7;
+		}
+		if(shape==SQUARE)
+		{
+			return 1;
+		}
+		return 0;
+	}
+
+}
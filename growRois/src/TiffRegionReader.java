@@ -0,0 +1,204 @@
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reading of rectangular regions of an uncompressed greyscale TIFF file without loading the whole image, so that
+ * images larger than the memory can be processed tile by tile. The header is decoded by ImageJ's
+ * {@link TiffDecoder}; the pixels of the first image must be stored uncompressed and contiguously, as ImageJ saves
+ * them. Reads are positional and can be carried out from several threads at the same time
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class TiffRegionReader implements TiledGrowth.LabelSource, TiledGrowth.MaskSource, TiledGrowth.GuideSource {
+
+	/** Width of the image */
+	public final int width;
+
+	/** Height of the image */
+	public final int height;
+
+	/** Pixel type, one of the greyscale types of {@link FileInfo} */
+	public final int fileType;
+
+	/** Number of bytes per pixel */
+	protected final int bytesPerPixel;
+
+	/** Position of the first pixel in the file */
+	protected final long offset;
+
+	/** Byte order of the pixels */
+	protected final ByteOrder order;
+
+	/** The open file */
+	protected final RandomAccessFile file;
+
+	/** Channel of the open file, for positional reads */
+	protected final FileChannel channel;
+
+	/**
+	 * Open a TIFF file
+	 * @param path Path of the file
+	 * @throws IOException If the file cannot be read, or its pixels are compressed, not greyscale or not contiguous
+	 */
+	public TiffRegionReader(String path) throws IOException
+	{
+		File f = new File(path).getAbsoluteFile();
+		FileInfo[] info = new TiffDecoder(f.getParent()+File.separator, f.getName()).getTiffInfo();
+		if(info==null || info.length==0)
+		{
+			throw new IOException("Not a TIFF file: "+path);
+		}
+		FileInfo fi=info[0];
+		if(fi.compression!=FileInfo.COMPRESSION_NONE && fi.compression!=0)
+		{
+			throw new IOException("Compressed TIFF files cannot be read tile by tile: "+path);
+		}
+		if(fi.fileType!=FileInfo.GRAY8 && fi.fileType!=FileInfo.GRAY16_UNSIGNED && fi.fileType!=FileInfo.GRAY16_SIGNED
+				&& fi.fileType!=FileInfo.GRAY32_FLOAT && fi.fileType!=FileInfo.GRAY32_INT && fi.fileType!=FileInfo.GRAY32_UNSIGNED)
+		{
+			throw new IOException("Only 8-, 16- and 32-bit greyscale TIFF files can be read tile by tile: "+path);
+		}
+		width=fi.width;
+		height=fi.height;
+		fileType=fi.fileType;
+		bytesPerPixel=fi.getBytesPerPixel();
+		offset=fi.getOffset();
+		order=fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+		if(fi.stripOffsets!=null)
+		{
+			// The strips must follow each other, so that the position of a row can be computed
+			long expected=offset;
+			for(int s=0; s<fi.stripOffsets.length; s++)
+			{
+				if((fi.stripOffsets[s]&0xffffffffL)!=expected)
+				{
+					throw new IOException("The strips of the TIFF file are not contiguous: "+path);
+				}
+				expected+=fi.stripLengths[s]&0xffffffffL;
+			}
+		}
+		file = new RandomAccessFile(f, "r");
+		channel = file.getChannel();
+	}
+
+	/**
+	 * Read a region of the image
+	 * @param r The region; pixels outside the image are 0
+	 * @return The pixels of the region, in a byte, short or float processor according to the pixel type
+	 * @throws IOException If the file cannot be read
+	 */
+	public ImageProcessor read(Rectangle r) throws IOException
+	{
+		ImageProcessor ip;
+		if(bytesPerPixel==1)
+		{
+			ip = new ByteProcessor(r.width, r.height);
+		}
+		else if(bytesPerPixel==2)
+		{
+			ip = new ShortProcessor(r.width, r.height);
+		}
+		else
+		{
+			ip = new FloatProcessor(r.width, r.height);
+		}
+		int xStart=Math.max(0, r.x);
+		int xEnd=Math.min(width, r.x+r.width);
+		if(xEnd<=xStart)
+		{
+			return ip;
+		}
+		ByteBuffer row = ByteBuffer.allocate((xEnd-xStart)*bytesPerPixel);
+		row.order(order);
+		for(int y=Math.max(0, r.y); y<Math.min(height, r.y+r.height); y++)
+		{
+			row.clear();
+			long position=offset+((long)y*width+xStart)*bytesPerPixel;
+			while(row.hasRemaining())
+			{
+				if(channel.read(row, position+row.position())<0)
+				{
+					throw new IOException("Unexpected end of the TIFF file");
+				}
+			}
+			row.flip();
+			int base=(y-r.y)*r.width+xStart-r.x;
+			for(int k=0; k<xEnd-xStart; k++)
+			{
+				ip.setf(base+k, readPixel(row));
+			}
+		}
+		return ip;
+	}
+
+	public int getWidth()
+	{
+		return width;
+	}
+
+	public int getHeight()
+	{
+		return height;
+	}
+
+	public int[] readLabels(Rectangle r) throws IOException
+	{
+		ImageProcessor ip=read(r);
+		int[] labels = new int[r.width*r.height];
+		for(int index=0; index<labels.length; index++)
+		{
+			labels[index]=Math.max(0, (int)ip.getf(index));
+		}
+		return labels;
+	}
+
+	public BitMask readMask(Rectangle r) throws IOException
+	{
+		return BitMask.fromProcessor(read(r));
+	}
+
+	public ImageProcessor readGuide(Rectangle r) throws IOException
+	{
+		return read(r);
+	}
+
+	/**
+	 * Read the next pixel of a row
+	 * @param row The row, positioned at the pixel
+	 * @return The pixel value
+	 */
+	protected float readPixel(ByteBuffer row)
+	{
+		switch(fileType)
+		{
+		case FileInfo.GRAY8: return row.get()&0xff;
+		case FileInfo.GRAY16_UNSIGNED: return row.getShort()&0xffff;
+		case FileInfo.GRAY16_SIGNED: return row.getShort();
+		case FileInfo.GRAY32_FLOAT: return row.getFloat();
+		case FileInfo.GRAY32_UNSIGNED: return row.getInt()&0xffffffffL;
+		default: return row.getInt();
+		}
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException If the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+}
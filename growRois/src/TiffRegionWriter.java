@@ -0,0 +1,237 @@
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writing of a label image into an uncompressed TIFF file region by region, so that the image never needs to be
+ * held in memory as a whole. The file is a baseline TIFF with a single strip, 16-bit unsigned or 32-bit float,
+ * which ImageJ opens directly. Images beyond the 4 GB of a baseline TIFF are written as BigTIFF, with 64-bit offsets
+ * and a strip per row; ImageJ opens these through Bio-Formats. Writes are positional and can be carried out from
+ * several threads at the same time for regions that do not overlap
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class TiffRegionWriter implements TiledGrowth.LabelSink {
+
+	/** Position of the first pixel in a baseline TIFF file, after the header and the image directory */
+	protected static final int DATA_OFFSET=136;
+
+	/** Position of the first strip offset in a BigTIFF file, after the header and the image directory */
+	protected static final int BIG_STRIPS_OFFSET=232;
+
+	/** Width of the image */
+	public final int width;
+
+	/** Height of the image */
+	public final int height;
+
+	/** Number of bytes per pixel, 2 or 4 */
+	protected final int bytesPerPixel;
+
+	/** Position of the first pixel in the file */
+	protected final long dataOffset;
+
+	/** The open file */
+	protected final RandomAccessFile file;
+
+	/** Channel of the open file, for positional writes */
+	protected final FileChannel channel;
+
+	/**
+	 * Create a TIFF file of a given size; the pixels are 0 until written
+	 * @param path Path of the file, replaced if it exists
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param floatPixels true for 32-bit float pixels, false for 16-bit unsigned pixels
+	 * @throws IOException If the file cannot be written
+	 */
+	public TiffRegionWriter(String path, int width, int height, boolean floatPixels) throws IOException
+	{
+		this.width=width;
+		this.height=height;
+		bytesPerPixel=floatPixels ? 4 : 2;
+		long dataLength=(long)width*height*bytesPerPixel;
+		boolean bigTiff=(DATA_OFFSET+dataLength>0xffffffffL);
+		dataOffset=bigTiff ? BIG_STRIPS_OFFSET+16L*height : DATA_OFFSET;
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		file.setLength(dataOffset+dataLength);
+		channel = file.getChannel();
+		if(bigTiff)
+		{
+			writeBigTiffHeader(floatPixels);
+			return;
+		}
+
+		ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(8);
+		int nEntries=10;
+		header.putShort((short)nEntries);
+		putEntry(header, 256, 4, width);
+		putEntry(header, 257, 4, height);
+		putEntry(header, 258, 3, bytesPerPixel*8);
+		putEntry(header, 259, 3, 1);
+		putEntry(header, 262, 3, 1);
+		putEntry(header, 273, 4, DATA_OFFSET);
+		putEntry(header, 277, 3, 1);
+		putEntry(header, 278, 4, height);
+		putEntry(header, 279, 4, (int)dataLength);
+		putEntry(header, 339, 3, floatPixels ? 3 : 1);
+		header.putInt(0);
+		header.rewind();
+		channel.write(header, 0);
+	}
+
+	/**
+	 * Write the header, the image directory and the strip table of a BigTIFF file, with a strip per row
+	 * @param floatPixels true for 32-bit float pixels, false for 16-bit unsigned pixels
+	 * @throws IOException If the file cannot be written
+	 */
+	protected void writeBigTiffHeader(boolean floatPixels) throws IOException
+	{
+		long rowLength=(long)width*bytesPerPixel;
+		ByteBuffer header = ByteBuffer.allocate(BIG_STRIPS_OFFSET);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte)'I').put((byte)'I').putShort((short)43).putShort((short)8).putShort((short)0).putLong(16);
+		int nEntries=10;
+		header.putLong(nEntries);
+		putBigEntry(header, 256, 4, 1, width);
+		putBigEntry(header, 257, 4, 1, height);
+		putBigEntry(header, 258, 3, 1, bytesPerPixel*8);
+		putBigEntry(header, 259, 3, 1, 1);
+		putBigEntry(header, 262, 3, 1, 1);
+		putBigEntry(header, 273, 16, height, BIG_STRIPS_OFFSET);
+		putBigEntry(header, 277, 3, 1, 1);
+		putBigEntry(header, 278, 4, 1, 1);
+		putBigEntry(header, 279, 16, height, BIG_STRIPS_OFFSET+8L*height);
+		putBigEntry(header, 339, 3, 1, floatPixels ? 3 : 1);
+		header.putLong(0);
+		header.rewind();
+		channel.write(header, 0);
+
+		// The offsets of the strips, then their lengths, written by blocks of rows
+		ByteBuffer table = ByteBuffer.allocate(8*Math.min(height, 1<<16));
+		table.order(ByteOrder.LITTLE_ENDIAN);
+		for(int pass=0; pass<2; pass++)
+		{
+			long position=BIG_STRIPS_OFFSET+8L*height*pass;
+			for(int y=0; y<height; )
+			{
+				table.clear();
+				for(; y<height && table.hasRemaining(); y++)
+				{
+					table.putLong(pass==0 ? dataOffset+y*rowLength : rowLength);
+				}
+				table.flip();
+				while(table.hasRemaining())
+				{
+					position+=channel.write(table, position);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add an entry to the image directory of a BigTIFF file
+	 * @param header The header
+	 * @param tag The tag
+	 * @param type 3 for SHORT, 4 for LONG, 16 for LONG8
+	 * @param count Number of values
+	 * @param value The value, or the position of the values if they do not fit into the entry
+	 */
+	protected static void putBigEntry(ByteBuffer header, int tag, int type, long count, long value)
+	{
+		header.putShort((short)tag);
+		header.putShort((short)type);
+		header.putLong(count);
+		if(type==3)
+		{
+			header.putShort((short)value);
+			header.putShort((short)0);
+			header.putInt(0);
+		}
+		else if(type==4)
+		{
+			header.putInt((int)value);
+			header.putInt(0);
+		}
+		else
+		{
+			header.putLong(value);
+		}
+	}
+
+	/**
+	 * Add a single-valued entry to the image directory
+	 * @param header The header
+	 * @param tag The tag
+	 * @param type 3 for SHORT, 4 for LONG
+	 * @param value The value
+	 */
+	protected static void putEntry(ByteBuffer header, int tag, int type, int value)
+	{
+		header.putShort((short)tag);
+		header.putShort((short)type);
+		header.putInt(1);
+		if(type==3)
+		{
+			header.putShort((short)value);
+			header.putShort((short)0);
+		}
+		else
+		{
+			header.putInt(value);
+		}
+	}
+
+	/**
+	 * Write a region of the image from a tile of labels
+	 * @param labels The labels of the tile, row by row
+	 * @param tileWidth Width of the tile
+	 * @param xTile x position of the left edge of the tile in the image
+	 * @param yTile y position of the top edge of the tile in the image
+	 * @param r The region to write, within the tile and the image
+	 * @throws IOException If the file cannot be written
+	 */
+	public void write(int[] labels, int tileWidth, int xTile, int yTile, Rectangle r) throws IOException
+	{
+		ByteBuffer row = ByteBuffer.allocate(r.width*bytesPerPixel);
+		row.order(ByteOrder.LITTLE_ENDIAN);
+		for(int y=r.y; y<r.y+r.height; y++)
+		{
+			row.clear();
+			int base=(y-yTile)*tileWidth+r.x-xTile;
+			for(int k=0; k<r.width; k++)
+			{
+				if(bytesPerPixel==2)
+				{
+					row.putShort((short)labels[base+k]);
+				}
+				else
+				{
+					row.putFloat(labels[base+k]);
+				}
+			}
+			row.flip();
+			long position=dataOffset+((long)y*width+r.x)*bytesPerPixel;
+			while(row.hasRemaining())
+			{
+				channel.write(row, position+row.position());
+			}
+		}
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException If the file cannot be closed
+	 */
+	public void close() throws IOException
+	{
+		file.close();
+	}
+
+}
@@ -0,0 +1,459 @@
+import ij.gui.ProgressBar;
+import ij.process.ImageProcessor;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Label map growth of images too large for the memory, tile by tile. Each tile is read from disk together with a
+ * halo of nPixels pixels on each side, grown on its own {@link LabelMap}, and only its core is written to the
+ * output file. In a growth step, a pixel only depends on its neighbors, so that after nPixels steps the pixels
+ * of the core only depend on pixels within the halo: the stitched result is identical to that of a run on the
+ * whole image, and every pixel is written by the tile owning it. The tiles are grown in parallel, as many at a
+ * time as the memory budget allows.
+ * The seeds are given by a label image; the label image and the optional mask are uncompressed TIFF files, read
+ * region by region. The output is an uncompressed TIFF file, or raw labels in a memory-mapped file
+ * ({@link OffHeapLabels}). Only the tiles being grown are held in memory, on the Java heap.
+ * A watershed guide, also an uncompressed TIFF file, is streamed in the same way. Its levels are fixed once for
+ * the whole guide by a first pass over it ({@link GuideScale}), and each tile is flooded by {@link PriorityFlood}
+ * with these levels. The flood grows by up to nPixels pixels at each level, so that the halo is nPixels times the
+ * number of levels; fewer levels keep the tiles small. With the default levels, 16- and 32-bit guides are converted
+ * to 8 bits over the range of their values
+ * @author Thomas Braschler, Zahra Sadat Ghazali
+ *
+ */
+public class TiledGrowth {
+
+	/**
+	 * Labels that can be read region by region
+	 */
+	public interface LabelSource
+	{
+		/**
+		 * Get the width of the image
+		 * @return The width
+		 */
+		int getWidth();
+
+		/**
+		 * Get the height of the image
+		 * @return The height
+		 */
+		int getHeight();
+
+		/**
+		 * Read the labels of a region
+		 * @param r The region; pixels outside the image are 0
+		 * @return The labels of the region, row by row, negative labels being read as 0
+		 * @throws IOException If the labels cannot be read
+		 */
+		int[] readLabels(Rectangle r) throws IOException;
+	}
+
+	/**
+	 * Mask that can be read region by region
+	 */
+	public interface MaskSource
+	{
+		/**
+		 * Read the mask of a region
+		 * @param r The region; pixels outside the mask are not set
+		 * @return The mask of the region
+		 * @throws IOException If the mask cannot be read
+		 */
+		BitMask readMask(Rectangle r) throws IOException;
+	}
+
+	/**
+	 * Greyscale guide that can be read region by region
+	 */
+	public interface GuideSource
+	{
+		/**
+		 * Read the grey values of a region
+		 * @param r The region; pixels outside the guide are 0
+		 * @return The grey values of the region, in a processor of the bit depth of the guide
+		 * @throws IOException If the guide cannot be read
+		 */
+		ImageProcessor readGuide(Rectangle r) throws IOException;
+	}
+
+	/**
+	 * Labels that can be written region by region, from several threads for regions that do not overlap
+	 */
+	public interface LabelSink
+	{
+		/**
+		 * Write a region of the image from a tile of labels
+		 * @param labels The labels of the tile, row by row
+		 * @param tileWidth Width of the tile
+		 * @param xTile x position of the left edge of the tile in the image
+		 * @param yTile y position of the top edge of the tile in the image
+		 * @param r The region to write, within the tile and the image
+		 * @throws IOException If the labels cannot be written
+		 */
+		void write(int[] labels, int tileWidth, int xTile, int yTile, Rectangle r) throws IOException;
+	}
+
+	/** Estimated memory used per pixel of a tile with its halo, in bytes: labels, seed and mask tiles, bit masks */
+	protected static final int BYTES_PER_TILE_PIXEL=12;
+
+	/** Estimated additional memory per pixel of a tile along a guide, in bytes: guide tile, levels, queue state */
+	protected static final int GUIDE_BYTES_PER_TILE_PIXEL=14;
+
+	/** Number of pixels of the guide read at a time in the pass fixing its levels */
+	protected static final int SCAN_PIXELS=1<<22;
+
+	/** The parameters, a private copy */
+	protected final GrowthParameters parameters;
+
+	/** Width and height of the core of a tile */
+	protected final int tileSize;
+
+	/** Memory available for the tiles grown at the same time, in bytes */
+	protected final long memoryBudget;
+
+	/** Levels of the guide, fixed over the whole guide; null to grow without guide */
+	protected GuideScale guideScale=null;
+
+	/** Width of the halo around each tile */
+	protected int halo;
+
+	/** Number of tiles grown so far, for the progress bar */
+	protected AtomicInteger tilesDone = new AtomicInteger();
+
+	/**
+	 * Set up tiled growth
+	 * @param parameters The parameters; a copy is kept. Growth is without overlap, nThreads tiles at most being
+	 * grown at the same time
+	 * @param tileSize Width and height of the core of a tile
+	 * @param memoryBudget Memory available for the tiles grown at the same time, in bytes
+	 */
+	public TiledGrowth(GrowthParameters parameters, int tileSize, long memoryBudget)
+	{
+		this.parameters=parameters.copy();
+		this.tileSize=Math.max(1, tileSize);
+		this.memoryBudget=memoryBudget;
+		this.halo=Math.max(0, parameters.nPixels);
+	}
+
+	/**
+	 * Get the width of the halo around each tile
+	 * @return The halo, nPixels, or nPixels times the number of levels of the guide once it is set by
+	 * {@link #setGuide(GuideSource, int, int)}, at most the size of the image
+	 */
+	public int getHalo()
+	{
+		return halo;
+	}
+
+	/**
+	 * Fix the levels of a guide in one pass over it, band of rows by band of rows, and set the halo to the reach
+	 * of the flood along them
+	 * @param guide The guide; null to grow without guide
+	 * @param width Width of the guide
+	 * @param height Height of the guide
+	 * @throws IOException If the guide cannot be read
+	 */
+	public void setGuide(GuideSource guide, int width, int height) throws IOException
+	{
+		halo=Math.max(0, parameters.nPixels);
+		guideScale=null;
+		if(guide==null)
+		{
+			return;
+		}
+		int rows=Math.max(1, SCAN_PIXELS/Math.max(1, width));
+		for(int y=0; y<height; y+=rows)
+		{
+			ImageProcessor band=guide.readGuide(new Rectangle(0, y, width, Math.min(rows, height-y)));
+			if(guideScale==null)
+			{
+				guideScale = new GuideScale(band.getBitDepth(), parameters.guideLevels);
+			}
+			guideScale.add(band);
+		}
+		if(guideScale!=null)
+		{
+			halo=(int)Math.min(Math.max(width, height), (long)halo*guideScale.getLevelCount());
+		}
+	}
+
+	/**
+	 * Get the number of tiles grown at the same time, limited by the number of threads and the memory budget
+	 * @return The number of tiles, at least 1
+	 */
+	public int getParallelTiles()
+	{
+		long side=tileSize+2L*getHalo();
+		long perTile=side*side*((guideScale==null) ? BYTES_PER_TILE_PIXEL : BYTES_PER_TILE_PIXEL+GUIDE_BYTES_PER_TILE_PIXEL);
+		return (int)Math.max(1, Math.min(parameters.nThreads, memoryBudget/perTile));
+	}
+
+	/**
+	 * Grow the seeds of a label image, tile by tile
+	 * @param seedPath Path of the label image of the seeds, 0 is background; an uncompressed TIFF file
+	 * @param maskPath Path of the mask of the pixels accessible for growth, an uncompressed TIFF file of the same
+	 * size; null to allow all pixels
+	 * @param outPath Path of the label image written, 16-bit for 8- or 16-bit seeds, 32-bit float otherwise
+	 * @param bp Progress bar, null to show no progress
+	 * @throws IOException If a file cannot be read or written, or the mask differs in size from the seeds
+	 */
+	public void grow(String seedPath, String maskPath, String outPath, ProgressBar bp) throws IOException
+	{
+		grow(seedPath, maskPath, null, outPath, bp);
+	}
+
+	/**
+	 * Grow the seeds of a label image, tile by tile, optionally along a watershed guide
+	 * @param seedPath Path of the label image of the seeds, 0 is background; an uncompressed TIFF file
+	 * @param maskPath Path of the mask of the pixels accessible for growth, an uncompressed TIFF file of the same
+	 * size; null to allow all pixels
+	 * @param guidePath Path of the greyscale watershed guide, an uncompressed TIFF file of the same size; null to
+	 * grow without guide
+	 * @param outPath Path of the label image written, 16-bit for 8- or 16-bit seeds, 32-bit float otherwise
+	 * @param bp Progress bar, null to show no progress
+	 * @throws IOException If a file cannot be read or written, or the mask or the guide differs in size from
+	 * the seeds
+	 */
+	public void grow(String seedPath, String maskPath, String guidePath, String outPath, ProgressBar bp) throws IOException
+	{
+		TiffRegionReader seeds = new TiffRegionReader(seedPath);
+		TiffRegionReader mask=null;
+		TiffRegionReader guide=null;
+		TiffRegionWriter out=null;
+		try
+		{
+			mask=openMatching(maskPath, seeds, "mask");
+			guide=openMatching(guidePath, seeds, "guide");
+			out = new TiffRegionWriter(outPath, seeds.width, seeds.height, seeds.bytesPerPixel>2);
+			grow(seeds, mask, guide, out, bp);
+		}
+		finally
+		{
+			seeds.close();
+			if(mask!=null)
+			{
+				mask.close();
+			}
+			if(guide!=null)
+			{
+				guide.close();
+			}
+			if(out!=null)
+			{
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Open a TIFF file that must have the size of the seeds
+	 * @param path Path of the file, can be null
+	 * @param seeds The seeds
+	 * @param name Name of the file in the error message
+	 * @return The open file, null if the path is null
+	 * @throws IOException If the file cannot be read, or differs in size from the seeds
+	 */
+	public static TiffRegionReader openMatching(String path, TiffRegionReader seeds, String name) throws IOException
+	{
+		if(path==null)
+		{
+			return null;
+		}
+		TiffRegionReader reader = new TiffRegionReader(path);
+		if(reader.width!=seeds.width || reader.height!=seeds.height)
+		{
+			reader.close();
+			throw new IOException("The "+name+" differs in size from the seeds");
+		}
+		return reader;
+	}
+
+	/**
+	 * Grow the seeds of a label image, tile by tile
+	 * @param seeds The labels of the seeds, 0 is background
+	 * @param mask The mask of the pixels accessible for growth, of the same size; null to allow all pixels
+	 * @param out Receives the grown labels, of the same size. It must differ from the seeds, since the halos of
+	 * the tiles are read while other tiles are written
+	 * @param bp Progress bar, null to show no progress
+	 * @throws IOException If the labels or the mask cannot be read or written
+	 */
+	public void grow(LabelSource seeds, MaskSource mask, LabelSink out, ProgressBar bp) throws IOException
+	{
+		grow(seeds, mask, null, out, bp);
+	}
+
+	/**
+	 * Grow the seeds of a label image, tile by tile, optionally along a watershed guide
+	 * @param seeds The labels of the seeds, 0 is background
+	 * @param mask The mask of the pixels accessible for growth, of the same size; null to allow all pixels
+	 * @param guide The greyscale watershed guide, of the same size; null to grow without guide. Its levels are
+	 * fixed in a first pass over it
+	 * @param out Receives the grown labels, of the same size. It must differ from the seeds, since the halos of
+	 * the tiles are read while other tiles are written
+	 * @param bp Progress bar, null to show no progress
+	 * @throws IOException If the labels, the mask or the guide cannot be read or written
+	 */
+	public void grow(LabelSource seeds, MaskSource mask, GuideSource guide, LabelSink out, ProgressBar bp) throws IOException
+	{
+		setGuide(guide, seeds.getWidth(), seeds.getHeight());
+		int nx=(seeds.getWidth()+tileSize-1)/tileSize;
+		int ny=(seeds.getHeight()+tileSize-1)/tileSize;
+		tilesDone.set(0);
+		TileRangeTask all = new TileRangeTask(0, nx*ny, nx, seeds, mask, guide, out, bp);
+		int nParallel=getParallelTiles();
+		if(nParallel<=1)
+		{
+			all.compute();
+		}
+		else
+		{
+			ForkJoinPool pool = new ForkJoinPool(nParallel);
+			try
+			{
+				pool.invoke(all);
+			}
+			finally
+			{
+				pool.shutdown();
+			}
+		}
+		if(all.error!=null)
+		{
+			throw all.error;
+		}
+	}
+
+	/**
+	 * Grow a tile and write its core
+	 * @param core The core of the tile
+	 * @param seeds The labels of the seeds
+	 * @param mask The mask, null to allow all pixels
+	 * @param guide The guide, null to grow without guide
+	 * @param out Receives the result
+	 * @throws IOException If the labels, the mask or the guide cannot be read or written
+	 */
+	protected void growTile(Rectangle core, LabelSource seeds, MaskSource mask, GuideSource guide, LabelSink out) throws IOException
+	{
+		Rectangle r = new Rectangle(core);
+		r.grow(getHalo(), getHalo());
+		r=r.intersection(new Rectangle(0, 0, seeds.getWidth(), seeds.getHeight()));
+
+		LabelMap map = new LabelMap(r.width, r.height);
+		map.labels=seeds.readLabels(r);
+		for(int index=0; index<map.labels.length; index++)
+		{
+			map.nLabels=Math.max(map.nLabels, map.labels[index]);
+		}
+		if(mask!=null)
+		{
+			map.setAllowedMask(mask.readMask(r));
+		}
+		map.setConnectivity(parameters.connectivity);
+		if(guide!=null)
+		{
+			PriorityFlood.flood(map, guideScale.levelsOf(guide.readGuide(r)), parameters.nPixels, null);
+		}
+		else
+		{
+			map.grow(parameters.nPixels, null);
+		}
+		out.write(map.labels, r.width, r.x, r.y, core);
+	}
+
+	/**
+	 * Fork-join task growing a range of tiles, split in halves down to single tiles
+	 */
+	@SuppressWarnings("serial")
+	protected class TileRangeTask extends RecursiveAction
+	{
+		/** First tile of the range, row by row */
+		protected int tStart;
+
+		/** Tile after the last tile of the range */
+		protected int tEnd;
+
+		/** Number of tiles per row */
+		protected int nx;
+
+		/** The labels of the seeds */
+		protected LabelSource seeds;
+
+		/** The mask, null to allow all pixels */
+		protected MaskSource mask;
+
+		/** The guide, null to grow without guide */
+		protected GuideSource guide;
+
+		/** Receives the result */
+		protected LabelSink out;
+
+		/** Progress bar, can be null */
+		protected ProgressBar bp;
+
+		/** First error met in the range, null if none */
+		protected IOException error=null;
+
+		/**
+		 * Create a task for a range of tiles
+		 * @param tStart First tile of the range
+		 * @param tEnd Tile after the last tile of the range
+		 * @param nx Number of tiles per row
+		 * @param seeds The labels of the seeds
+		 * @param mask The mask, null to allow all pixels
+		 * @param guide The guide, null to grow without guide
+		 * @param out Receives the result
+		 * @param bp Progress bar, can be null
+		 */
+		public TileRangeTask(int tStart, int tEnd, int nx, LabelSource seeds, MaskSource mask, GuideSource guide, LabelSink out, ProgressBar bp)
+		{
+			this.tStart=tStart;
+			this.tEnd=tEnd;
+			this.nx=nx;
+			this.seeds=seeds;
+			this.mask=mask;
+			this.guide=guide;
+			this.out=out;
+			this.bp=bp;
+		}
+
+		protected void compute()
+		{
+			if(tEnd-tStart<=1)
+			{
+				for(int t=tStart; t<tEnd; t++)
+				{
+					int x=(t%nx)*tileSize;
+					int y=(t/nx)*tileSize;
+					Rectangle core = new Rectangle(x, y, Math.min(tileSize, seeds.getWidth()-x), Math.min(tileSize, seeds.getHeight()-y));
+					try
+					{
+						growTile(core, seeds, mask, guide, out);
+					}
+					catch(IOException e)
+					{
+						error=e;
+						return;
+					}
+					int done=tilesDone.incrementAndGet();
+					if(bp!=null)
+					{
+						int ny=(seeds.getHeight()+tileSize-1)/tileSize;
+						bp.show(done, nx*ny);
+					}
+				}
+				return;
+			}
+			int tMiddle=(tStart+tEnd)/2;
+			TileRangeTask lowerHalf = new TileRangeTask(tStart, tMiddle, nx, seeds, mask, guide, out, bp);
+			TileRangeTask upperHalf = new TileRangeTask(tMiddle, tEnd, nx, seeds, mask, guide, out, bp);
+			invokeAll(lowerHalf, upperHalf);
+			error=(lowerHalf.error!=null) ? lowerHalf.error : upperHalf.error;
+		}
+	}
+
+}